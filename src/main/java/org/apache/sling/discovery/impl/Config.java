@@ -34,13 +34,27 @@ import org.slf4j.LoggerFactory;
 
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_BACKOFF_STABLE_FACTOR;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_BACKOFF_STANDBY_FACTOR;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_CLUSTER_INSTANCES_RETENTION_FACTOR;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_CONNECTION_TIMEOUT;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_DISCOVERY_RESOURCE_PATH;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_HEARTBEAT_INTERVAL;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_HEARTBEAT_TIMEOUT;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_LIVE_INSTANCES_RECONCILE_INTERVAL;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_LIVENESS_MODE;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_MIN_EVENT_DELAY;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_PHI_ACCRUAL_THRESHOLD;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_PHI_ACCRUAL_WINDOW_SIZE;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_PROPERTIES_RECONCILE_INTERVAL;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_PROPERTY_PROVIDER_TIMEOUT;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_FAST_CHECK_VIEW_INTERVAL;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_VOTING_INITIATION_DELAY;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_RESOURCE_RESOLVER_MAX_AGE;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_RESOURCE_RESOLVER_MAX_IDLE;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_SO_TIMEOUT;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_TOPOLOGY_CHANGE_MAX_DELAY;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_TOPOLOGY_CHANGE_QUIET_PERIOD;
 import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_TOPOLOGY_CONNECTOR_WHITELIST;
+import static org.apache.sling.discovery.impl.DiscoveryServiceConfig.DEFAULT_VOTING_EVENT_DEBOUNCE;
 
 /**
  * Configuration object used as a central config point for the discovery service
@@ -121,7 +135,64 @@ public class Config implements BaseConfig, DiscoveryLiteConfig {
      * when set to true and the syncTokenService (of discovery.commons) is available,
      * then it is used.
      */
-    private boolean useSyncTokenService = true;
+    protected boolean useSyncTokenService = true;
+
+    /** the maximum number of idle ResourceResolvers kept for reuse per component **/
+    protected int resourceResolverMaxIdle = DEFAULT_RESOURCE_RESOLVER_MAX_IDLE;
+
+    /** the maximum age (in seconds) of a reused ResourceResolver **/
+    protected long resourceResolverMaxAge = DEFAULT_RESOURCE_RESOLVER_MAX_AGE;
+
+    /** the interval (in seconds) in which the live instances index is reconciled with the repository **/
+    protected long liveInstancesReconcileInterval = DEFAULT_LIVE_INSTANCES_RECONCILE_INTERVAL;
+
+    /** the number of heartbeatTimeouts after which a dead instance is removed from clusterInstances **/
+    protected int clusterInstancesRetentionFactor = DEFAULT_CLUSTER_INSTANCES_RETENTION_FACTOR;
+
+    /** the time (in millis) voting events are collected before the votings are analyzed **/
+    protected long votingEventDebounce = DEFAULT_VOTING_EVENT_DEBOUNCE;
+
+    /** the time (in millis) without topology-relevant events after which the topology is checked **/
+    protected long topologyChangeQuietPeriod = DEFAULT_TOPOLOGY_CHANGE_QUIET_PERIOD;
+
+    /** the maximum time (in millis) between a topology-relevant event and the check **/
+    protected long topologyChangeMaxDelay = DEFAULT_TOPOLOGY_CHANGE_MAX_DELAY;
+
+    /** the liveness mode - 'timeout' or 'phiAccrual' **/
+    protected String livenessMode = DEFAULT_LIVENESS_MODE;
+
+    /** the suspicion level from which on an instance is considered failed in the 'phiAccrual' mode **/
+    protected double phiAccrualThreshold = DEFAULT_PHI_ACCRUAL_THRESHOLD;
+
+    /** the number of heartbeat inter-arrival times kept per instance in the 'phiAccrual' mode **/
+    protected int phiAccrualWindowSize = DEFAULT_PHI_ACCRUAL_WINDOW_SIZE;
+
+    /** when true the changed properties are committed together with the heartbeat **/
+    protected boolean mergePropertiesIntoHeartbeat = false;
+
+    /** the interval (in seconds) in which unchanged properties are compared with the repository nevertheless **/
+    protected long propertiesReconcileInterval = DEFAULT_PROPERTIES_RECONCILE_INTERVAL;
+
+    /** the time (in millis) the PropertyProviders are waited for when polled **/
+    protected long propertyProviderTimeout = DEFAULT_PROPERTY_PROVIDER_TIMEOUT;
+
+    /** when true the parts of the heartbeat run independently of each other **/
+    protected boolean heartbeatLanes = false;
+
+    /** the interval (in millis) in which the view is checked while it is not settled - 0 disables it **/
+    protected long fastCheckViewInterval = DEFAULT_FAST_CHECK_VIEW_INTERVAL;
+
+    /** the time (in millis) per rank an instance waits before initiating a voting - 0 disables it **/
+    protected long votingInitiationDelay = DEFAULT_VOTING_INITIATION_DELAY;
+
+    /** when true the previous views are cleaned up after the promotion was committed **/
+    protected boolean fastPromotion = false;
+
+    /** when true an instance starting up as the only live instance establishes its view right away **/
+    protected boolean singleInstanceFastPath = false;
+
+    /** when true new votings are written in the compact format - see CompactMembers **/
+    protected boolean compactViewStorage = false;
     
     @Activate
     protected void activate(final DiscoveryServiceConfig config) {
@@ -221,6 +292,45 @@ public class Config implements BaseConfig, DiscoveryLiteConfig {
         backoffStableFactor = config.backoffStableFactor();
         
         useSyncTokenService = config.useSyncTokenServiceEnabled();
+
+        resourceResolverMaxIdle = config.resourceResolverMaxIdle();
+        logger.debug("configure: resourceResolverMaxIdle='{}'", resourceResolverMaxIdle);
+        resourceResolverMaxAge = config.resourceResolverMaxAge();
+        logger.debug("configure: resourceResolverMaxAge='{}'", resourceResolverMaxAge);
+        liveInstancesReconcileInterval = config.liveInstancesReconcileInterval();
+        logger.debug("configure: liveInstancesReconcileInterval='{}'", liveInstancesReconcileInterval);
+        clusterInstancesRetentionFactor = config.clusterInstancesRetentionFactor();
+        logger.debug("configure: clusterInstancesRetentionFactor='{}'", clusterInstancesRetentionFactor);
+        votingEventDebounce = config.votingEventDebounce();
+        logger.debug("configure: votingEventDebounce='{}'", votingEventDebounce);
+        topologyChangeQuietPeriod = config.topologyChangeQuietPeriod();
+        logger.debug("configure: topologyChangeQuietPeriod='{}'", topologyChangeQuietPeriod);
+        topologyChangeMaxDelay = config.topologyChangeMaxDelay();
+        logger.debug("configure: topologyChangeMaxDelay='{}'", topologyChangeMaxDelay);
+        livenessMode = config.livenessMode();
+        logger.debug("configure: livenessMode='{}'", livenessMode);
+        phiAccrualThreshold = config.phiAccrualThreshold();
+        logger.debug("configure: phiAccrualThreshold='{}'", phiAccrualThreshold);
+        phiAccrualWindowSize = config.phiAccrualWindowSize();
+        logger.debug("configure: phiAccrualWindowSize='{}'", phiAccrualWindowSize);
+        mergePropertiesIntoHeartbeat = config.mergePropertiesIntoHeartbeat();
+        logger.debug("configure: mergePropertiesIntoHeartbeat='{}'", mergePropertiesIntoHeartbeat);
+        propertiesReconcileInterval = config.propertiesReconcileInterval();
+        logger.debug("configure: propertiesReconcileInterval='{}'", propertiesReconcileInterval);
+        propertyProviderTimeout = config.propertyProviderTimeout();
+        logger.debug("configure: propertyProviderTimeout='{}'", propertyProviderTimeout);
+        heartbeatLanes = config.heartbeatLanes();
+        logger.debug("configure: heartbeatLanes='{}'", heartbeatLanes);
+        fastCheckViewInterval = config.fastCheckViewInterval();
+        logger.debug("configure: fastCheckViewInterval='{}'", fastCheckViewInterval);
+        votingInitiationDelay = config.votingInitiationDelay();
+        logger.debug("configure: votingInitiationDelay='{}'", votingInitiationDelay);
+        fastPromotion = config.fastPromotion();
+        logger.debug("configure: fastPromotion='{}'", fastPromotion);
+        singleInstanceFastPath = config.singleInstanceFastPath();
+        logger.debug("configure: singleInstanceFastPath='{}'", singleInstanceFastPath);
+        compactViewStorage = config.compactViewStorage();
+        logger.debug("configure: compactViewStorage='{}'", compactViewStorage);
     }
 
     /**
@@ -458,4 +568,194 @@ public class Config implements BaseConfig, DiscoveryLiteConfig {
         return useSyncTokenService;
     }
 
+    /**
+     * Returns the maximum number of idle ResourceResolvers each component keeps for reuse,
+     * 0 disables reuse
+     * @return the maximum number of idle ResourceResolvers each component keeps for reuse
+     */
+    public int getResourceResolverMaxIdle() {
+        return resourceResolverMaxIdle;
+    }
+
+    /**
+     * Returns the maximum age (in milliseconds) after which a reused ResourceResolver is recreated
+     * @return the maximum age (in milliseconds) after which a reused ResourceResolver is recreated
+     */
+    public long getResourceResolverMaxAgeMillis() {
+        return resourceResolverMaxAge * 1000;
+    }
+
+    /**
+     * Returns the interval (in milliseconds) in which the live instances index is reconciled
+     * with a full read of the clusterInstances resource
+     * @return the interval (in milliseconds) in which the live instances index is reconciled
+     */
+    public long getLiveInstancesReconcileIntervalMillis() {
+        return liveInstancesReconcileInterval * 1000;
+    }
+
+    /**
+     * Returns the time (in milliseconds) after which the entry of a dead instance is
+     * removed from clusterInstances - 0 if such entries are never removed
+     * @return the time (in milliseconds) after which the entry of a dead instance is
+     * removed from clusterInstances
+     */
+    public long getClusterInstancesRetentionMillis() {
+        if (clusterInstancesRetentionFactor <= 0) {
+            return 0;
+        }
+        return clusterInstancesRetentionFactor * getHeartbeatTimeoutMillis();
+    }
+
+    /**
+     * Returns the time (in milliseconds) the voting events are collected before
+     * the ongoing votings are analyzed once for all of them
+     * @return the time (in milliseconds) the voting events are collected before
+     * the ongoing votings are analyzed once for all of them
+     */
+    public long getVotingEventDebounceMillis() {
+        return Math.max(0, votingEventDebounce);
+    }
+
+    /**
+     * Returns the time (in milliseconds) without further topology-relevant
+     * events after which the topology is checked for changes
+     * @return the time (in milliseconds) without further topology-relevant
+     * events after which the topology is checked for changes
+     */
+    public long getTopologyChangeQuietPeriodMillis() {
+        return Math.max(0, topologyChangeQuietPeriod);
+    }
+
+    /**
+     * Returns the maximum time (in milliseconds) between a topology-relevant
+     * event and the topology check covering it
+     * @return the maximum time (in milliseconds) between a topology-relevant
+     * event and the topology check covering it
+     */
+    public long getTopologyChangeMaxDelayMillis() {
+        return Math.max(0, topologyChangeMaxDelay);
+    }
+
+    /**
+     * Returns whether the 'phiAccrual' liveness mode is configured, ie whether
+     * instances are suspected based on their heartbeat inter-arrival times
+     * (in addition to the heartbeat timeout)
+     * @return whether the 'phiAccrual' liveness mode is configured
+     */
+    public boolean isPhiAccrualLivenessEnabled() {
+        return "phiAccrual".equalsIgnoreCase(livenessMode);
+    }
+
+    /**
+     * Returns the suspicion level (phi) from which on an instance is
+     * considered failed in the 'phiAccrual' liveness mode
+     * @return the suspicion level from which on an instance is considered failed
+     */
+    public double getPhiAccrualThreshold() {
+        return phiAccrualThreshold;
+    }
+
+    /**
+     * Returns the number of heartbeat inter-arrival times kept per instance
+     * in the 'phiAccrual' liveness mode
+     * @return the number of heartbeat inter-arrival times kept per instance
+     */
+    public int getPhiAccrualWindowSize() {
+        return phiAccrualWindowSize;
+    }
+
+    /**
+     * Returns whether the changed properties are written together with the
+     * heartbeat, in one commit - instead of in a separate one before it
+     * @return whether the changed properties are written together with the heartbeat
+     */
+    public boolean isMergePropertiesIntoHeartbeatEnabled() {
+        return mergePropertiesIntoHeartbeat;
+    }
+
+    /**
+     * Returns the interval (in milliseconds) in which the properties are compared
+     * with the repository even if the PropertyProviders report unchanged values
+     * @return the interval (in milliseconds) in which unchanged properties are
+     * compared with the repository - 0 if they are always compared
+     */
+    public long getPropertiesReconcileIntervalMillis() {
+        return Math.max(0, propertiesReconcileInterval) * 1000;
+    }
+
+    /**
+     * Returns the time (in milliseconds) the PropertyProviders are waited for
+     * when polled concurrently - a provider that doesn't answer in time
+     * contributes its last known values
+     * @return the time (in milliseconds) the PropertyProviders are waited for -
+     * 0 if they are polled one after the other in the calling thread
+     */
+    public long getPropertyProviderTimeoutMillis() {
+        return Math.max(0, propertyProviderTimeout);
+    }
+
+    /**
+     * Returns whether the cluster-local heartbeat, the properties update and
+     * the connector pings run independently of each other - each on its own
+     * thread, so that eg a stalled repository doesn't delay the connector pings
+     * @return whether the parts of the heartbeat run independently of each other
+     */
+    public boolean isHeartbeatLanesEnabled() {
+        return heartbeatLanes;
+    }
+
+    /**
+     * Returns the interval (in milliseconds) in which the view is checked
+     * while votings are ongoing or the established view doesn't match the
+     * live instances yet - instead of waiting for the next heartbeat interval
+     * @return the interval (in milliseconds) in which the view is checked while
+     * it is not settled - 0 if it is only checked with the heartbeats
+     */
+    public long getFastCheckViewIntervalMillis() {
+        return Math.max(0, fastCheckViewInterval);
+    }
+
+    /**
+     * Returns the time (in milliseconds) per rank in the live instances
+     * (ordered by leaderElectionId) an instance waits after noticing that
+     * a new voting is required before initiating it itself
+     * @return the time (in milliseconds) per rank an instance waits before
+     * initiating a voting - 0 if every instance initiates one right away
+     */
+    public long getVotingInitiationDelayMillis() {
+        return Math.max(0, votingInitiationDelay);
+    }
+
+    /**
+     * Returns whether a promotion is reduced to retiring the established view
+     * and moving the winning voting - with the removal of the previous views,
+     * of leftover '_trash_' nodes and of duplicate ongoingVotings nodes
+     * done asynchronously after the promotion was committed
+     * @return whether the cleanup is done after the promotion was committed
+     */
+    public boolean isFastPromotionEnabled() {
+        return fastPromotion;
+    }
+
+    /**
+     * Returns whether an instance that starts up as the only live instance
+     * votes for and promotes its view right away during startup - instead
+     * of waiting for the first view check
+     * @return whether a single instance establishes its view during startup
+     */
+    public boolean isSingleInstanceFastPathEnabled() {
+        return singleInstanceFastPath;
+    }
+
+    /**
+     * Returns whether new votings (and hence established views) keep their
+     * members in properties of the voting node - instead of a ./members child
+     * with one node per member. Both formats are always read.
+     * @return whether new votings are written in the compact format
+     */
+    public boolean isCompactViewStorageEnabled() {
+        return compactViewStorage;
+    }
+
 }
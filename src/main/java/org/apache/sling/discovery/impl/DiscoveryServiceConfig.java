@@ -135,4 +135,154 @@ public @interface DiscoveryServiceConfig {
     @AttributeDefinition(name = "%useSyncTokenServiceEnabled.name", description = "%useSyncTokenServiceEnabled.description")
     boolean useSyncTokenServiceEnabled() default true;
 
+    /**
+     * The maximum number of idle service ResourceResolvers each discovery component
+     * keeps for reuse - 0 disables reuse and logs in a new ResourceResolver each time
+     */
+    @AttributeDefinition(name = "%resourceResolverMaxIdle.name", description = "%resourceResolverMaxIdle.description")
+    int resourceResolverMaxIdle() default DEFAULT_RESOURCE_RESOLVER_MAX_IDLE;
+    int DEFAULT_RESOURCE_RESOLVER_MAX_IDLE = 2;
+
+    /**
+     * The maximum age (in seconds) of a reused ResourceResolver after which it is
+     * closed and replaced by a newly logged-in one
+     */
+    @AttributeDefinition(name = "%resourceResolverMaxAge.name", description = "%resourceResolverMaxAge.description")
+    long resourceResolverMaxAge() default DEFAULT_RESOURCE_RESOLVER_MAX_AGE;
+    long DEFAULT_RESOURCE_RESOLVER_MAX_AGE = 600;
+
+    /**
+     * The interval (in seconds) in which the in-memory index of live instances is
+     * reconciled with a full read of the clusterInstances resource
+     */
+    @AttributeDefinition(name = "%liveInstancesReconcileInterval.name", description = "%liveInstancesReconcileInterval.description")
+    long liveInstancesReconcileInterval() default DEFAULT_LIVE_INSTANCES_RECONCILE_INTERVAL;
+    long DEFAULT_LIVE_INSTANCES_RECONCILE_INTERVAL = 300;
+
+    /**
+     * The number of heartbeatTimeouts after which the entry of a dead instance
+     * is removed from the clusterInstances resource - 0 disables the removal
+     */
+    @AttributeDefinition(name = "%clusterInstancesRetentionFactor.name", description = "%clusterInstancesRetentionFactor.description")
+    int clusterInstancesRetentionFactor() default DEFAULT_CLUSTER_INSTANCES_RETENTION_FACTOR;
+    int DEFAULT_CLUSTER_INSTANCES_RETENTION_FACTOR = 0;
+
+    /**
+     * The time (in milliseconds) the voting events are collected before the
+     * ongoing votings are analyzed once for all of them
+     */
+    @AttributeDefinition(name = "%votingEventDebounce.name", description = "%votingEventDebounce.description")
+    long votingEventDebounce() default DEFAULT_VOTING_EVENT_DEBOUNCE;
+    long DEFAULT_VOTING_EVENT_DEBOUNCE = 100;
+
+    /**
+     * The time (in milliseconds) without further topology-relevant events after
+     * which the topology is checked for changes
+     */
+    @AttributeDefinition(name = "%topologyChangeQuietPeriod.name", description = "%topologyChangeQuietPeriod.description")
+    long topologyChangeQuietPeriod() default DEFAULT_TOPOLOGY_CHANGE_QUIET_PERIOD;
+    long DEFAULT_TOPOLOGY_CHANGE_QUIET_PERIOD = 200;
+
+    /**
+     * The maximum time (in milliseconds) between a topology-relevant event
+     * and the topology check covering it
+     */
+    @AttributeDefinition(name = "%topologyChangeMaxDelay.name", description = "%topologyChangeMaxDelay.description")
+    long topologyChangeMaxDelay() default DEFAULT_TOPOLOGY_CHANGE_MAX_DELAY;
+    long DEFAULT_TOPOLOGY_CHANGE_MAX_DELAY = 2000;
+
+    /**
+     * The liveness mode: 'timeout' considers an instance live as long as its
+     * last heartbeat is within the heartbeatTimeout, 'phiAccrual' additionally
+     * suspects instances based on the observed heartbeat inter-arrival times
+     */
+    @AttributeDefinition(name = "%livenessMode.name", description = "%livenessMode.description")
+    String livenessMode() default DEFAULT_LIVENESS_MODE;
+    String DEFAULT_LIVENESS_MODE = "timeout";
+
+    /**
+     * The suspicion level (phi) from which on an instance is considered
+     * failed in the 'phiAccrual' livenessMode
+     */
+    @AttributeDefinition(name = "%phiAccrualThreshold.name", description = "%phiAccrualThreshold.description")
+    double phiAccrualThreshold() default DEFAULT_PHI_ACCRUAL_THRESHOLD;
+    double DEFAULT_PHI_ACCRUAL_THRESHOLD = 8.0;
+
+    /**
+     * The number of heartbeat inter-arrival times kept per instance
+     * in the 'phiAccrual' livenessMode
+     */
+    @AttributeDefinition(name = "%phiAccrualWindowSize.name", description = "%phiAccrualWindowSize.description")
+    int phiAccrualWindowSize() default DEFAULT_PHI_ACCRUAL_WINDOW_SIZE;
+    int DEFAULT_PHI_ACCRUAL_WINDOW_SIZE = 100;
+
+    /**
+     * When enabled the changed properties are written together with the
+     * heartbeat, in one commit
+     */
+    @AttributeDefinition(name = "%mergePropertiesIntoHeartbeat.name", description = "%mergePropertiesIntoHeartbeat.description")
+    boolean mergePropertiesIntoHeartbeat() default false;
+
+    /**
+     * The interval (in seconds) in which the properties are compared with
+     * the repository even if the PropertyProviders report unchanged values -
+     * 0 always compares them
+     */
+    @AttributeDefinition(name = "%propertiesReconcileInterval.name", description = "%propertiesReconcileInterval.description")
+    long propertiesReconcileInterval() default DEFAULT_PROPERTIES_RECONCILE_INTERVAL;
+    long DEFAULT_PROPERTIES_RECONCILE_INTERVAL = 300;
+
+    /**
+     * The time (in millis) the PropertyProviders are waited for when polled
+     * concurrently - 0 (the default) polls them one after the other in the
+     * heartbeat thread
+     */
+    @AttributeDefinition(name = "%propertyProviderTimeout.name", description = "%propertyProviderTimeout.description")
+    long propertyProviderTimeout() default DEFAULT_PROPERTY_PROVIDER_TIMEOUT;
+    long DEFAULT_PROPERTY_PROVIDER_TIMEOUT = 0;
+
+    /**
+     * When true the cluster-local heartbeat, the properties update and the
+     * connector pings run independently of each other
+     */
+    @AttributeDefinition(name = "%heartbeatLanes.name", description = "%heartbeatLanes.description")
+    boolean heartbeatLanes() default false;
+
+    /**
+     * The interval (in millis) in which the view is checked while votings are
+     * ongoing or the established view doesn't match yet - 0 disables it
+     */
+    @AttributeDefinition(name = "%fastCheckViewInterval.name", description = "%fastCheckViewInterval.description")
+    long fastCheckViewInterval() default DEFAULT_FAST_CHECK_VIEW_INTERVAL;
+    long DEFAULT_FAST_CHECK_VIEW_INTERVAL = 0;
+
+    /**
+     * The time (in millis) per rank in the live instances an instance waits
+     * before initiating a new voting itself - 0 disables it
+     */
+    @AttributeDefinition(name = "%votingInitiationDelay.name", description = "%votingInitiationDelay.description")
+    long votingInitiationDelay() default DEFAULT_VOTING_INITIATION_DELAY;
+    long DEFAULT_VOTING_INITIATION_DELAY = 0;
+
+    /**
+     * When true a promotion only retires the established view and moves the
+     * winning voting - the previous views are cleaned up after the commit
+     */
+    @AttributeDefinition(name = "%fastPromotion.name", description = "%fastPromotion.description")
+    boolean fastPromotion() default false;
+
+    /**
+     * When true an instance that starts up as the only live instance
+     * establishes its view right away
+     */
+    @AttributeDefinition(name = "%singleInstanceFastPath.name", description = "%singleInstanceFastPath.description")
+    boolean singleInstanceFastPath() default false;
+
+    /**
+     * When true new votings keep their members in properties of the voting
+     * node instead of one child node per member
+     */
+    @AttributeDefinition(name = "%compactViewStorage.name", description = "%compactViewStorage.description")
+    boolean compactViewStorage() default false;
+
 }
@@ -32,6 +32,15 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.sling.api.resource.LoginException;
@@ -47,6 +56,7 @@ import org.apache.sling.discovery.PropertyProvider;
 import org.apache.sling.discovery.TopologyEvent;
 import org.apache.sling.discovery.TopologyEvent.Type;
 import org.apache.sling.discovery.TopologyEventListener;
+import org.apache.sling.discovery.TopologyView;
 import org.apache.sling.discovery.base.commons.BaseDiscoveryService;
 import org.apache.sling.discovery.base.commons.ClusterViewService;
 import org.apache.sling.discovery.base.commons.DefaultTopologyView;
@@ -64,8 +74,13 @@ import org.apache.sling.discovery.commons.providers.spi.LocalClusterView;
 import org.apache.sling.discovery.commons.providers.spi.base.SyncTokenService;
 import org.apache.sling.discovery.commons.providers.util.PropertyNameHelper;
 import org.apache.sling.discovery.commons.providers.util.ResourceHelper;
+import org.apache.sling.discovery.impl.cluster.ClusterViewChangeListener;
 import org.apache.sling.discovery.impl.cluster.ClusterViewServiceImpl;
+import org.apache.sling.discovery.impl.cluster.voting.VotingTimelines;
+import org.apache.sling.discovery.impl.common.ResourceResolverPool;
 import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHandler;
+import org.apache.sling.discovery.impl.common.jfr.DiscoveryEvents;
+import org.apache.sling.discovery.impl.common.metrics.DiscoveryMetrics;
 import org.apache.sling.settings.SlingSettingsService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -89,6 +104,9 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
 
     private static final Logger logger = LoggerFactory.getLogger(DiscoveryServiceImpl.class);
 
+    /** the maximum number of threads polling the PropertyProviders concurrently **/
+    private static final int MAX_PROPERTY_POLL_THREADS = 4;
+
     /**
      * This ClusterSyncService just 'passes the call through', ie it doesn't actually
      * do anything in sync but just calls callback.run() immediately. It therefore
@@ -119,6 +137,21 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
     /** lock object used for synching bind/unbind and topology event sending **/
     private final Object lock = new Object();
 
+    /**
+     * the property values last published to (or verified against) the
+     * repository - null if unknown. Guarded by lock.
+     **/
+    private Map<String, String> publishedProperties;
+
+    /** the time (in millis) publishedProperties were last compared with the repository **/
+    private long publishedPropertiesReconciledAt;
+
+    /** the property values written via writeProperties - published once committed **/
+    private Map<String, String> pendingProperties;
+
+    /** the threads polling the PropertyProviders - created on first use **/
+    private ExecutorService propertyPollExecutor;
+
     /**
      * whether or not this service is activated - necessary to avoid sending
      * events to discovery awares before activate is done
@@ -149,21 +182,56 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
     @Reference
     private SyncTokenService syncTokenService;
 
+    @Reference
+    private DiscoveryMetrics metrics;
+
+    @Reference
+    private VotingTimelines votingTimelines;
+
     /** the slingId of the local instance **/
     private String slingId;
 
     private ServiceRegistration mbeanRegistration;
 
+    /** the long-lived ResourceResolvers used to store the properties **/
+    private ResourceResolverPool resourceResolverPool;
+
+    /** set on deactivate - no resolvers are pooled thereafter **/
+    private boolean resolversClosed = false;
+
     private ViewStateManager viewStateManager;
 
     private final ReentrantLock viewStateManagerLock = new ReentrantLock();
 
     private final List<TopologyEventListener> pendingListeners = new LinkedList<TopologyEventListener>();
 
+    /** the time (in millis) the last TOPOLOGY_INIT or TOPOLOGY_CHANGED was sent - -1 if none yet **/
+    private volatile long lastTopologyChangeAt = -1;
+
+    /** the listener coalescing the topology-relevant events - set while it is registered **/
+    private volatile ClusterViewChangeListener clusterViewChangeListener;
+
     private final TopologyEventListener changePropagationListener = new TopologyEventListener() {
 
         @Override
         public void handleTopologyEvent(TopologyEvent event) {
+            if (event.getType() == Type.TOPOLOGY_INIT || event.getType() == Type.TOPOLOGY_CHANGED) {
+                lastTopologyChangeAt = System.currentTimeMillis();
+                final VotingTimelines timelines = votingTimelines;
+                final TopologyView newView = event.getNewView();
+                if (timelines != null && newView != null && newView.getLocalInstance() != null
+                        && newView.getLocalInstance().getClusterView() instanceof LocalClusterView) {
+                    // the syncTokenId of the local cluster is the id of the established view
+                    timelines.eventSent(((LocalClusterView) newView.getLocalInstance().getClusterView())
+                            .getLocalClusterSyncTokenId());
+                }
+            }
+            final DiscoveryMetrics m = metrics;
+            if (m != null && event.getType() == Type.TOPOLOGY_CHANGING) {
+                m.topologyChanging();
+            } else if (m != null && event.getType() == Type.TOPOLOGY_CHANGED) {
+                m.topologyChanged();
+            }
             HeartbeatHandler handler = heartbeatHandler;
             if (activated && handler != null
                     && (event.getType() == Type.TOPOLOGY_CHANGED || event.getType() == Type.PROPERTIES_CHANGED)) {
@@ -214,7 +282,7 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
             final Dictionary<String, String> mbeanProps = new Hashtable<String, String>();
             mbeanProps.put("jmx.objectname", "org.apache.sling:type=discovery,name=DiscoveryServiceImpl");
 
-            final DiscoveryServiceMBeanImpl mbean = new DiscoveryServiceMBeanImpl(heartbeatHandler);
+            final DiscoveryServiceMBeanImpl mbean = new DiscoveryServiceMBeanImpl(heartbeatHandler, this);
             this.mbeanRegistration = bundleContext.registerService(DiscoveryServiceMBeanImpl.class.getName(), mbean, mbeanProps);
         } catch (Throwable t) {
             logger.warn("registerMBean: Unable to register DiscoveryServiceImpl MBean", t);
@@ -378,6 +446,47 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
         } catch(Exception e) {
             logger.error("deactivate: Error on unregister: "+e, e);
         }
+        synchronized(this) {
+            resolversClosed = true;
+            if (resourceResolverPool != null) {
+                // kept, so that no new pool is created: the closed pool closes
+                // the resolvers still acquired thereafter on release
+                resourceResolverPool.close();
+            }
+            if (propertyPollExecutor != null) {
+                propertyPollExecutor.shutdownNow();
+                propertyPollExecutor = null;
+            }
+        }
+    }
+
+    /** Get or create the threads polling the PropertyProviders **/
+    private synchronized ExecutorService getPropertyPollExecutor() {
+        if (propertyPollExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            propertyPollExecutor = Executors.newFixedThreadPool(MAX_PROPERTY_POLL_THREADS, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "discovery.impl.propertyPoller-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return propertyPollExecutor;
+    }
+
+    /** Get or create the pool of ResourceResolvers - which is closed, ie not pooling, once deactivated **/
+    private synchronized ResourceResolverPool getResourceResolverPool() {
+        if (resourceResolverPool == null) {
+            resourceResolverPool = new ResourceResolverPool(resourceResolverFactory,
+                    "discovery.impl.updateProperties", config);
+            if (resolversClosed) {
+                resourceResolverPool.close();
+            }
+        }
+        return resourceResolverPool;
     }
 
     /**
@@ -501,92 +610,355 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
      * @see Config#getClusterInstancesPath()
      */
     private void doUpdateProperties() {
+        final DiscoveryEvents.Span span = DiscoveryEvents.begin(DiscoveryEvents.Kind.UPDATE_PROPERTIES);
+        String outcome = "failed";
+        try {
+            outcome = doUpdatePropertiesNow();
+        } finally {
+            span.end(0, outcome);
+        }
+    }
+
+    /**
+     * Update the properties - see doUpdateProperties
+     * @return the outcome: 'too early', 'unchanged', 'up to date' or 'written'
+     */
+    private String doUpdatePropertiesNow() {
         if (resourceResolverFactory == null) {
             // cannot update the properties then..
             logger.debug("doUpdateProperties: too early to update the properties. resourceResolverFactory not yet set.");
-            return;
+            return "too early";
         } else {
             logger.debug("doUpdateProperties: updating properties now..");
         }
 
-        final Map<String, String> newProps = new HashMap<String, String>();
-        for (final ProviderInfo info : this.providerInfos) {
-            info.refreshProperties();
-            newProps.putAll(info.properties);
+        final Map<String, String> newProps = pollProperties();
+        if (isPublished(newProps)) {
+            logger.debug("doUpdateProperties: properties unchanged since last published, not accessing the repository.");
+            return "unchanged";
         }
 
+        String outcome = "up to date";
         ResourceResolver resourceResolver = null;
         try {
-            resourceResolver = resourceResolverFactory
-                    .getServiceResourceResolver(null);
-
-            Resource myInstance = ResourceHelper
-                    .getOrCreateResource(
-                            resourceResolver,
-                            config.getClusterInstancesPath()
-                                    + "/" + slingId + "/properties");
-            // SLING-2879 - revert/refresh resourceResolver here to work
-            // around a potential issue with jackrabbit in a clustered environment
-            resourceResolver.revert();
-            resourceResolver.refresh();
-
-            final ModifiableValueMap myInstanceMap = myInstance.adaptTo(ModifiableValueMap.class);
-            final Set<String> keys = new HashSet<String>(myInstanceMap.keySet());
-            for(final String key : keys) {
-                if (newProps.containsKey(key)) {
-                    // perfect
-                    continue;
-                } else if (key.indexOf(":")!=-1) {
-                    // ignore
-                    continue;
-                } else {
-                    // remove
-                	myInstanceMap.remove(key);
-                }
-            }
-
-            boolean anyChanges = false;
-            for(final Entry<String, String> entry : newProps.entrySet()) {
-            	Object existingValue = myInstanceMap.get(entry.getKey());
-            	if (entry.getValue().equals(existingValue)) {
-            	    // SLING-3389: dont rewrite the properties if nothing changed!
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("doUpdateProperties: unchanged: {}={}", entry.getKey(), entry.getValue());
-                    }
-            	    continue;
-            	}
-            	if (logger.isDebugEnabled()) {
-            	    logger.debug("doUpdateProperties: changed: {}={}", entry.getKey(), entry.getValue());
-            	}
-            	anyChanges = true;
-                myInstanceMap.put(entry.getKey(), entry.getValue());
-            }
-
-            if (anyChanges) {
+            resourceResolver = getResourceResolverPool().acquire();
+            if (doWriteProperties(resourceResolver, newProps)) {
                 resourceResolver.commit();
+                if (metrics != null) {
+                    metrics.repositoryCommit();
+                }
+                // don't wait for the change event to see the new properties
+                clusterViewService.invalidateCachedView();
+                outcome = "written";
             }
+            markPublished(newProps);
         } catch (LoginException e) {
+            publishedProperties = null;
             logger.error(
                     "handleEvent: could not log in administratively: " + e, e);
             throw new RuntimeException("Could not log in to repository (" + e
                     + ")", e);
         } catch (PersistenceException e) {
+            publishedProperties = null;
             logger.error("handleEvent: got a PersistenceException: " + e, e);
+            getResourceResolverPool().discard(resourceResolver);
+            resourceResolver = null;
             throw new RuntimeException(
                     "Exception while talking to repository (" + e + ")", e);
         } finally {
             if (resourceResolver != null) {
-                resourceResolver.close();
+                getResourceResolverPool().release(resourceResolver);
             }
         }
 
         logger.debug("doUpdateProperties: updating properties done.");
+        return outcome;
+    }
+
+    /** Returns whether the PropertyProviders are polled concurrently - see refreshPropertyProviders **/
+    private boolean isConcurrentPropertyPolling() {
+        return config != null && config.getPropertyProviderTimeoutMillis() > 0;
+    }
+
+    /**
+     * Refresh the PropertyProviders concurrently and wait for them until the
+     * propertyProviderTimeout - the ones that don't answer in time contribute
+     * their last known values, a slow provider must not delay the heartbeat.
+     * <p>
+     * Must be called without holding the lock - only the submission is done
+     * with the lock held, so that the heartbeat and the view check are not
+     * blocked while waiting. A no-op unless the propertyProviderTimeout is set.
+     * @see Config#getPropertyProviderTimeoutMillis()
+     */
+    private void refreshPropertyProviders() {
+        if (!isConcurrentPropertyPolling()) {
+            return;
+        }
+        final List<ProviderInfo> infos;
+        synchronized (lock) {
+            if (this.providerInfos.isEmpty()) {
+                return;
+            }
+            infos = new ArrayList<ProviderInfo>(this.providerInfos);
+            final ExecutorService executor = getPropertyPollExecutor();
+            for (final ProviderInfo info : infos) {
+                info.submitRefresh(executor);
+            }
+        }
+        final long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(config.getPropertyProviderTimeoutMillis());
+        for (final ProviderInfo info : infos) {
+            info.awaitRefresh(deadline);
+        }
+    }
+
+    /**
+     * Poll the current values of all PropertyProviders.
+     * <p>
+     * Unless polled concurrently the providers are refreshed one after the
+     * other here. Otherwise their values as of the last refreshPropertyProviders
+     * are used - which the caller invokes before acquiring the lock.
+     */
+    private Map<String, String> pollProperties() {
+        if (!isConcurrentPropertyPolling()) {
+            for (final ProviderInfo info : this.providerInfos) {
+                info.refreshProperties();
+            }
+        }
+        final Map<String, String> newProps = new HashMap<String, String>();
+        for (final ProviderInfo info : this.providerInfos) {
+            newProps.putAll(info.properties);
+        }
+        return newProps;
+    }
+
+    /**
+     * Returns the time (in millis) the last TOPOLOGY_INIT or TOPOLOGY_CHANGED
+     * was sent to the listeners
+     * @return the time of the last topology change - -1 if none was sent yet
+     */
+    public long getLastTopologyChangeAt() {
+        return lastTopologyChangeAt;
+    }
+
+    /**
+     * Returns whether the topology last sent to the listeners is current -
+     * without accessing the repository
+     * @return whether the topology last sent to the listeners is current
+     */
+    public boolean isLocalViewCurrent() {
+        final DefaultTopologyView view = getOldView();
+        return view != null && view.isCurrent();
+    }
+
+    /**
+     * Returns the leader of the local cluster as of the topology last sent
+     * to the listeners - without accessing the repository
+     * @return the slingId of the leader - null if there is no topology yet
+     */
+    public String getLocalLeaderId() {
+        final DefaultTopologyView view = getOldView();
+        if (view == null) {
+            return null;
+        }
+        final InstanceDescription localInstance = view.getLocalInstance();
+        if (localInstance == null || localInstance.getClusterView() == null) {
+            return null;
+        }
+        final InstanceDescription leader = localInstance.getClusterView().getLeader();
+        return leader == null ? null : leader.getSlingId();
+    }
+
+    /** Set by the ClusterViewChangeListener while it is registered - null otherwise **/
+    public void setClusterViewChangeListener(final ClusterViewChangeListener clusterViewChangeListener) {
+        this.clusterViewChangeListener = clusterViewChangeListener;
+    }
+
+    /**
+     * Returns the number of topology-relevant repository events received -
+     * 0 if the ClusterViewChangeListener is not registered
+     */
+    public long getTopologyEventsReceived() {
+        final ClusterViewChangeListener listener = clusterViewChangeListener;
+        return listener == null ? 0 : listener.getTopologyEventsReceived();
+    }
+
+    /**
+     * Returns the number of topology checks the topology-relevant repository
+     * events were coalesced into - 0 if the ClusterViewChangeListener is not
+     * registered
+     */
+    public long getTopologyChecksExecuted() {
+        final ClusterViewChangeListener listener = clusterViewChangeListener;
+        return listener == null ? 0 : listener.getTopologyChecksExecuted();
+    }
+
+    /**
+     * Returns the timelines of the most recent votings, one line per voting -
+     * the most recent first
+     */
+    public List<String> getVotingTimelines() {
+        if (votingTimelines == null) {
+            return Collections.emptyList();
+        }
+        return votingTimelines.getTimelines();
+    }
+
+    /**
+     * Returns the polling statistics of the PropertyProviders, one line per
+     * provider - in the order their properties are applied
+     */
+    public List<String> getPropertyProviderStatistics() {
+        synchronized (lock) {
+            final List<String> result = new ArrayList<String>(this.providerInfos.size());
+            for (final ProviderInfo info : this.providerInfos) {
+                result.add(info.getStatistics());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Check whether the given property values equal those last published -
+     * and whether they were compared with the repository recently enough
+     * to skip accessing the repository altogether
+     */
+    private boolean isPublished(final Map<String, String> newProps) {
+        if (publishedProperties == null || !publishedProperties.equals(newProps)) {
+            return false;
+        }
+        return System.currentTimeMillis() - publishedPropertiesReconciledAt
+                < config.getPropertiesReconcileIntervalMillis();
+    }
+
+    /** Take note that the given property values are now stored in the repository **/
+    private void markPublished(final Map<String, String> newProps) {
+        publishedProperties = newProps;
+        publishedPropertiesReconciledAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget the property values last published - the next update compares
+     * them with the repository again. Invoked when the properties of the
+     * local instance were (potentially) modified by someone else.
+     */
+    public void invalidatePublishedProperties() {
+        synchronized (lock) {
+            publishedProperties = null;
+        }
+    }
+
+    /**
+     * Write the current values of the PropertyProviders to the given
+     * resourceResolver - without committing.
+     * <p>
+     * SLING-3389: unchanged values are not rewritten.
+     * @return true if any value changed, ie if a commit is required
+     */
+    private boolean doWriteProperties(final ResourceResolver resourceResolver,
+            final Map<String, String> newProps) throws PersistenceException {
+        Resource myInstance = ResourceHelper
+                .getOrCreateResource(
+                        resourceResolver,
+                        config.getClusterInstancesPath()
+                                + "/" + slingId + "/properties");
+        // SLING-2879 - revert/refresh resourceResolver here to work
+        // around a potential issue with jackrabbit in a clustered environment
+        resourceResolver.revert();
+        resourceResolver.refresh();
+
+        final ModifiableValueMap myInstanceMap = myInstance.adaptTo(ModifiableValueMap.class);
+        final Set<String> keys = new HashSet<String>(myInstanceMap.keySet());
+        boolean anyChanges = false;
+        for(final String key : keys) {
+            if (newProps.containsKey(key)) {
+                // perfect
+                continue;
+            } else if (key.indexOf(":")!=-1) {
+                // ignore
+                continue;
+            } else {
+                // remove
+            	myInstanceMap.remove(key);
+            	anyChanges = true;
+            }
+        }
+
+        for(final Entry<String, String> entry : newProps.entrySet()) {
+        	Object existingValue = myInstanceMap.get(entry.getKey());
+        	if (entry.getValue().equals(existingValue)) {
+        	    // SLING-3389: dont rewrite the properties if nothing changed!
+                if (logger.isDebugEnabled()) {
+                    logger.debug("doUpdateProperties: unchanged: {}={}", entry.getKey(), entry.getValue());
+                }
+        	    continue;
+        	}
+        	if (logger.isDebugEnabled()) {
+        	    logger.debug("doUpdateProperties: changed: {}={}", entry.getKey(), entry.getValue());
+        	}
+        	anyChanges = true;
+            myInstanceMap.put(entry.getKey(), entry.getValue());
+        }
+        return anyChanges;
+    }
+
+    /**
+     * Write the current values of the PropertyProviders to the given
+     * resourceResolver as part of the heartbeat - without committing. The
+     * caller commits them together with the heartbeat and then invokes
+     * handlePropertiesWritten.
+     * <p>
+     * Doesn't access the repository if the values equal those last published.
+     * @return true if any value changed
+     */
+    public boolean writeProperties(final ResourceResolver resourceResolver) throws PersistenceException {
+        refreshPropertyProviders();
+        synchronized (lock) {
+            pendingProperties = null;
+            if (resourceResolverFactory == null) {
+                logger.debug("writeProperties: too early to update the properties. resourceResolverFactory not yet set.");
+                return false;
+            }
+            final Map<String, String> newProps = pollProperties();
+            if (isPublished(newProps)) {
+                logger.debug("writeProperties: properties unchanged since last published, not accessing the repository.");
+                return false;
+            }
+            try {
+                final boolean changed = doWriteProperties(resourceResolver, newProps);
+                pendingProperties = newProps;
+                return changed;
+            } catch (PersistenceException e) {
+                publishedProperties = null;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Handle the fact that the properties written via writeProperties were
+     * committed - and send a topology event if applicable
+     * @param changed whether any value had changed
+     */
+    public void handlePropertiesWritten(final boolean changed) {
+        synchronized (lock) {
+            if (pendingProperties != null) {
+                markPublished(pendingProperties);
+                pendingProperties = null;
+            }
+            if (changed) {
+                // don't wait for the change event to see the new properties
+                clusterViewService.invalidateCachedView();
+            }
+            checkForTopologyChange();
+        }
     }
 
     /**
      * Update the properties and sent a topology event if applicable
      */
     public void updateProperties() {
+        refreshPropertyProviders();
         synchronized (lock) {
             logger.debug("updateProperties: calling doUpdateProperties.");
             doUpdateProperties();
@@ -605,7 +977,18 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
         public final Object propertyProperties;
         public final int ranking;
         public final long serviceId;
-        public final Map<String, String> properties = new HashMap<String, String>();
+        /** the last known values - replaced as a whole by each refresh **/
+        public volatile Map<String, String> properties = Collections.emptyMap();
+
+        /** the refresh submitted to the poll executor - null if none was submitted yet **/
+        private volatile Future<?> pendingRefresh;
+
+        private long refreshes;
+        private long lateRefreshes;
+        private long failedRefreshes;
+        private long totalRefreshNanos;
+        private long maxRefreshNanos;
+        private long lastRefreshNanos;
 
         public ProviderInfo(final PropertyProvider provider,
                 final Map<String, Object> serviceProps) {
@@ -622,26 +1005,107 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
         }
 
         public void refreshProperties() {
-            properties.clear();
+            final long start = System.nanoTime();
+            final Map<String, String> newProperties = new HashMap<String, String>();
             if (this.propertyProperties instanceof String) {
                 final String val = provider.getProperty((String) this.propertyProperties);
                 if (val != null) {
-                	putPropertyIfValid((String) this.propertyProperties, val);
+                	putPropertyIfValid(newProperties, (String) this.propertyProperties, val);
                 }
             } else if (this.propertyProperties instanceof String[]) {
                 for (final String name : (String[]) this.propertyProperties) {
                     final String val = provider.getProperty(name);
                     if (val != null) {
-                        putPropertyIfValid(name, val);
+                        putPropertyIfValid(newProperties, name, val);
                     }
                 }
             }
+            properties = newProperties;
+            refreshed(System.nanoTime() - start);
+        }
+
+        /**
+         * Submit a refresh to the given executor - unless the previous one
+         * is still running, in which case that one is waited for again
+         */
+        void submitRefresh(final ExecutorService executor) {
+            if (pendingRefresh != null && !pendingRefresh.isDone()) {
+                return;
+            }
+            try {
+                pendingRefresh = executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            refreshProperties();
+                        } catch (RuntimeException e) {
+                            refreshFailed();
+                            logger.warn("refreshProperties: PropertyProvider " + provider
+                                    + " failed, keeping its last known values: " + e, e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // deactivated in the meantime - keep the last known values
+                pendingRefresh = null;
+            }
+        }
+
+        /**
+         * Wait for the submitted refresh until the given deadline (nanoTime) -
+         * the last known values remain if it doesn't finish in time
+         */
+        void awaitRefresh(final long deadline) {
+            final Future<?> refresh = pendingRefresh;
+            if (refresh == null) {
+                return;
+            }
+            try {
+                refresh.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                refreshLate();
+                logger.info("awaitRefresh: PropertyProvider {} is late, using its last known values", provider);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // refreshProperties failures are handled in the refresh itself
+                logger.warn("awaitRefresh: unexpected exception: " + e, e);
+            }
+        }
+
+        private synchronized void refreshed(final long nanos) {
+            refreshes++;
+            totalRefreshNanos += nanos;
+            maxRefreshNanos = Math.max(maxRefreshNanos, nanos);
+            lastRefreshNanos = nanos;
+        }
+
+        private synchronized void refreshLate() {
+            lateRefreshes++;
+        }
+
+        private synchronized void refreshFailed() {
+            failedRefreshes++;
+        }
+
+        /** Returns the refresh statistics of this provider as one line **/
+        synchronized String getStatistics() {
+            return "serviceId=" + serviceId
+                    + ", ranking=" + ranking
+                    + ", refreshes=" + refreshes
+                    + ", late=" + lateRefreshes
+                    + ", failed=" + failedRefreshes
+                    + ", avg=" + (refreshes == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRefreshNanos / refreshes)) + "ms"
+                    + ", max=" + TimeUnit.NANOSECONDS.toMillis(maxRefreshNanos) + "ms"
+                    + ", last=" + TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos) + "ms";
         }
 
         /** SLING-2883 : put property only if valid **/
-		private void putPropertyIfValid(final String name, final String val) {
+		private static void putPropertyIfValid(final Map<String, String> properties,
+		        final String name, final String val) {
 			if (PropertyNameHelper.isValidPropertyName(name)) {
-				this.properties.put(name, val);
+				properties.put(name, val);
 			}
 		}
 
@@ -716,28 +1180,51 @@ public class DiscoveryServiceImpl extends BaseDiscoveryService {
      * Check the current topology for any potential change
      */
     public void checkForTopologyChange() {
+        final DiscoveryEvents.Span span = DiscoveryEvents.begin(DiscoveryEvents.Kind.TOPOLOGY_EVENT);
+        int members = 0;
+        String outcome = "inactive";
         viewStateManagerLock.lock();
         try{
             if (!activated) {
                 logger.debug("checkForTopologyChange: not yet activated, ignoring");
                 return;
             }
+            outcome = "failed";
             DefaultTopologyView t = (DefaultTopologyView) getTopology();
+            members = t.getInstances().size();
             if (t.isCurrent()) {
                 // if we have a valid view, let the viewStateManager do the
                 // comparison and sending of an event, if necessary
                 viewStateManager.handleNewView(t);
                 setOldView(t);
+                outcome = "current";
             } else {
                 // if we don't have a view, then we might have to send
                 // a CHANGING event, let that be decided by the viewStateManager as well
                 viewStateManager.handleChanging();
+                outcome = "changing";
             }
         } finally {
             if (viewStateManagerLock!=null) {
                 viewStateManagerLock.unlock();
             }
+            span.end(members, outcome);
+        }
+    }
+
+    /**
+     * Handle the fact that another instance has left the cluster orderly -
+     * check the view right away rather than waiting for the next heartbeat
+     * interval, so that a new voting is started asap
+     */
+    public void handleInstanceLeft(final String leftSlingId) {
+        final HeartbeatHandler handler = heartbeatHandler;
+        if (!activated || handler == null) {
+            logger.debug("handleInstanceLeft: not activated, ignoring");
+            return;
         }
+        logger.info("handleInstanceLeft: instance has left the cluster, triggering a view check: {}", leftSlingId);
+        handler.triggerAsyncConnectorPing();
     }
 
     /**
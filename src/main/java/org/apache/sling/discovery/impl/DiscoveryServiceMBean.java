@@ -28,4 +28,80 @@ public interface DiscoveryServiceMBean {
      */
     public void startNewVoting();
 
+    /**
+     * Returns the statistics of the heartbeats observed per instance, one line
+     * per slingId - incl the suspicion level of the 'phiAccrual' liveness mode.
+     */
+    public String[] getHeartbeatStatistics();
+
+    /**
+     * Returns the statistics of the independent heartbeat lanes, one line per
+     * lane - empty unless the heartbeatLanes are enabled.
+     */
+    public String[] getHeartbeatLaneStatistics();
+
+    /**
+     * Returns the polling statistics of the PropertyProviders, one line per
+     * provider - incl how often they were late or failed and their latencies.
+     */
+    public String[] getPropertyProviderStatistics();
+
+    /**
+     * Returns the time (in millis) the local instance last successfully wrote
+     * its cluster-local heartbeat - -1 if none was written yet.
+     */
+    public long getLastHeartbeatWrittenAt();
+
+    /**
+     * Returns the slingIds of the live instances as of the last view check.
+     */
+    public String[] getLiveInstances();
+
+    /**
+     * Returns the id of the established view as of the last view check -
+     * null if there was none.
+     */
+    public String getEstablishedViewId();
+
+    /**
+     * Returns the slingId of the leader of the local cluster as of the
+     * topology last sent to the listeners.
+     */
+    public String getLeaderId();
+
+    /**
+     * Returns the number of ongoing votings as of the last view check.
+     */
+    public int getOngoingVotings();
+
+    /**
+     * Returns the time (in millis) since the last TOPOLOGY_INIT or
+     * TOPOLOGY_CHANGED was sent to the listeners - -1 if none was sent yet.
+     */
+    public long getMillisSinceLastTopologyChange();
+
+    /**
+     * Returns whether the topology last sent to the listeners is current.
+     */
+    public boolean isLocalViewCurrent();
+
+    /**
+     * Returns the number of topology-relevant repository events received
+     * since the event listener was registered.
+     */
+    public long getTopologyEventsReceived();
+
+    /**
+     * Returns the number of topology checks the topology-relevant repository
+     * events were coalesced into since the event listener was registered.
+     */
+    public long getTopologyChecksExecuted();
+
+    /**
+     * Returns the timelines of the most recent votings, one line per voting:
+     * when it was created, won, promoted and the topology event sent - and the
+     * latency of each member's vote, as observed by the local instance.
+     */
+    public String[] getVotingTimelines();
+
 }
@@ -18,10 +18,18 @@
  */
 package org.apache.sling.discovery.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
 import javax.management.NotCompliantMBeanException;
 import javax.management.StandardMBean;
 
 import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHandler;
+import org.apache.sling.discovery.impl.common.heartbeat.PhiAccrualFailureDetector.HeartbeatStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,9 +42,13 @@ public class DiscoveryServiceMBeanImpl extends StandardMBean implements Discover
 
     private final HeartbeatHandler heartbeatHandler;
 
-    DiscoveryServiceMBeanImpl(HeartbeatHandler heartbeatHandler) throws NotCompliantMBeanException {
+    private final DiscoveryServiceImpl discoveryService;
+
+    DiscoveryServiceMBeanImpl(HeartbeatHandler heartbeatHandler,
+            DiscoveryServiceImpl discoveryService) throws NotCompliantMBeanException {
         super(DiscoveryServiceMBean.class);
         this.heartbeatHandler = heartbeatHandler;
+        this.discoveryService = discoveryService;
     }
 
     public void startNewVoting() {
@@ -45,4 +57,69 @@ public class DiscoveryServiceMBeanImpl extends StandardMBean implements Discover
         logger.info("startNewVoting: new voting was started.");
     }
 
+    public String[] getHeartbeatStatistics() {
+        final Map<String, HeartbeatStatistics> statistics = new TreeMap<String, HeartbeatStatistics>(
+                heartbeatHandler.getHeartbeatStatistics());
+        final List<String> result = new ArrayList<String>(statistics.size());
+        for (Entry<String, HeartbeatStatistics> entry : statistics.entrySet()) {
+            result.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public String[] getHeartbeatLaneStatistics() {
+        final List<String> result = heartbeatHandler.getHeartbeatLaneStatistics();
+        return result.toArray(new String[result.size()]);
+    }
+
+    public String[] getPropertyProviderStatistics() {
+        final List<String> result = discoveryService.getPropertyProviderStatistics();
+        return result.toArray(new String[result.size()]);
+    }
+
+    // the below are served from the in-memory state only, not from the repository
+
+    public long getLastHeartbeatWrittenAt() {
+        return heartbeatHandler.getLastHeartbeatWrittenAt();
+    }
+
+    public String[] getLiveInstances() {
+        final Set<String> result = heartbeatHandler.getLastLiveInstances();
+        return result.toArray(new String[result.size()]);
+    }
+
+    public String getEstablishedViewId() {
+        return heartbeatHandler.getLastEstablishedViewId();
+    }
+
+    public String getLeaderId() {
+        return discoveryService.getLocalLeaderId();
+    }
+
+    public int getOngoingVotings() {
+        return heartbeatHandler.getLastOngoingVotings();
+    }
+
+    public long getMillisSinceLastTopologyChange() {
+        final long lastTopologyChangeAt = discoveryService.getLastTopologyChangeAt();
+        return lastTopologyChangeAt == -1 ? -1 : System.currentTimeMillis() - lastTopologyChangeAt;
+    }
+
+    public boolean isLocalViewCurrent() {
+        return discoveryService.isLocalViewCurrent();
+    }
+
+    public long getTopologyEventsReceived() {
+        return discoveryService.getTopologyEventsReceived();
+    }
+
+    public long getTopologyChecksExecuted() {
+        return discoveryService.getTopologyChecksExecuted();
+    }
+
+    public String[] getVotingTimelines() {
+        final List<String> result = discoveryService.getVotingTimelines();
+        return result.toArray(new String[result.size()]);
+    }
+
 }
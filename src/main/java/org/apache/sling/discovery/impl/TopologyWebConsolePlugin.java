@@ -55,6 +55,7 @@ import org.apache.sling.discovery.base.connectors.ping.ConnectorRegistry;
 import org.apache.sling.discovery.base.connectors.ping.TopologyConnectorClientInformation;
 import org.apache.sling.discovery.commons.providers.spi.base.ClusterSyncHistory;
 import org.apache.sling.discovery.commons.providers.spi.base.SyncTokenService;
+import org.apache.sling.discovery.impl.cluster.voting.VotingTimelines;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -113,6 +114,9 @@ public class TopologyWebConsolePlugin extends AbstractWebConsolePlugin implement
     @Reference
     private Config config;
 
+    @Reference
+    private VotingTimelines votingTimelines;
+
     private TopologyView currentView;
 
     @Override
@@ -309,6 +313,14 @@ public class TopologyWebConsolePlugin extends AbstractWebConsolePlugin implement
         }
         pw.println("</pre>");
         pw.println("<br/>");
+
+        pw.println("<p class=\"statline ui-state-highlight\">Voting Timelines (most recent first, offsets relative to the creation)</p>");
+        pw.println("<pre>");
+        for (String timeline : votingTimelines.getTimelines()) {
+            pw.println(timeline);
+        }
+        pw.println("</pre>");
+        pw.println("<br/>");
     }
 
     /**
@@ -924,6 +936,14 @@ public class TopologyWebConsolePlugin extends AbstractWebConsolePlugin implement
         pw.println();
         pw.println();
 
+        pw.println("Voting Timelines");
+        pw.println("---------------------------------------");
+        for (String timeline : votingTimelines.getTimelines()) {
+            pw.println(timeline);
+        }
+        pw.println();
+        pw.println();
+
     }
 
     /**
@@ -18,13 +18,18 @@
  */
 package org.apache.sling.discovery.impl.cluster;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Set;
 
 import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.discovery.impl.Config;
 import org.apache.sling.discovery.impl.DiscoveryServiceImpl;
+import org.apache.sling.discovery.impl.common.heartbeat.LiveInstanceTracker;
 import org.apache.sling.settings.SlingSettingsService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -47,6 +52,10 @@ import org.slf4j.LoggerFactory;
 @Component(immediate = true)
 public class ClusterViewChangeListener implements EventHandler {
 
+    /** the attributes written by a plain heartbeat - irrelevant for the topology **/
+    private static final Set<String> HEARTBEAT_ATTRIBUTES = new HashSet<String>(
+            Arrays.asList("lastHeartbeat", "heartbeatSequence"));
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Reference
@@ -57,6 +66,12 @@ public class ClusterViewChangeListener implements EventHandler {
 
     @Reference
     private DiscoveryServiceImpl discoveryService;
+
+    @Reference
+    private ClusterViewServiceImpl clusterViewService;
+
+    @Reference
+    private LiveInstanceTracker liveInstanceTracker;
     
     @Reference
     private Config config;
@@ -68,6 +83,9 @@ public class ClusterViewChangeListener implements EventHandler {
 
     private ServiceRegistration eventHandlerRegistration;
 
+    /** coalesces the events into topology checks - set while registered as EventHandler **/
+    private volatile TopologyChangeCoalescer topologyChangeCoalescer;
+
     @Activate
     protected void activate(final ComponentContext context) {
         this.slingId = slingSettingsService.getSlingId();
@@ -98,9 +116,22 @@ public class ClusterViewChangeListener implements EventHandler {
         }
         path = path + "/*";
         properties.put(EventConstants.EVENT_FILTER, "(&(path="+path+"))");
+        topologyChangeCoalescer = new TopologyChangeCoalescer(
+                "discovery.impl.topologyChangeCoalescer." + slingId, config, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        discoveryService.checkForTopologyChange();
+                    }
+                });
         eventHandlerRegistration = bundleContext.registerService(
                 EventHandler.class.getName(), this, properties);
         logger.info("registerEventHandler: ClusterViewChangeHandler registered as EventHandler");
+        // from now on changes are reported, hence the view can be kept in memory
+        // and the live instances can be tracked
+        clusterViewService.setViewCacheEnabled(true);
+        liveInstanceTracker.setEnabled(true);
+        discoveryService.setClusterViewChangeListener(this);
     }
 
     @Deactivate
@@ -110,6 +141,14 @@ public class ClusterViewChangeListener implements EventHandler {
             logger.info("deactivate: ClusterViewChangeHandler unregistered as EventHandler");
             eventHandlerRegistration = null;
         }
+        final TopologyChangeCoalescer coalescer = topologyChangeCoalescer;
+        topologyChangeCoalescer = null;
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        clusterViewService.setViewCacheEnabled(false);
+        liveInstanceTracker.setEnabled(false);
+        discoveryService.setClusterViewChangeListener(null);
         logger.info("deactivate: deactivated slingId: {}, this: {}", slingId, this);
     }
 
@@ -142,13 +181,16 @@ public class ClusterViewChangeListener implements EventHandler {
 
             final Object resourceChangedAttributes = event
                     .getProperty("resourceChangedAttributes");
+            final Object resourceAddedAttributes = event
+                    .getProperty("resourceAddedAttributes");
+            trackLiveInstance(event.getTopic(), resourcePath, clusterInstancesPath,
+                    resourceChangedAttributes, resourceAddedAttributes);
             if (resourceChangedAttributes != null
                     && resourceChangedAttributes instanceof String[]) {
                 String[] resourceChangedAttributesStrings = (String[]) resourceChangedAttributes;
-                if (resourceChangedAttributesStrings.length == 1
-                        && resourceChangedAttributesStrings[0]
-                                .equals("lastHeartbeat")) {
-                    // then ignore this one
+                if (resourceChangedAttributesStrings.length > 0
+                        && HEARTBEAT_ATTRIBUTES.containsAll(Arrays.asList(resourceChangedAttributesStrings))) {
+                    // then ignore this one for the topology
                     return;
                 }
             }
@@ -164,10 +206,95 @@ public class ClusterViewChangeListener implements EventHandler {
 
     }
 
-    /** Inform the DiscoveryServiceImpl that the topology (might) have changed **/
+    /**
+     * Feed the LiveInstanceTracker with the heartbeats, departures and removals
+     * of the instance resources directly under clusterInstances
+     */
+    private void trackLiveInstance(final String topic, final String resourcePath,
+            final String clusterInstancesPath, final Object resourceChangedAttributes,
+            final Object resourceAddedAttributes) {
+        if (resourcePath.length() <= clusterInstancesPath.length() + 1) {
+            if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+                // clusterInstances itself was removed
+                liveInstanceTracker.invalidate();
+                discoveryService.invalidatePublishedProperties();
+            }
+            return;
+        }
+        final String slingId = resourcePath.substring(clusterInstancesPath.length() + 1);
+        if (slingId.indexOf("/") != -1) {
+            // properties or announcements of an instance - not a heartbeat
+            if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)
+                    && slingId.equals(this.slingId + "/properties")) {
+                // the local properties must be rewritten, even if unchanged
+                discoveryService.invalidatePublishedProperties();
+            }
+            return;
+        }
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+            liveInstanceTracker.instanceRemoved(slingId);
+            if (slingId.equals(this.slingId)) {
+                discoveryService.invalidatePublishedProperties();
+            }
+        } else if (containsLeftAt(resourceChangedAttributes) || containsLeftAt(resourceAddedAttributes)) {
+            // the instance has stopped orderly - no need to wait for its heartbeat to time out.
+            // leftAt is removed by the first heartbeat, hence is usually added, not changed
+            liveInstanceTracker.instanceLeft(slingId);
+            if (!slingId.equals(this.slingId)) {
+                discoveryService.handleInstanceLeft(slingId);
+            }
+        } else if (SlingConstants.TOPIC_RESOURCE_ADDED.equals(topic)) {
+            liveInstanceTracker.heartbeatObserved(slingId);
+        } else if (resourceChangedAttributes == null
+                || (resourceChangedAttributes instanceof String[]
+                        && !Collections.disjoint(HEARTBEAT_ATTRIBUTES, Arrays.asList((String[]) resourceChangedAttributes)))) {
+            // a change of one of the HEARTBEAT_ATTRIBUTES is a heartbeat. Without
+            // the changed attributes it can't be told what was written (eg the
+            // runtimeId or leaderElectionId at startup) - it is taken as a
+            // heartbeat too, as the instance evidently is alive. A leftAt in an
+            // event without any attributes is picked up by the next reconcile.
+            liveInstanceTracker.heartbeatObserved(slingId);
+        }
+    }
+
+    /** Check whether the given attributes of an event contain 'leftAt' **/
+    private static boolean containsLeftAt(final Object attributes) {
+        return attributes instanceof String[]
+                && Arrays.asList((String[]) attributes).contains("leftAt");
+    }
+
+    /**
+     * Returns the number of topology-relevant events received since the
+     * listener was registered - 0 if it is not registered
+     */
+    public long getTopologyEventsReceived() {
+        final TopologyChangeCoalescer coalescer = topologyChangeCoalescer;
+        return coalescer == null ? 0 : coalescer.getEventsReceived();
+    }
+
+    /**
+     * Returns the number of topology checks the received events were
+     * coalesced into - 0 if the listener is not registered
+     */
+    public long getTopologyChecksExecuted() {
+        final TopologyChangeCoalescer coalescer = topologyChangeCoalescer;
+        return coalescer == null ? 0 : coalescer.getChecksExecuted();
+    }
+
+    /**
+     * Inform the DiscoveryServiceImpl that the topology (might) have changed -
+     * coalesced with the other events of the same burst
+     */
     private void handleTopologyChanged() {
-        logger.info("handleTopologyChanged: detected a change in the established views, invoking checkForTopologyChange.");
-        discoveryService.checkForTopologyChange();
+        clusterViewService.invalidateCachedView();
+        final TopologyChangeCoalescer coalescer = topologyChangeCoalescer;
+        if (coalescer == null) {
+            logger.info("handleTopologyChanged: detected a change in the established views, invoking checkForTopologyChange.");
+            discoveryService.checkForTopologyChange();
+            return;
+        }
+        logger.debug("handleTopologyChanged: detected a change in the established views, scheduling checkForTopologyChange.");
+        coalescer.eventReceived();
     }
 
 }
\ No newline at end of file
@@ -18,6 +18,8 @@
  */
 package org.apache.sling.discovery.impl.cluster;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
@@ -27,11 +29,14 @@ import org.apache.sling.discovery.base.commons.UndefinedClusterViewException;
 import org.apache.sling.discovery.base.commons.UndefinedClusterViewException.Reason;
 import org.apache.sling.discovery.commons.providers.spi.LocalClusterView;
 import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.ResourceResolverPool;
 import org.apache.sling.discovery.impl.common.View;
 import org.apache.sling.discovery.impl.common.ViewHelper;
+import org.apache.sling.discovery.impl.common.jfr.DiscoveryEvents;
 import org.apache.sling.discovery.impl.common.resource.EstablishedClusterView;
 import org.apache.sling.settings.SlingSettingsService;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +46,12 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This class is a reader only - it accesses the repository to read the
  * currently established view
+ * <p>
+ * While the ClusterViewChangeListener is receiving repository events,
+ * the view built last is kept in memory and handed out again until
+ * one of those events (or invalidateEstablishedViewId) invalidates it -
+ * or until it is older than the heartbeat interval, as a safety net
+ * for events that got lost.
  */
 @Component(service = {ClusterViewService.class, ClusterViewServiceImpl.class})
 public class ClusterViewServiceImpl implements ClusterViewService {
@@ -58,6 +69,38 @@ public class ClusterViewServiceImpl implements ClusterViewService {
 
     private String failedEstablishedViewId;
 
+    /** the long-lived ResourceResolvers used to read the established view **/
+    private ResourceResolverPool resourceResolverPool;
+
+    /** set on deactivate - no resolvers are pooled thereafter **/
+    private boolean resolversClosed = false;
+
+    /** a built view together with the revision and time it was built at **/
+    private static final class CachedView {
+
+        private final long revision;
+        private final long builtAt;
+        private final String establishedViewId;
+        private final EstablishedClusterView view;
+
+        CachedView(final long revision, final long builtAt,
+                final String establishedViewId, final EstablishedClusterView view) {
+            this.revision = revision;
+            this.builtAt = builtAt;
+            this.establishedViewId = establishedViewId;
+            this.view = view;
+        }
+    }
+
+    /** incremented whenever the established view or any instance's properties might have changed **/
+    private final AtomicLong viewRevision = new AtomicLong();
+
+    /** the view built last - only valid while its revision is the current viewRevision **/
+    private volatile CachedView cachedView;
+
+    /** true while change events are delivered, which is a precondition for caching **/
+    private volatile boolean viewCacheEnabled = false;
+
     public static ClusterViewService testConstructor(SlingSettingsService settingsService,
             ResourceResolverFactory factory, Config config) {
         ClusterViewServiceImpl service = new ClusterViewServiceImpl();
@@ -67,6 +110,30 @@ public class ClusterViewServiceImpl implements ClusterViewService {
         return service;
     }
 
+    @Deactivate
+    protected void deactivate() {
+        synchronized(this) {
+            resolversClosed = true;
+            if (resourceResolverPool != null) {
+                // kept, so that no new pool is created: the closed pool closes
+                // the resolvers still acquired thereafter on release
+                resourceResolverPool.close();
+            }
+        }
+    }
+
+    /** Get or create the pool of ResourceResolvers - which is closed, ie not pooling, once deactivated **/
+    private synchronized ResourceResolverPool getResourceResolverPool() {
+        if (resourceResolverPool == null) {
+            resourceResolverPool = new ResourceResolverPool(resourceResolverFactory,
+                    "discovery.impl.clusterViewService", config);
+            if (resolversClosed) {
+                resourceResolverPool.close();
+            }
+        }
+        return resourceResolverPool;
+    }
+
     @Override
     public String getSlingId() {
     	if (settingsService==null) {
@@ -82,19 +149,83 @@ public class ClusterViewServiceImpl implements ClusterViewService {
             logger.info("invalidateEstablishedViewId: marking established view as invalid: "+establishedViewId);;
         }
         failedEstablishedViewId = establishedViewId;
+        invalidateCachedView();
+    }
+
+    /**
+     * Invalidate the in-memory view, causing the next getLocalClusterView
+     * to read the established view from the repository again.
+     * To be called whenever the established view or the properties of
+     * any instance might have changed.
+     */
+    public void invalidateCachedView() {
+        viewRevision.incrementAndGet();
+        cachedView = null;
+    }
+
+    /**
+     * Enable or disable keeping the view in memory - it must only be enabled
+     * while changes are reported via invalidateCachedView
+     */
+    void setViewCacheEnabled(final boolean viewCacheEnabled) {
+        logger.info("setViewCacheEnabled: viewCacheEnabled=" + viewCacheEnabled);
+        this.viewCacheEnabled = viewCacheEnabled;
+        invalidateCachedView();
+    }
+
+    /** Returns the in-memory view if it is still valid - null otherwise **/
+    private EstablishedClusterView getCachedView() {
+        if (!viewCacheEnabled) {
+            return null;
+        }
+        final CachedView cached = cachedView;
+        if (cached == null || cached.revision != viewRevision.get()) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.builtAt > config.getHeartbeatInterval() * 1000) {
+            // paranoia: don't rely on events alone, re-read at least once per heartbeatInterval
+            return null;
+        }
+        if (cached.establishedViewId.equals(failedEstablishedViewId)) {
+            return null;
+        }
+        return cached.view;
     }
 
     @Override
     public LocalClusterView getLocalClusterView() throws UndefinedClusterViewException {
+        final DiscoveryEvents.Span span = DiscoveryEvents.begin(DiscoveryEvents.Kind.GET_LOCAL_CLUSTER_VIEW);
+        LocalClusterView result = null;
+        String outcome = "failed";
+        try {
+            result = readLocalClusterView();
+            outcome = "ok";
+            return result;
+        } catch (UndefinedClusterViewException e) {
+            outcome = String.valueOf(e.getReason());
+            throw e;
+        } finally {
+            span.end(result == null ? 0 : result.getInstances().size(), outcome);
+        }
+    }
+
+    /** Returns the local cluster view - from the cache if still valid, else from the repository **/
+    private LocalClusterView readLocalClusterView() throws UndefinedClusterViewException {
     	if (resourceResolverFactory==null) {
     		logger.warn("getClusterView: no resourceResolverFactory set at the moment.");
     		throw new UndefinedClusterViewException(Reason.REPOSITORY_EXCEPTION,
     		        "no resourceResolverFactory set");
     	}
+        final EstablishedClusterView cached = getCachedView();
+        if (cached != null) {
+            return cached;
+        }
+        // read the revision before reading the view, so that any change
+        // happening in the meantime prevents caching a stale view
+        final long revision = viewRevision.get();
         ResourceResolver resourceResolver = null;
         try {
-            resourceResolver = resourceResolverFactory
-                    .getServiceResourceResolver(null);
+            resourceResolver = getResourceResolverPool().acquire();
 
             View view = ViewHelper.getEstablishedView(resourceResolver, config);
             if (view == null) {
@@ -118,6 +249,10 @@ public class ClusterViewServiceImpl implements ClusterViewService {
 
             InstanceDescription local = clusterViewImpl.getLocalInstance();
             if (local != null) {
+                if (viewCacheEnabled) {
+                    cachedView = new CachedView(revision, System.currentTimeMillis(),
+                            view.getResource().getName(), clusterViewImpl);
+                }
                 return clusterViewImpl;
             } else {
                 logger.info("getClusterView: the local instance ("+getSlingId()+") is currently not included in the existing established view! "
@@ -138,11 +273,13 @@ public class ClusterViewServiceImpl implements ClusterViewService {
         } catch (Exception e) {
             logger.error(
                     "handleEvent: got an exception: " + e, e);
+            getResourceResolverPool().discard(resourceResolver);
+            resourceResolver = null;
             throw new UndefinedClusterViewException(Reason.REPOSITORY_EXCEPTION,
                     "could not log in administratively: "+e);
         } finally {
             if (resourceResolver != null) {
-                resourceResolver.close();
+                getResourceResolverPool().release(resourceResolver);
             }
         }
 
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.discovery.impl.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the topology-relevant repository events into as few
+ * topology checks as possible.
+ * <p>
+ * The check is run once no further event arrived for the quiet period -
+ * but at the latest the max delay after the first event of a burst. The
+ * check is run by a dedicated thread, events arriving while it runs lead
+ * to another check.
+ */
+class TopologyChangeCoalescer {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Config config;
+
+    /** the topology check to run **/
+    private final Runnable check;
+
+    private final ScheduledExecutorService executor;
+
+    private final Object lock = new Object();
+
+    /** the time (in millis) of the first event not yet covered by a check - -1 if none **/
+    private long firstEventAt = -1;
+
+    /** the time (in millis) of the last event not yet covered by a check **/
+    private long lastEventAt = -1;
+
+    /** whether the checkTask is scheduled or running - guarded by lock **/
+    private boolean scheduled = false;
+
+    private boolean closed = false;
+
+    private final AtomicLong eventsReceived = new AtomicLong();
+
+    private final AtomicLong checksExecuted = new AtomicLong();
+
+    private final Runnable checkTask = new Runnable() {
+
+        @Override
+        public void run() {
+            runCheckIfDue();
+        }
+    };
+
+    TopologyChangeCoalescer(final String name, final Config config, final Runnable check) {
+        this.config = config;
+        this.check = check;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Take note of a topology-relevant event - the check follows later **/
+    void eventReceived() {
+        eventsReceived.incrementAndGet();
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (firstEventAt == -1) {
+                firstEventAt = now;
+            }
+            lastEventAt = now;
+            if (!scheduled) {
+                schedule(config.getTopologyChangeQuietPeriodMillis());
+            }
+        }
+    }
+
+    /** Stop the coalescer - pending checks are dropped **/
+    void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of events received so far
+     * @return the number of events received so far
+     */
+    long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    /**
+     * Returns the number of checks executed so far
+     * @return the number of checks executed so far
+     */
+    long getChecksExecuted() {
+        return checksExecuted.get();
+    }
+
+    /** must be called with the lock held **/
+    private void schedule(final long delayMillis) {
+        try {
+            executor.schedule(checkTask, delayMillis, TimeUnit.MILLISECONDS);
+            scheduled = true;
+        } catch (RejectedExecutionException e) {
+            // closed concurrently
+            scheduled = false;
+        }
+    }
+
+    private void runCheckIfDue() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final long due = Math.min(lastEventAt + config.getTopologyChangeQuietPeriodMillis(),
+                    firstEventAt + config.getTopologyChangeMaxDelayMillis());
+            if (now < due) {
+                // events kept arriving - wait for the quiet period (or the max delay)
+                schedule(due - now);
+                return;
+            }
+            firstEventAt = -1;
+            lastEventAt = -1;
+        }
+        try {
+            final long checks = checksExecuted.incrementAndGet();
+            logger.info("runCheckIfDue: invoking checkForTopologyChange. events received: {}, checks executed: {}",
+                    eventsReceived.get(), checks);
+            check.run();
+        } catch (RuntimeException e) {
+            logger.error("runCheckIfDue: got a RuntimeException during the topology check: " + e, e);
+        } finally {
+            synchronized (lock) {
+                scheduled = false;
+                if (!closed && firstEventAt != -1) {
+                    // events arrived during the check
+                    schedule(config.getTopologyChangeQuietPeriodMillis());
+                }
+            }
+        }
+    }
+
+}
@@ -27,7 +27,14 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.LoginException;
@@ -39,6 +46,11 @@ import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.discovery.commons.providers.util.ResourceHelper;
 import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+import org.apache.sling.discovery.impl.common.ResourceResolverPool;
+import org.apache.sling.discovery.impl.common.heartbeat.LiveInstanceTracker;
+import org.apache.sling.discovery.impl.common.jfr.DiscoveryEvents;
+import org.apache.sling.discovery.impl.common.metrics.DiscoveryMetrics;
 import org.apache.sling.settings.SlingSettingsService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -102,6 +114,15 @@ public class VotingHandler implements EventHandler {
     @Reference
     private Config config;
 
+    @Reference
+    private LiveInstanceTracker liveInstanceTracker;
+
+    @Reference
+    private DiscoveryMetrics metrics;
+
+    @Reference
+    private VotingTimelines votingTimelines;
+
     /** the sling id of the local instance **/
     private String slingId;
 
@@ -116,6 +137,26 @@ public class VotingHandler implements EventHandler {
 
     private ServiceRegistration eventHandlerRegistration;
 
+    /** the long-lived ResourceResolvers used to analyze votings upon events **/
+    private volatile ResourceResolverPool resourceResolverPool;
+
+    /** the single thread analyzing the votings upon events - off the EventAdmin thread **/
+    private volatile ScheduledExecutorService votingAnalyzer;
+
+    /** set while an analysis is scheduled but not yet started - further events are coalesced into it **/
+    private final AtomicBoolean analysisScheduled = new AtomicBoolean(false);
+
+    /** the analysis run by the votingAnalyzer **/
+    private final Runnable analysisTask = new Runnable() {
+
+        @Override
+        public void run() {
+            // events arriving from now on must trigger another analysis
+            analysisScheduled.set(false);
+            analyzeVotingsUponEvents();
+        }
+    };
+
     /** for testing only **/
     public static VotingHandler testConstructor(SlingSettingsService settingsService,
             ResourceResolverFactory factory, Config config) {
@@ -134,6 +175,17 @@ public class VotingHandler implements EventHandler {
             eventHandlerRegistration = null;
         }
         activated = false;
+        final ScheduledExecutorService analyzer = votingAnalyzer;
+        votingAnalyzer = null;
+        if (analyzer != null) {
+            analyzer.shutdownNow();
+        }
+        analysisScheduled.set(false);
+        final ResourceResolverPool pool = resourceResolverPool;
+        resourceResolverPool = null;
+        if (pool != null) {
+            pool.close();
+        }
         logger.info("deactivate: deactivated slingId: {}, this: {}", slingId, this);
     }
 
@@ -143,6 +195,17 @@ public class VotingHandler implements EventHandler {
         logger = LoggerFactory.getLogger(this.getClass().getCanonicalName()
                 + "." + slingId);
         this.context = context;
+        resourceResolverPool = new ResourceResolverPool(resolverFactory, NAME + slingId, config);
+        final String analyzerName = NAME + slingId;
+        votingAnalyzer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, analyzerName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         activated = true;
 
         // once activated, register the eventHandler so that we can
@@ -195,27 +258,72 @@ public class VotingHandler implements EventHandler {
             return;
         }
 
+        if (logger.isDebugEnabled()) {
+            logger.debug("handleEvent: path = "+resourcePath+", event = "+event);
+        }
+        scheduleAnalysis();
+    }
+
+    /**
+     * Schedule an analysis of the ongoing votings with the votingAnalyzer -
+     * unless one is already scheduled, in which case the event is covered by it
+     */
+    private void scheduleAnalysis() {
+        final ScheduledExecutorService analyzer = votingAnalyzer;
+        if (analyzer == null) {
+            // deactivated concurrently
+            return;
+        }
+        if (!analysisScheduled.compareAndSet(false, true)) {
+            // coalesced into the already scheduled analysis
+            return;
+        }
+        try {
+            analyzer.schedule(analysisTask, config.getVotingEventDebounceMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // deactivated concurrently
+            analysisScheduled.set(false);
+        }
+    }
+
+    /**
+     * Analyze the ongoing votings on behalf of the events collected
+     * during the debounce window - runs on the votingAnalyzer thread
+     */
+    private void analyzeVotingsUponEvents() {
+        if (!activated) {
+            return;
+        }
+        final ResourceResolverPool pool = resourceResolverPool;
+        if (pool == null) {
+            // deactivated concurrently
+            return;
+        }
         ResourceResolver resourceResolver = null;
         try {
-            resourceResolver = resolverFactory
-                    .getServiceResourceResolver(null);
+            resourceResolver = pool.acquire();
         } catch (LoginException e) {
             logger.error(
-                    "handleEvent: could not log in administratively: " + e, e);
+                    "analyzeVotingsUponEvents: could not log in administratively: " + e, e);
             return;
         }
         try {
-            if (logger.isDebugEnabled()) {
-                logger.debug("handleEvent: path = "+resourcePath+", event = "+event);
-            }
             analyzeVotings(resourceResolver);
         } catch (PersistenceException e) {
             logger.error(
-                    "handleEvent: got a PersistenceException during votings analysis: "
+                    "analyzeVotingsUponEvents: got a PersistenceException during votings analysis: "
                             + e, e);
+            pool.discard(resourceResolver);
+            resourceResolver = null;
+        } catch (RuntimeException e) {
+            logger.error(
+                    "analyzeVotingsUponEvents: got a RuntimeException during votings analysis: "
+                            + e, e);
+            pool.discard(resourceResolver);
+            resourceResolver = null;
         } finally {
             if (resourceResolver != null) {
-                resourceResolver.close();
+                pool.release(resourceResolver);
             }
         }
     }
@@ -224,9 +332,37 @@ public class VotingHandler implements EventHandler {
      * Analyze any ongoing voting in the repository.
      * <p>
      * SLING-2885: this method must be synchronized as it can be called concurrently
-     * by the HearbeatHandler.doCheckView and the VotingHandler.handleEvent.
+     * by the HearbeatHandler.doCheckView and the votingAnalyzer (upon events).
      */
     public synchronized Map<VotingView,VotingDetail> analyzeVotings(final ResourceResolver resourceResolver) throws PersistenceException {
+        final DiscoveryEvents.Span span = DiscoveryEvents.begin(DiscoveryEvents.Kind.ANALYZE_VOTINGS);
+        Map<VotingView,VotingDetail> result = null;
+        try {
+            result = doAnalyzeVotings(resourceResolver);
+            return result;
+        } finally {
+            if (span != DiscoveryEvents.NOOP) {
+                // the members are the votings acted upon here
+                span.end(result == null ? 0 : result.size(), getOutcome(result));
+            }
+        }
+    }
+
+    /** Returns the most significant detail of the given votings analysis - as outcome of the event **/
+    private static String getOutcome(final Map<VotingView,VotingDetail> result) {
+        if (result == null) {
+            return "failed";
+        }
+        VotingDetail outcome = null;
+        for (VotingDetail detail : result.values()) {
+            if (outcome == null || detail.ordinal() < outcome.ordinal()) {
+                outcome = detail;
+            }
+        }
+        return outcome == null ? "none" : outcome.name();
+    }
+
+    private Map<VotingView,VotingDetail> doAnalyzeVotings(final ResourceResolver resourceResolver) throws PersistenceException {
         if (!activated) {
             logger.info("analyzeVotings: VotingHandler not yet initialized, can't vote.");
             return null;
@@ -235,23 +371,44 @@ public class VotingHandler implements EventHandler {
         // SLING-3406: refreshing resourceResolver/session here to get the latest state from the repository
         logger.debug("analyzeVotings: start. slingId: {}", slingId);
         resourceResolver.refresh();
+        // read the discovery tree once and evaluate all of the below against that
+        final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, liveInstanceTracker);
+        if (metrics != null) {
+            metrics.repositoryRead();
+        }
         VotingView winningVote = VotingHelper.getWinningVoting(
-                resourceResolver, config);
+                snapshot, config);
+        if (votingTimelines != null) {
+            votingTimelines.observe(snapshot, winningVote);
+        }
         if (winningVote != null) {
             if (winningVote.isInitiatedBy(slingId)) {
                 logger.info("analyzeVotings: my voting was winning. I'll mark it as established then! "
 	                        + winningVote);
+                final long promotionStart = System.currentTimeMillis();
+                final DiscoveryEvents.Span promoteSpan = DiscoveryEvents.begin(DiscoveryEvents.Kind.PROMOTE);
+                String promoteOutcome = "failed";
                 try{
                     promote(resourceResolver, winningVote.getResource());
+                    promoteOutcome = "promoted";
                 } catch (RuntimeException re) {
                     logger.error("analyzeVotings: RuntimeException during promotion: "+re, re);
                     throw re;
                 } catch (Error er) {
                     logger.error("analyzeVotings: Error during promotion: "+er, er);
                     throw er;
+                } finally {
+                    final Set<String> members = winningVote.getVotingState().getMembers();
+                    promoteSpan.end(members == null ? 0 : members.size(), promoteOutcome);
                 }
                 // SLING-3406: committing resourceResolver/session here, while we're in the synchronized
                 resourceResolver.commit();
+                if (metrics != null) {
+                    metrics.votingPromoted(System.currentTimeMillis() - promotionStart);
+                }
+                if (votingTimelines != null) {
+                    votingTimelines.promoted(winningVote.getVotingId());
+                }
 
                 // for test verification
                 result.put(winningVote, VotingDetail.PROMOTED);
@@ -265,7 +422,7 @@ public class VotingHandler implements EventHandler {
             }
         }
 
-        List<VotingView> ongoingVotings = VotingHelper.listVotings(resourceResolver, config);
+        List<VotingView> ongoingVotings = VotingHelper.listVotings(snapshot, config);
         if (ongoingVotings == null || ongoingVotings.size() == 0) {
             logger.debug("analyzeVotings: no ongoing votings at the moment. done.");
             return result;
@@ -281,6 +438,9 @@ public class VotingHandler implements EventHandler {
                 logger.info("analyzeVotings: deleting a timed out voting: "+voting);
                 voting.remove(false);
                 result.put(voting, VotingDetail.TIMEDOUT);
+                if (metrics != null) {
+                    metrics.votingTimedOut();
+                }
                 continue;
             }
             if (voting.hasNoVotes()) {
@@ -300,7 +460,7 @@ public class VotingHandler implements EventHandler {
             }
             String liveComparison;
             try {
-                liveComparison = voting.matchesLiveView(config);
+                liveComparison = voting.matchesLiveView(snapshot, config);
             } catch (Exception e) {
                 logger.error("analyzeVotings: could not compare voting with live view: "+e, e);
                 continue;
@@ -348,13 +508,36 @@ public class VotingHandler implements EventHandler {
             }
         }
         resourceResolver.commit();
+        if (metrics != null) {
+            metrics.repositoryCommit();
+            for (VotingDetail detail : result.values()) {
+                if (detail == VotingDetail.VOTED_NO) {
+                    metrics.votingVotedDown();
+                }
+            }
+        }
+        if (votingTimelines != null) {
+            for (Map.Entry<VotingView, VotingDetail> entry : result.entrySet()) {
+                if (entry.getValue() == VotingDetail.VOTED_YES || entry.getValue() == VotingDetail.VOTED_NO) {
+                    votingTimelines.voted(entry.getKey().getVotingId(), slingId,
+                            entry.getValue() == VotingDetail.VOTED_YES);
+                }
+            }
+        }
         logger.debug("analyzeVotings: result: my yes vote was for: " + yesVote);
         return result;
     }
 
     public void cleanupTimedoutVotings(final ResourceResolver resourceResolver) {
+        cleanupTimedoutVotings(DiscoverySnapshot.read(resourceResolver, config));
+    }
+
+    /**
+     * Remove the timed out votings as per the given snapshot
+     */
+    public void cleanupTimedoutVotings(final DiscoverySnapshot snapshot) {
         List<VotingView> timedoutVotings = VotingHelper
-                .listTimedoutVotings(resourceResolver,
+                .listTimedoutVotings(snapshot,
                         config);
         Iterator<VotingView> it = timedoutVotings.iterator();
         while (it.hasNext()) {
@@ -395,22 +578,13 @@ public class VotingHandler implements EventHandler {
 	                + winningVoteResource.getPath());
     	}
 
+        // with fastPromotion the steps not required for the new established
+        // view to be valid (1 and 5) are done after the commit, by cleanupAfterPromotion
+        final ScheduledExecutorService janitor = config.isFastPromotionEnabled() ? votingAnalyzer : null;
+
         // step 1: remove any nodes under previousViews
-        final Iterator<Resource> it1 = previousViewsResource.getChildren().iterator();
-        try{
-            while (it1.hasNext()) {
-                Resource previousView = it1.next();
-                resourceResolver.delete(previousView);
-            }
-        } catch(PersistenceException e) {
-            // if we cannot delete, apply workaround suggested in SLING-3785
-            logger.error("promote: Could not delete a previous view - trying move next: "+e, e);
-            ResourceHelper.moveResource(previousViewsResource, config.getPreviousViewPath()+"_trash_"+UUID.randomUUID().toString());
-            logger.info("promote: recreating the previousviews node");
-            previousViewsResource = ResourceHelper
-                    .getOrCreateResource(
-                            resourceResolver,
-                            config.getPreviousViewPath());
+        if (janitor == null) {
+            previousViewsResource = removePreviousViews(resourceResolver, previousViewsResource, null);
         }
 
         // step 2: retire the existing established view.
@@ -419,10 +593,12 @@ public class VotingHandler implements EventHandler {
         final Iterator<Resource> it = establishedViewsResource.getChildren()
                 .iterator();
         boolean first = true;
+        String retiredViewName = null;
         while (it.hasNext()) {
             Resource retiredView = it.next();
             if (first) {
                 first = !first;
+                retiredViewName = retiredView.getName();
             	if (logger.isDebugEnabled()) {
 	                logger.debug("promote: moving the old established view to previous views: "
 	                        + retiredView.getPath());
@@ -443,20 +619,17 @@ public class VotingHandler implements EventHandler {
         // establishedViewsResource
 
         // 3a: set the leaderid
-        final Iterator<Resource> it2 = winningVoteResource.getChild("members")
-                .getChildren().iterator();
+        final VotingState winningVoteState = new VotingView(winningVoteResource).getVotingState();
         String leaderElectionId = null;
         String leaderid = null;
         int membersCount = 0;
-        while (it2.hasNext()) {
-            Resource aMember = it2.next();
+        for (String aMember : winningVoteState.getMembers()) {
             membersCount++;
-            String leid = aMember.adaptTo(ValueMap.class).get(
-                    "leaderElectionId", String.class);
+            String leid = winningVoteState.getLeaderElectionIds().get(aMember);
             if (leaderElectionId == null
                     || (leid != null && leid.compareTo(leaderElectionId) < 0)) {
                 leaderElectionId = leid;
-                leaderid = aMember.getName();
+                leaderid = aMember;
             }
         }
     	if (logger.isDebugEnabled()) {
@@ -490,6 +663,64 @@ public class VotingHandler implements EventHandler {
 
         // step 5: make sure there are no duplicate ongoingVotings nodes
         // created. if so, cleanup
+        if (janitor == null) {
+            removeDuplicateOngoingVotings(resourceResolver, ongoingVotingsResource);
+        }
+
+        logger.debug("promote: done with promotiong. saving.");
+        resourceResolver.commit();
+        logger.info("promote: promotion done (#members: " + membersCount + ", path: "
+                + newEstablishedViewPath + ")");
+
+        if (janitor != null) {
+            final String keep = retiredViewName;
+            try {
+                janitor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        cleanupAfterPromotion(keep);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // deactivated in the meantime - the next promotion cleans up
+                logger.debug("promote: could not schedule the cleanup: " + e);
+            }
+        }
+    }
+
+    /**
+     * Remove the nodes under previousViews - except for the given one
+     * @param keep the name of the previous view to keep - null to remove all
+     * @return the previousViews resource - recreated if it had to be moved away
+     */
+    private Resource removePreviousViews(final ResourceResolver resourceResolver,
+            Resource previousViewsResource, final String keep) throws PersistenceException {
+        final Iterator<Resource> it1 = previousViewsResource.getChildren().iterator();
+        try{
+            while (it1.hasNext()) {
+                Resource previousView = it1.next();
+                if (keep != null && keep.equals(previousView.getName())) {
+                    continue;
+                }
+                resourceResolver.delete(previousView);
+            }
+        } catch(PersistenceException e) {
+            // if we cannot delete, apply workaround suggested in SLING-3785
+            logger.error("promote: Could not delete a previous view - trying move next: "+e, e);
+            ResourceHelper.moveResource(previousViewsResource, config.getPreviousViewPath()+"_trash_"+UUID.randomUUID().toString());
+            logger.info("promote: recreating the previousviews node");
+            previousViewsResource = ResourceHelper
+                    .getOrCreateResource(
+                            resourceResolver,
+                            config.getPreviousViewPath());
+        }
+        return previousViewsResource;
+    }
+
+    /** Remove any duplicate ongoingVotings nodes next to the given one **/
+    private void removeDuplicateOngoingVotings(final ResourceResolver resourceResolver,
+            final Resource ongoingVotingsResource) throws PersistenceException {
         final Iterator<Resource> it5 = ongoingVotingsResource.getParent()
                 .getChildren().iterator();
         while (it5.hasNext()) {
@@ -510,11 +741,56 @@ public class VotingHandler implements EventHandler {
                     + resource.getPath());
             resourceResolver.delete(resource);
         }
+    }
 
-        logger.debug("promote: done with promotiong. saving.");
-        resourceResolver.commit();
-        logger.info("promote: promotion done (#members: " + membersCount + ", path: "
-                + newEstablishedViewPath + ")");
+    /**
+     * The part of a fastPromotion that is not required for the new established
+     * view to be valid: remove the previous views (except for the one just
+     * retired), the '_trash_' nodes left by the SLING-3785 workaround and
+     * duplicate ongoingVotings nodes
+     * @param retiredViewName the name of the view retired by the promotion
+     */
+    void cleanupAfterPromotion(final String retiredViewName) {
+        final ResourceResolverPool pool = resourceResolverPool;
+        if (!activated || pool == null) {
+            return;
+        }
+        ResourceResolver resourceResolver = null;
+        // synchronized with analyzeVotings, which might promote (and retire) again
+        synchronized(this) {
+            try {
+                resourceResolver = pool.acquire();
+                resourceResolver.refresh();
+                final Resource previousViewsResource = resourceResolver.getResource(config.getPreviousViewPath());
+                if (previousViewsResource != null) {
+                    final String trashPrefix = config.getPreviousViewPath() + "_trash_";
+                    for (Resource sibling : previousViewsResource.getParent().getChildren()) {
+                        if (sibling.getPath().startsWith(trashPrefix)) {
+                            logger.info("cleanupAfterPromotion: removing " + sibling.getPath());
+                            resourceResolver.delete(sibling);
+                        }
+                    }
+                    removePreviousViews(resourceResolver, previousViewsResource, retiredViewName);
+                }
+                final Resource ongoingVotingsResource = resourceResolver.getResource(config.getOngoingVotingsPath());
+                if (ongoingVotingsResource != null) {
+                    removeDuplicateOngoingVotings(resourceResolver, ongoingVotingsResource);
+                }
+                resourceResolver.commit();
+                logger.debug("cleanupAfterPromotion: done");
+            } catch (LoginException e) {
+                logger.error("cleanupAfterPromotion: could not log in administratively: " + e, e);
+            } catch (PersistenceException e) {
+                // not critical - the next promotion cleans up again
+                logger.warn("cleanupAfterPromotion: could not clean up: " + e, e);
+                pool.discard(resourceResolver);
+                resourceResolver = null;
+            } finally {
+                if (resourceResolver != null) {
+                    pool.release(resourceResolver);
+                }
+            }
+        }
     }
 
     public void setLeaderElectionId(String leaderElectionId) {
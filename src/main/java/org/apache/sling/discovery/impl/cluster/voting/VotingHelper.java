@@ -19,19 +19,30 @@
 package org.apache.sling.discovery.impl.cluster.voting;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.discovery.commons.providers.util.ResourceHelper;
 import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Helper class for voting
+ * Helper class for voting.
+ * <p>
+ * Each of the lookups is available both against a ResourceResolver
+ * (which reads a new DiscoverySnapshot) and against a DiscoverySnapshot
+ * which was read earlier - the latter is to be used when several lookups
+ * are done within one and the same check cycle.
  */
 public class VotingHelper {
 
@@ -54,27 +65,22 @@ public class VotingHelper {
             logger.info("listOpenNonWinningVotings: config is null, bundle likely deactivated.");
             return new ArrayList<VotingView>();
         }
-        final String ongoingVotingsPath = config.getOngoingVotingsPath();
-        final Resource ongoingVotingsResource = resourceResolver
-                .getResource(ongoingVotingsPath);
-        if (ongoingVotingsResource == null) {
-            // it is legal that at this stage there is no ongoingvotings node yet 
-            // for example when there was never a voting yet
-            logger.debug("listOpenNonWinningVotings: no ongoing votings parent resource found");
-            return new ArrayList<VotingView>();
-        }
-        final Iterable<Resource> children = ongoingVotingsResource.getChildren();
-        final Iterator<Resource> it = children.iterator();
+        return listOpenNonWinningVotings(DiscoverySnapshot.read(resourceResolver, config), config);
+    }
+
+    /**
+     * List all the votings of the given snapshot that are 'open' but 'not winning'.
+     * @see #listOpenNonWinningVotings(ResourceResolver, Config)
+     * @return the list of matching votings - never returns null
+     */
+    public static List<VotingView> listOpenNonWinningVotings(
+            final DiscoverySnapshot snapshot, final Config config) {
         final List<VotingView> result = new LinkedList<VotingView>();
-        if (!it.hasNext()) {
-            return result;
-        }
-        while (it.hasNext()) {
-            Resource aChild = it.next();
+        for (DiscoverySnapshot.ViewState aChild : snapshot.getOngoingVotings()) {
             VotingView c = new VotingView(aChild);
             String matchesLiveView;
             try {
-                matchesLiveView = c.matchesLiveView(config);
+                matchesLiveView = c.matchesLiveView(snapshot, config);
             } catch (Exception e) {
                 logger.error("listOpenNonWinningVotings: could not compare voting with live view: "+e, e);
                 continue;
@@ -87,21 +93,21 @@ public class VotingHelper {
                     && !isWinning) {
             	if (logger.isDebugEnabled()) {
 	                logger.debug("listOpenNonWinningVotings: found an open voting: "
-	                        + aChild
+	                        + aChild.getResource()
 	                        + ", properties="
-	                        + ResourceHelper.getPropertiesForLogging(aChild));
+	                        + ResourceHelper.getPropertiesForLogging(aChild.getResource()));
             	}
                 result.add(c);
             } else {
             	if (logger.isDebugEnabled()) {
 	                logger.debug("listOpenNonWinningVotings: a non-open voting: "
-	                        + aChild
+	                        + aChild.getResource()
 	                        + ", matches live: " + matchesLiveView
 	                        + ", is ongoing: " + ongoingVoting
 	                        + ", has no votes: " + hasNoVotes
 	                        + ", is winning: " + isWinning
 	                        + ", properties="
-	                        + ResourceHelper.getPropertiesForLogging(aChild));
+	                        + ResourceHelper.getPropertiesForLogging(aChild.getResource()));
             	}
             }
         }
@@ -118,28 +124,24 @@ public class VotingHelper {
      */
     public static List<VotingView> listTimedoutVotings(
             final ResourceResolver resourceResolver, final Config config) {
-        final String ongoingVotingsPath = config.getOngoingVotingsPath();
-        final Resource ongoingVotingsResource = resourceResolver
-                .getResource(ongoingVotingsPath);
-        if (ongoingVotingsResource == null) {
-            logger.info("listTimedoutVotings: no ongoing votings parent resource found"); // TOOD - is this expected?
-            return new ArrayList<VotingView>();
-        }
-        final Iterable<Resource> children = ongoingVotingsResource.getChildren();
-        final Iterator<Resource> it = children.iterator();
+        return listTimedoutVotings(DiscoverySnapshot.read(resourceResolver, config), config);
+    }
+
+    /**
+     * List all the votings of the given snapshot that have timed out
+     * @return the list of matching votings
+     */
+    public static List<VotingView> listTimedoutVotings(
+            final DiscoverySnapshot snapshot, final Config config) {
         final List<VotingView> result = new LinkedList<VotingView>();
-        if (!it.hasNext()) {
-            return result;
-        }
-        while (it.hasNext()) {
-            Resource aChild = it.next();
+        for (DiscoverySnapshot.ViewState aChild : snapshot.getOngoingVotings()) {
             VotingView c = new VotingView(aChild);
             if (c.isTimedoutVoting(config)) {
             	if (logger.isDebugEnabled()) {
 	                logger.debug("listTimedoutVotings: found a timed-out voting: "
-	                        + aChild
+	                        + aChild.getResource()
 	                        + ", properties="
-	                        + ResourceHelper.getPropertiesForLogging(aChild));
+	                        + ResourceHelper.getPropertiesForLogging(aChild.getResource()));
             	}
                 result.add(c);
             }
@@ -158,30 +160,28 @@ public class VotingHelper {
      */
     public static VotingView getWinningVoting(
             final ResourceResolver resourceResolver, final Config config) {
-        String ongoingVotingsPath = config.getOngoingVotingsPath();
-        Resource ongoingVotingsResource = resourceResolver
-                .getResource(ongoingVotingsPath);
-        if (ongoingVotingsResource == null) {
-            // it is legal that at this stage there is no ongoingvotings node yet 
-            // for example when there was never a voting yet
-            logger.debug("getWinningVoting: no ongoing votings parent resource found");
-            return null;
-        }
-        Iterable<Resource> children = ongoingVotingsResource.getChildren();
-        Iterator<Resource> it = children.iterator();
+        return getWinningVoting(DiscoverySnapshot.read(resourceResolver, config), config);
+    }
+
+    /**
+     * Return the still valid (ongoing) and winning (received a yes vote
+     * from everybody) voting of the given snapshot
+     * @return the valid and winning voting
+     */
+    public static VotingView getWinningVoting(
+            final DiscoverySnapshot snapshot, final Config config) {
         List<VotingView> result = new LinkedList<VotingView>();
-        while (it.hasNext()) {
-            Resource aChild = it.next();
+        for (DiscoverySnapshot.ViewState aChild : snapshot.getOngoingVotings()) {
             VotingView c = new VotingView(aChild);
             boolean ongoing = c.isOngoingVoting(config);
             boolean winning = c.isWinning();
             if (ongoing && winning) {
             	if (logger.isDebugEnabled()) {
-            		logger.debug("getWinningVoting: a winning voting: " + aChild);
+            		logger.debug("getWinningVoting: a winning voting: " + aChild.getResource());
             	}
                 result.add(c);
             } else {
-                logger.debug("getWinningVote: not winning: vote="+aChild+" is ongoing="+ongoing+", winning="+winning);
+                logger.debug("getWinningVote: not winning: vote="+aChild.getResource()+" is ongoing="+ongoing+", winning="+winning);
             }
         }
         if (result.size() == 1) {
@@ -191,6 +191,59 @@ public class VotingHelper {
         }
     }
 
+    /**
+     * Returns the rank of the given instance amongst the given live instances
+     * in the order of their leaderElectionId (then slingId) - ie the order in
+     * which they initiate votings when votingInitiationDelay is configured.
+     * Instances without a leaderElectionId rank last.
+     * <p>
+     * The leaderElectionIds are taken from the clusterInstances of the snapshot.
+     * Those instances not contained therein - eg all of them when the live
+     * instances were taken from the LiveInstanceTracker - are read from the
+     * repository, so that all instances rank by the same leaderElectionIds.
+     * @return the rank (0 being the first) - or -1 if the instance is not live
+     */
+    public static int getInitiationRank(final ResourceResolver resourceResolver,
+            final Config config, final DiscoverySnapshot snapshot,
+            final Set<String> liveInstances, final String slingId) {
+        final Map<String, String> leaderElectionIds = new HashMap<String, String>();
+        final Map<String, Map<String, Object>> clusterInstances = snapshot.getClusterInstances();
+        for (String aSlingId : liveInstances) {
+            final Map<String, Object> properties = clusterInstances.get(aSlingId);
+            final Object leaderElectionId;
+            if (properties != null) {
+                leaderElectionId = properties.get("leaderElectionId");
+            } else {
+                final Resource instanceRes = resourceResolver.getResource(
+                        config.getClusterInstancesPath() + "/" + aSlingId);
+                leaderElectionId = instanceRes == null ? null
+                        : instanceRes.adaptTo(ValueMap.class).get("leaderElectionId");
+            }
+            leaderElectionIds.put(aSlingId, DiscoverySnapshot.toString(leaderElectionId));
+        }
+        final List<String> ordered = new ArrayList<String>(liveInstances);
+        Collections.sort(ordered, new Comparator<String>() {
+
+            @Override
+            public int compare(String o1, String o2) {
+                final String id1 = leaderElectionIds.get(o1);
+                final String id2 = leaderElectionIds.get(o2);
+                if (id1 == null && id2 != null) {
+                    return 1;
+                } else if (id1 != null && id2 == null) {
+                    return -1;
+                } else if (id1 != null) {
+                    final int result = id1.compareTo(id2);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return o1.compareTo(o2);
+            }
+        });
+        return ordered.indexOf(slingId);
+    }
+
     /**
      * Returns the voting for which the given slingId has vote yes or was the
      * initiator (which is equal to yes).
@@ -207,25 +260,34 @@ public class VotingHelper {
         if (config == null) {
             throw new IllegalArgumentException("config must not be null");
         }
-        if (slingId == null || slingId.length() == 0) {
-            throw new IllegalArgumentException("slingId must not be null or empty");
+        return getYesVotingsOf(DiscoverySnapshot.read(resourceResolver, config), config, slingId);
+    }
+
+    /**
+     * Returns the votings of the given snapshot for which the given slingId has
+     * voted yes or was the initiator (which is equal to yes).
+     * <p>
+     * Timed out votings are ignored, as they are subject to be cleaned up
+     * @param slingId the instance for which its yes vote should be looked up
+     * @return the voting for which the given slingId has votes yes or was the
+     * initiator
+     */
+    public static List<VotingView> getYesVotingsOf(final DiscoverySnapshot snapshot,
+            final Config config,
+            final String slingId) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("snapshot must not be null");
         }
-        final String ongoingVotingsPath = config.getOngoingVotingsPath();
-        final Resource ongoingVotingsResource = resourceResolver
-                .getResource(ongoingVotingsPath);
-        if (ongoingVotingsResource == null) {
-            return null;
+        if (config == null) {
+            throw new IllegalArgumentException("config must not be null");
         }
-        final Iterable<Resource> children = ongoingVotingsResource.getChildren();
-        if (children == null) {
-            return null;
+        if (slingId == null || slingId.length() == 0) {
+            throw new IllegalArgumentException("slingId must not be null or empty");
         }
-        final Iterator<Resource> it = children.iterator();
         final List<VotingView> result = new LinkedList<VotingView>();
-        while (it.hasNext()) {
-            Resource aChild = it.next();
+        for (DiscoverySnapshot.ViewState aChild : snapshot.getOngoingVotings()) {
             VotingView c = new VotingView(aChild);
-            if (c.hasVotedYes(slingId)) {
+            if (c.hasVotedYes(slingId) && !c.isTimedoutVoting(config)) {
                 result.add(c);
             }
         }
@@ -245,22 +307,13 @@ public class VotingHelper {
             logger.info("listVotings: config is null, bundle likely deactivated.");
             return new ArrayList<VotingView>();
         }
-        final String ongoingVotingsPath = config.getOngoingVotingsPath();
-        final Resource ongoingVotingsResource = resourceResolver
-                .getResource(ongoingVotingsPath);
-        if (ongoingVotingsResource == null) {
-            // it is legal that at this stage there is no ongoingvotings node yet 
-            // for example when there was never a voting yet
-            logger.debug("listVotings: no ongoing votings parent resource found");
-            return new ArrayList<VotingView>();
-        }
-        final Iterable<Resource> children = ongoingVotingsResource.getChildren();
-        final Iterator<Resource> it = children.iterator();
+        return listVotings(DiscoverySnapshot.read(resourceResolver, config), config);
+    }
+
+    public static List<VotingView> listVotings(DiscoverySnapshot snapshot, Config config) {
         final List<VotingView> result = new LinkedList<VotingView>();
-        while (it.hasNext()) {
-            Resource aChild = it.next();
-            VotingView c = new VotingView(aChild);
-            result.add(c);
+        for (DiscoverySnapshot.ViewState aChild : snapshot.getOngoingVotings()) {
+            result.add(new VotingView(aChild));
         }
         if (logger.isDebugEnabled()) {
             logger.debug("listVotings: votings found: "
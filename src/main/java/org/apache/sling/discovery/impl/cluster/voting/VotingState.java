@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster.voting;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+
+/**
+ * Immutable state of a voting, parsed once from the properties of the
+ * voting and of its members.
+ * <p>
+ * All the checks of a VotingView are evaluated against this state rather
+ * than the repository.
+ */
+public final class VotingState {
+
+    /** the slingIds of the members - null if there is no ./members resource **/
+    private final Set<String> members;
+
+    /** the votes cast so far by slingId - members without a vote are not contained **/
+    private final Map<String, Boolean> votes;
+
+    /** the leaderElectionIds by slingId **/
+    private final Map<String, String> leaderElectionIds;
+
+    /** the slingId of the initiator - null if not known **/
+    private final String initiatorId;
+
+    /** the votingStart (in millis) - -1 if not set **/
+    private final long votingStart;
+
+    private final int yesVotes;
+
+    private final int noVotes;
+
+    /**
+     * Parse the state of a voting
+     * @param properties the properties of the voting - may be null
+     * @param members the properties of the members keyed by slingId -
+     * null if there is no ./members resource
+     */
+    public static VotingState parse(final Map<String, Object> properties,
+            final Map<String, Map<String, Object>> members) {
+        final Date votingStartDate = properties == null ? null
+                : DiscoverySnapshot.toDate(properties.get("votingStart"));
+        final long votingStart = votingStartDate == null ? -1 : votingStartDate.getTime();
+        if (members == null) {
+            return new VotingState(null, Collections.<String, Boolean>emptyMap(),
+                    Collections.<String, String>emptyMap(), null, votingStart, 0, 0);
+        }
+        final Map<String, Boolean> votes = new HashMap<String, Boolean>();
+        final Map<String, String> leaderElectionIds = new HashMap<String, String>();
+        String initiatorId = null;
+        int yesVotes = 0;
+        int noVotes = 0;
+        for (Entry<String, Map<String, Object>> aMember : members.entrySet()) {
+            final String slingId = aMember.getKey();
+            final Map<String, Object> memberProperties = aMember.getValue();
+            final Boolean vote = DiscoverySnapshot.toBoolean(memberProperties.get("vote"));
+            if (vote != null) {
+                votes.put(slingId, vote);
+                if (vote) {
+                    yesVotes++;
+                } else {
+                    noVotes++;
+                }
+            }
+            final Boolean initiator = DiscoverySnapshot.toBoolean(memberProperties.get("initiator"));
+            if (initiator != null && initiator) {
+                initiatorId = slingId;
+            }
+            final String leaderElectionId = DiscoverySnapshot.toString(memberProperties.get("leaderElectionId"));
+            if (leaderElectionId != null) {
+                leaderElectionIds.put(slingId, leaderElectionId);
+            }
+        }
+        return new VotingState(
+                Collections.unmodifiableSet(new LinkedHashSet<String>(members.keySet())),
+                Collections.unmodifiableMap(votes),
+                Collections.unmodifiableMap(leaderElectionIds),
+                initiatorId, votingStart, yesVotes, noVotes);
+    }
+
+    private VotingState(final Set<String> members, final Map<String, Boolean> votes,
+            final Map<String, String> leaderElectionIds, final String initiatorId,
+            final long votingStart, final int yesVotes, final int noVotes) {
+        this.members = members;
+        this.votes = votes;
+        this.leaderElectionIds = leaderElectionIds;
+        this.initiatorId = initiatorId;
+        this.votingStart = votingStart;
+        this.yesVotes = yesVotes;
+        this.noVotes = noVotes;
+    }
+
+    /**
+     * Returns the slingIds of the members
+     * @return the slingIds of the members - or null if there is no ./members resource
+     */
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the vote of the given slingId
+     * @return null if the instance did not vote yet, true for a yes, false for a no vote
+     */
+    public Boolean getVote(final String slingId) {
+        return votes.get(slingId);
+    }
+
+    /**
+     * Returns the leaderElectionIds of the members by slingId
+     * @return the leaderElectionIds of the members by slingId
+     */
+    public Map<String, String> getLeaderElectionIds() {
+        return leaderElectionIds;
+    }
+
+    /**
+     * Returns the slingId of the initiator
+     * @return the slingId of the initiator - or null if not known
+     */
+    public String getInitiatorId() {
+        return initiatorId;
+    }
+
+    /**
+     * Returns the votingStart (in millis)
+     * @return the votingStart (in millis) - or -1 if not set
+     */
+    public long getVotingStart() {
+        return votingStart;
+    }
+
+    /** Returns whether the voting has members and all of them voted yes **/
+    public boolean isWinning() {
+        return members != null && !members.isEmpty() && yesVotes == members.size();
+    }
+
+    /** Returns whether any member voted no **/
+    public boolean hasNoVotes() {
+        return noVotes > 0;
+    }
+
+    /** Returns whether the voting was initiated by the given slingId **/
+    public boolean isInitiatedBy(final String slingId) {
+        return initiatorId != null && initiatorId.equals(slingId);
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster.voting;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * The timelines of the most recent votings as observed by the local
+ * instance - to tell which phase of reaching consensus is slow.
+ * <p>
+ * Per voting the following is recorded, each with the local time it was
+ * observed at: the creation, each member's vote, the voting winning, its
+ * promotion to the established view and the TOPOLOGY_CHANGED (or
+ * TOPOLOGY_INIT) sent to the listeners for it. A member's vote latency is
+ * the time from the creation until its vote was observed - which is
+ * bounded by the interval the local instance analyzes the votings in.
+ * <p>
+ * Only the MAX_TIMELINES most recent votings are kept.
+ */
+@Component(service = {VotingTimelines.class})
+public class VotingTimelines {
+
+    /** the number of votings a timeline is kept for **/
+    static final int MAX_TIMELINES = 20;
+
+    /** the timeline of one voting **/
+    static final class Timeline {
+
+        private final String votingId;
+
+        private final long createdAt;
+
+        private String initiatorId;
+
+        private Set<String> members;
+
+        /** the local time each member's vote was observed at, keyed by slingId **/
+        private final Map<String, Long> voteObservedAt = new TreeMap<String, Long>();
+
+        private final Map<String, Boolean> votes = new TreeMap<String, Boolean>();
+
+        private long winningAt = -1;
+
+        private long promotedAt = -1;
+
+        private boolean promotedLocally;
+
+        private long eventAt = -1;
+
+        Timeline(final String votingId, final long createdAt) {
+            this.votingId = votingId;
+            this.createdAt = createdAt;
+        }
+
+        /** Returns the latency (in millis) of the given member's vote - -1 if it was not observed **/
+        long getVoteLatency(final String slingId) {
+            final Long observedAt = voteObservedAt.get(slingId);
+            return observedAt == null ? -1 : observedAt - createdAt;
+        }
+
+        long getWinningAt() {
+            return winningAt;
+        }
+
+        long getPromotedAt() {
+            return promotedAt;
+        }
+
+        long getEventAt() {
+            return eventAt;
+        }
+
+        private static String offset(final long at, final long since) {
+            return at == -1 ? "-" : "+" + (at - since) + "ms";
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(votingId);
+            sb.append(": created=").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(createdAt)));
+            sb.append(", initiator=").append(initiatorId);
+            sb.append(", winning=").append(offset(winningAt, createdAt));
+            sb.append(", promoted=").append(offset(promotedAt, createdAt));
+            if (promotedAt != -1) {
+                sb.append(promotedLocally ? " (local)" : " (observed)");
+            }
+            sb.append(", event=").append(offset(eventAt, createdAt));
+            sb.append(", votes: ");
+            boolean first = true;
+            if (members != null) {
+                for (String member : members) {
+                    if (!first) {
+                        sb.append(", ");
+                    }
+                    first = false;
+                    final Boolean vote = votes.get(member);
+                    sb.append(member).append("=");
+                    sb.append(vote == null ? "pending" : (vote ? "yes" : "no"));
+                    if (vote != null) {
+                        sb.append(" ").append(offset(voteObservedAt.get(member), createdAt));
+                    }
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /** the timelines keyed by votingId - in the order the votings were first observed **/
+    private final Map<String, Timeline> timelines = new LinkedHashMap<String, Timeline>() {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Timeline> eldest) {
+            return size() > MAX_TIMELINES;
+        }
+    };
+
+    /** Get the timeline of the given voting - creating it as of now if it doesn't exist **/
+    private Timeline getOrCreate(final String votingId, final long now) {
+        Timeline timeline = timelines.get(votingId);
+        if (timeline == null) {
+            timeline = new Timeline(votingId, now);
+            timelines.put(votingId, timeline);
+        }
+        return timeline;
+    }
+
+    /** Take note of a voting created by the local instance **/
+    public synchronized void created(final VotingView voting) {
+        final long now = System.currentTimeMillis();
+        final Timeline timeline = getOrCreate(voting.getVotingId(), now);
+        final VotingState state = voting.getVotingState();
+        timeline.initiatorId = state.getInitiatorId();
+        timeline.members = state.getMembers();
+        observeVotes(timeline, state, now);
+    }
+
+    /**
+     * Take note of the ongoing votings of the given snapshot - votings not seen
+     * before are taken as created now, votes not seen before as voted now
+     */
+    public synchronized void observe(final DiscoverySnapshot snapshot, final VotingView winningVoting) {
+        final long now = System.currentTimeMillis();
+        for (DiscoverySnapshot.ViewState aVoting : snapshot.getOngoingVotings()) {
+            final VotingView voting = new VotingView(aVoting);
+            final Timeline timeline = getOrCreate(voting.getVotingId(), now);
+            final VotingState state = voting.getVotingState();
+            if (timeline.members == null) {
+                timeline.initiatorId = state.getInitiatorId();
+                timeline.members = state.getMembers();
+            }
+            observeVotes(timeline, state, now);
+        }
+        if (winningVoting != null) {
+            final Timeline timeline = getOrCreate(winningVoting.getVotingId(), now);
+            if (timeline.winningAt == -1) {
+                timeline.winningAt = now;
+            }
+        }
+    }
+
+    private static void observeVotes(final Timeline timeline, final VotingState state, final long now) {
+        if (state.getMembers() == null) {
+            return;
+        }
+        for (String member : state.getMembers()) {
+            final Boolean vote = state.getVote(member);
+            if (vote != null && !vote.equals(timeline.votes.get(member))) {
+                timeline.votes.put(member, vote);
+                timeline.voteObservedAt.put(member, now);
+            }
+        }
+    }
+
+    /** Take note of a vote by the local instance **/
+    public synchronized void voted(final String votingId, final String slingId, final boolean vote) {
+        final long now = System.currentTimeMillis();
+        final Timeline timeline = getOrCreate(votingId, now);
+        if (!Boolean.valueOf(vote).equals(timeline.votes.get(slingId))) {
+            timeline.votes.put(slingId, vote);
+            timeline.voteObservedAt.put(slingId, now);
+        }
+    }
+
+    /** Take note of a voting promoted by the local instance **/
+    public synchronized void promoted(final String votingId) {
+        final Timeline timeline = getOrCreate(votingId, System.currentTimeMillis());
+        if (timeline.promotedAt == -1) {
+            timeline.promotedAt = System.currentTimeMillis();
+            timeline.promotedLocally = true;
+        }
+    }
+
+    /** Take note of the given view observed as the established one - only known votings are updated **/
+    public synchronized void established(final String viewId) {
+        final Timeline timeline = timelines.get(viewId);
+        if (timeline != null && timeline.promotedAt == -1) {
+            timeline.promotedAt = System.currentTimeMillis();
+        }
+    }
+
+    /** Take note of a TOPOLOGY_CHANGED/TOPOLOGY_INIT sent for the given view - only known votings are updated **/
+    public synchronized void eventSent(final String viewId) {
+        final Timeline timeline = timelines.get(viewId);
+        if (timeline != null && timeline.eventAt == -1) {
+            timeline.eventAt = System.currentTimeMillis();
+        }
+    }
+
+    /** Returns the timeline of the given voting - null if it is not known (anymore) **/
+    synchronized Timeline getTimeline(final String votingId) {
+        return timelines.get(votingId);
+    }
+
+    /** Returns the timelines, one line per voting - the most recent first **/
+    public synchronized List<String> getTimelines() {
+        final List<String> result = new ArrayList<String>(timelines.size());
+        for (Timeline timeline : timelines.values()) {
+            result.add(0, timeline.toString());
+        }
+        return result;
+    }
+
+}
@@ -22,6 +22,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -36,6 +37,8 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.discovery.commons.providers.util.ResourceHelper;
 import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.CompactMembers;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
 import org.apache.sling.discovery.impl.common.View;
 import org.apache.sling.discovery.impl.common.ViewHelper;
 import org.slf4j.Logger;
@@ -107,6 +110,23 @@ public class VotingView extends View {
         	clusterIdDefinedBy = initiatorId;
         }
         votingMap.put(VIEW_PROPERTY_CLUSTER_ID_DEFINED_BY, clusterIdDefinedBy);
+        votingMap.put(VIEW_PROPERTY_MEMBERSHIP_DIGEST, ViewHelper.membershipDigest(liveInstances));
+
+        if (config.isCompactViewStorageEnabled()) {
+            final Map<String, String> leaderElectionIds = new LinkedHashMap<String, String>();
+            for (String memberId : liveInstances) {
+                Resource instanceResource = ResourceHelper.getOrCreateResource(
+                        resourceResolver, config.getClusterInstancesPath() + "/"
+                                + memberId);
+                leaderElectionIds.put(memberId, instanceResource.adaptTo(ValueMap.class)
+                        .get("leaderElectionId", String.class));
+            }
+            CompactMembers.writeMembers(votingMap, initiatorId, leaderElectionIds);
+            logger.debug("newVoting: committing new compact voting: newViewId="+newViewId+", initiatorId="+initiatorId+", #members: "+liveInstances.size());
+            resourceResolver.commit();
+            logger.info("newVoting: new voting started: newViewId="+newViewId+", initiatorId="+initiatorId+", resource="+votingResource+", #members: "+liveInstances.size()+", members: "+liveInstances);
+            return new VotingView(votingResource);
+        }
 
         final Resource membersResource = resourceResolver.create(votingResource, "members", null);
         final Iterator<String> it = liveInstances.iterator();
@@ -133,6 +153,9 @@ public class VotingView extends View {
         return new VotingView(votingResource);
     }
 
+    /** the parsed state of this voting - null until first used or after a refresh **/
+    private volatile VotingState votingState;
+
     /**
      * Construct a voting view based on the given resource
      * @param viewResource the resource which is the place the voting is kept
@@ -140,38 +163,63 @@ public class VotingView extends View {
     public VotingView(final Resource viewResource) {
         super(viewResource);
     }
+
+    /**
+     * Construct a voting view based on the state read as part of a DiscoverySnapshot
+     * @param state the pre-read state of the voting
+     */
+    public VotingView(final DiscoverySnapshot.ViewState state) {
+        super(state);
+    }
     
     public String getVotingId() {
         return getResource().getName();
     }
 
+    /**
+     * Returns the state of this voting - parsed on first use and kept
+     * until refresh() is called
+     * @return the state of this voting
+     * @throws RuntimeException if the voting cannot be read, eg because
+     * it has been deleted concurrently
+     */
+    public VotingState getVotingState() {
+        VotingState result = votingState;
+        if (result == null) {
+            result = VotingState.parse(readProperties(), readMembers());
+            votingState = result;
+        }
+        return result;
+    }
+
+    /**
+     * Drop the parsed state of this voting - the next check parses it anew
+     */
+    public void refresh() {
+        votingState = null;
+    }
+
+    @Override
+    protected Set<String> readMemberIds() {
+        return getVotingState().getMembers();
+    }
+
     @Override
     public String toString() {
         try {
-            final Resource members = getResource().getChild("members");
-            String initiatorId = null;
+            final VotingState state = getVotingState();
             final StringBuilder sb = new StringBuilder();
-            if (members != null) {
-                Iterator<Resource> it = members.getChildren().iterator();
-                while (it.hasNext()) {
-                    Resource r = it.next();
+            if (state.getMembers() != null) {
+                for (String aMember : state.getMembers()) {
                     if (sb.length() != 0) {
                         sb.append(", ");
                     }
-                    sb.append(r.getName());
-                    ValueMap properties = r.adaptTo(ValueMap.class);
-                    if (properties != null) {
-                        Boolean initiator = properties.get("initiator",
-                                Boolean.class);
-                        if (initiator != null && initiator) {
-                            initiatorId = r.getName();
-                        }
-                    }
+                    sb.append(aMember);
                 }
             }
             return "a VotingView[viewId=" + getViewId() 
                     + ", id=" + getResource().getName() + ", initiator="
-                    + initiatorId + ", members=" + sb + "]";
+                    + state.getInitiatorId() + ", members=" + sb + "]";
         } catch(Exception e) {
             return "a VotingView["+super.toString()+"]";
         }
@@ -209,26 +257,20 @@ public class VotingView extends View {
 
     /** Get the value of the votingStart property - or -1 if anything goes wrong reading that **/
     private long getVotingStartTime() {
-        ValueMap properties = null;
+        final VotingState state;
         try{
-            properties = getResource().adaptTo(ValueMap.class);
+            state = getVotingState();
         } catch(RuntimeException e) {
             logger.info("getVotingStartTime: could not get properties of "+getResource()+". Likely in creation: "+e, e);
             return -1;
         }
-        if (properties == null) {
-            // no properties, odd. then it's not a valid voting.
-            return -1;
-        }
-        final Date votingStartDate = properties.get("votingStart", Date.class);
-        if (votingStartDate == null) {
+        final long votingStart = state.getVotingStart();
+        if (votingStart == -1) {
         	if (logger.isDebugEnabled()) {
 	            logger.debug("getVotingStartTime: got a voting without votingStart. Likely in creation: "
 	                    + getResource());
         	}
-            return -1;
         }
-        final long votingStart = votingStartDate.getTime();
         return votingStart;
     }
 
@@ -237,25 +279,8 @@ public class VotingView extends View {
      * @return true if there are any no votes on this voting
      */
     public boolean hasNoVotes() {
-        Resource m = getResource().getChild("members");
-        if (m==null) {
-            // the vote is being created. wait.
-            return false;
-        }
-        final Iterator<Resource> it = m.getChildren()
-                .iterator();
-        while (it.hasNext()) {
-            Resource aMemberRes = it.next();
-            ValueMap properties = aMemberRes.adaptTo(ValueMap.class);
-            if (properties == null) {
-                continue;
-            }
-            Boolean vote = properties.get("vote", Boolean.class);
-            if (vote != null && !vote) {
-                return true;
-            }
-        }
-        return false;
+        // while the vote is being created there are no members, hence no no votes
+        return getVotingState().hasNoVotes();
     }
 
     /**
@@ -275,21 +300,7 @@ public class VotingView extends View {
      * is faulty), true if the instance voted yes, false if it voted no
      */
     public Boolean getVote(String slingId) {
-        Resource members = getResource().getChild("members");
-        if (members==null) {
-            return null;
-        }
-        final Resource memberResource = members.getChild(
-                slingId);
-        if (memberResource == null) {
-            return null;
-        }
-        final ValueMap properties = memberResource.adaptTo(ValueMap.class);
-        if (properties == null) {
-            return null;
-        }
-        final Boolean vote = properties.get("vote", Boolean.class);
-        return vote;
+        return getVotingState().getVote(slingId);
     }
 
     /**
@@ -297,36 +308,10 @@ public class VotingView extends View {
      * @return whether this voting was initiated by the given slingId
      */
     public boolean isInitiatedBy(final String slingId) {
-        Resource r = getResource();
-        if (r == null) {
-            return false;
-        }
-        Resource members = r.getChild("members");
-        if (members == null) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("isInitiatedBy: slingId=" + slingId + ", members null!");
-            }
-            return false;
-        }
-        final Resource memberResource = members.getChild(
-                slingId);
-        if (memberResource == null) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("isInitiatedBy: slingId=" + slingId + ", memberResource null!");
-            }
-            return false;
-        }
-        final ValueMap properties = memberResource.adaptTo(ValueMap.class);
-        if (properties == null) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("isInitiatedBy: slingId=" + slingId + ", properties null!");
-            }
-            return false;
-        }
-        final Boolean initiator = properties.get("initiator", Boolean.class);
-        boolean result = initiator != null && initiator;
+        final VotingState state = getVotingState();
+        final boolean result = state.isInitiatedBy(slingId);
         if (logger.isDebugEnabled()) {
-            logger.debug("isInitiatedBy: slingId=" + slingId + ", initiator=" + initiator + ", result=" + result);
+            logger.debug("isInitiatedBy: slingId=" + slingId + ", initiator=" + state.getInitiatorId() + ", result=" + result);
         }
         return result;
     }
@@ -346,6 +331,11 @@ public class VotingView extends View {
             logger.error("vote: no resource set. slingId = " + slingId + ", vote=" + vote);
             return;
         }
+        final ModifiableValueMap votingMap = r.adaptTo(ModifiableValueMap.class);
+        if (votingMap != null && CompactMembers.isCompact(votingMap)) {
+            voteCompact(votingMap, slingId, vote, leaderElectionId);
+            return;
+        }
         Resource members = r.getChild("members");
         if (members == null) {
             logger.error("vote: no members resource available for " + r + ". slingId = " + slingId + ", vote=" + vote);
@@ -422,6 +412,34 @@ public class VotingView extends View {
         } catch (PersistenceException e) {
             logger.error("vote: PersistenceException while voting: "+e, e);
         }
+        // the vote changed the members - parse them anew when needed
+        refresh();
+    }
+
+    /** add a vote to a voting in the compact format - see CompactMembers **/
+    private void voteCompact(final ModifiableValueMap votingMap, final String slingId,
+            final Boolean vote, final String leaderElectionId) {
+        if (!getVotingState().getMembers().contains(slingId)) {
+            if (vote == null || !vote) {
+                logger.debug("vote: not a member: slingId=" + slingId
+                        + ", vote=" + vote + ", resource=" + getResource());
+            } else {
+                logger.error("vote: not a member: slingId=" + slingId
+                        + ", vote=" + vote + ", resource=" + getResource());
+            }
+            return;
+        }
+        if (!CompactMembers.writeVote(votingMap, slingId, vote, leaderElectionId)) {
+            logger.debug("vote: already voted, with same vote ("+vote+"), not voting again");
+            return;
+        }
+        logger.info("vote: slingId=" + slingId + " is voting vote=" + vote+" on "+getResource());
+        try {
+            getResource().getResourceResolver().commit();
+        } catch (PersistenceException e) {
+            logger.error("vote: PersistenceException while voting: "+e, e);
+        }
+        refresh();
     }
 
     /**
@@ -430,31 +448,9 @@ public class VotingView extends View {
      * @return true if this voting is winning
      */
     public boolean isWinning() {
-        final Resource members = getResource().getChild("members");
-        if (members==null) {
-            // the vote is being created. wait.
-            return false;
-        }
         try{
-	        final Iterable<Resource> children = members.getChildren();
-	        final Iterator<Resource> it = children.iterator();
-	        boolean isWinning = false;
-	        while (it.hasNext()) {
-	            Resource aMemberRes = it.next();
-	            try{
-	                ValueMap properties = aMemberRes.adaptTo(ValueMap.class);
-	                Boolean vote = properties.get("vote", Boolean.class);
-	                if (vote != null && vote) {
-	                    isWinning = true;
-	                    continue;
-	                }
-	                return false;
-	            } catch(RuntimeException re) {
-	                logger.info("isWinning: Could not check vote due to "+re);
-	                return false;
-	            }
-	        }
-	        return isWinning;
+            // while the vote is being created there are no members: not winning yet
+            return getVotingState().isWinning();
         } catch(RuntimeException re) {
         	// SLING-2945: gracefully handle case where members node is
         	//             deleted by another instance
@@ -476,4 +472,12 @@ public class VotingView extends View {
         return matchesLiveView(clusterNodesRes, config);
     }
 
+    /**
+     * Checks if this voting matches the live view as per the given snapshot
+     * @throws Exception when something failed during matching
+     */
+    public String matchesLiveView(final DiscoverySnapshot snapshot, final Config config) throws Exception {
+        return matches(snapshot.getLiveInstances());
+    }
+
 }
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The compact storage format of the members of a voting (and hence of an
+ * established view): instead of a ./members child with one node per member,
+ * all is kept in properties of the voting node itself.
+ * <ul>
+ * <li>'memberIds': the comma-separated slingIds of the members</li>
+ * <li>'initiatorId': the slingId of the initiator</li>
+ * <li>'leaderElectionId_&lt;slingId&gt;': the leaderElectionId of a member</li>
+ * <li>'vote_&lt;slingId&gt;': the vote of a member, if it voted</li>
+ * </ul>
+ * Each member writes only its own properties when voting, so that concurrent
+ * votes do not conflict. Both formats are always read, see readMembers - the
+ * compact format is only written when enabled via compactViewStorage.
+ * <p>
+ * Only single-valued properties are used, as these are supported by any
+ * resource provider (and value map) the discovery tree may be stored with.
+ */
+public class CompactMembers {
+
+    public static final String PROPERTY_MEMBER_IDS = "memberIds";
+
+    public static final String PROPERTY_INITIATOR_ID = "initiatorId";
+
+    private static final String MEMBER_IDS_SEPARATOR = ",";
+
+    private static final String PREFIX_LEADER_ELECTION_ID = "leaderElectionId_";
+
+    private static final String PREFIX_VOTE = "vote_";
+
+    private static final String PREFIX_VOTED_AT = "votedAt_";
+
+    /**
+     * Check whether the given properties of a voting or view are in the compact format
+     * @return true if the members are kept in the given properties
+     */
+    public static boolean isCompact(final Map<String, Object> properties) {
+        return properties != null && properties.containsKey(PROPERTY_MEMBER_IDS);
+    }
+
+    /**
+     * Read the members from the given properties of a voting or view in the
+     * compact format - in the same form as the ./members children are read, ie
+     * with 'vote', 'initiator' and 'leaderElectionId' per member
+     * @return the (unmodifiable) member properties keyed by slingId - or
+     * null if the properties are not in the compact format
+     */
+    public static Map<String, Map<String, Object>> readMembers(final Map<String, Object> properties) {
+        if (!isCompact(properties)) {
+            return null;
+        }
+        final String memberIds = DiscoverySnapshot.toString(properties.get(PROPERTY_MEMBER_IDS));
+        final String[] ids = memberIds == null ? new String[0] : memberIds.split(MEMBER_IDS_SEPARATOR);
+        final String initiatorId = DiscoverySnapshot.toString(properties.get(PROPERTY_INITIATOR_ID));
+        final Map<String, Map<String, Object>> members = new LinkedHashMap<String, Map<String, Object>>();
+        for (String slingId : ids) {
+            if (slingId.length() == 0) {
+                continue;
+            }
+            final Map<String, Object> member = new HashMap<String, Object>();
+            final Object leaderElectionId = properties.get(PREFIX_LEADER_ELECTION_ID + slingId);
+            if (leaderElectionId != null) {
+                member.put("leaderElectionId", leaderElectionId);
+            }
+            final Object vote = properties.get(PREFIX_VOTE + slingId);
+            if (vote != null) {
+                member.put("vote", vote);
+            }
+            if (slingId.equals(initiatorId)) {
+                member.put("initiator", true);
+            }
+            members.put(slingId, Collections.unmodifiableMap(member));
+        }
+        return Collections.unmodifiableMap(members);
+    }
+
+    /**
+     * Write the members of a new voting in the compact format
+     * @param properties the properties of the new voting to write to
+     * @param initiatorId the slingId of the initiator - who votes yes implicitly
+     * @param leaderElectionIds the leaderElectionIds keyed by slingId of all members
+     */
+    public static void writeMembers(final Map<String, Object> properties, final String initiatorId,
+            final Map<String, String> leaderElectionIds) {
+        final StringBuilder memberIds = new StringBuilder();
+        for (String slingId : leaderElectionIds.keySet()) {
+            if (memberIds.length() != 0) {
+                memberIds.append(MEMBER_IDS_SEPARATOR);
+            }
+            memberIds.append(slingId);
+        }
+        properties.put(PROPERTY_MEMBER_IDS, memberIds.toString());
+        properties.put(PROPERTY_INITIATOR_ID, initiatorId);
+        for (Map.Entry<String, String> entry : leaderElectionIds.entrySet()) {
+            if (entry.getValue() != null) {
+                properties.put(PREFIX_LEADER_ELECTION_ID + entry.getKey(), entry.getValue());
+            }
+        }
+        properties.put(PREFIX_VOTE + initiatorId, true);
+        properties.put(PREFIX_VOTED_AT + initiatorId, Calendar.getInstance());
+    }
+
+    /**
+     * Write the vote of the given member in the compact format
+     * @param properties the properties of the voting to write to
+     * @param slingId the member voting
+     * @param vote the vote - null to remove it
+     * @param leaderElectionId the leaderElectionId to set - null to leave it unchanged
+     * @return false if the vote was not written as it was unchanged
+     */
+    public static boolean writeVote(final Map<String, Object> properties, final String slingId,
+            final Boolean vote, final String leaderElectionId) {
+        if (vote == null) {
+            properties.remove(PREFIX_VOTE + slingId);
+            properties.remove(PREFIX_VOTED_AT + slingId);
+            return true;
+        }
+        if (vote.equals(DiscoverySnapshot.toBoolean(properties.get(PREFIX_VOTE + slingId)))) {
+            return false;
+        }
+        properties.put(PREFIX_VOTE + slingId, vote);
+        properties.put(PREFIX_VOTED_AT + slingId, Calendar.getInstance());
+        if (leaderElectionId != null && !leaderElectionId.equals(
+                DiscoverySnapshot.toString(properties.get(PREFIX_LEADER_ELECTION_ID + slingId)))) {
+            // SLING-5030 : see VotingView.vote
+            properties.put(PREFIX_LEADER_ELECTION_ID + slingId, leaderElectionId);
+            properties.put("leaderElectionIdCreatedAt_" + slingId, new Date());
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.heartbeat.LiveInstanceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable, point-in-time copy of the discovery resource tree
+ * (clusterInstances, establishedView and ongoingVotings) which is read
+ * with one single traversal.
+ * <p>
+ * A view check reads such a snapshot once and evaluates all view and
+ * voting related decisions against it - instead of listing the children
+ * of ongoingVotings and clusterInstances over and over again.
+ * <p>
+ * Note that the resources referenced by the snapshot are still bound to
+ * the ResourceResolver they were read with: modifications (eg votes or
+ * removals) go through those resources but are not reflected in the
+ * snapshot itself.
+ */
+public class DiscoverySnapshot {
+
+    private final static Logger logger = LoggerFactory.getLogger(DiscoverySnapshot.class);
+
+    /**
+     * The pre-read state of a view (an established view or an ongoing voting)
+     */
+    public static class ViewState {
+
+        /** the resource this state was read from **/
+        private final Resource resource;
+
+        /** the properties of the view resource **/
+        private final Map<String, Object> properties;
+
+        /** the properties of each member keyed by slingId - null if there is no ./members **/
+        private final Map<String, Map<String, Object>> members;
+
+        ViewState(final Resource resource, final Map<String, Object> properties,
+                final Map<String, Map<String, Object>> members) {
+            this.resource = resource;
+            this.properties = properties;
+            this.members = members;
+        }
+
+        /** Read the state of the given view resource, including its members **/
+        static ViewState read(final Resource viewResource) {
+            final Map<String, Object> properties = readProperties(viewResource);
+            Map<String, Map<String, Object>> members = CompactMembers.readMembers(properties);
+            try{
+                final Resource membersRes = members != null ? null : viewResource.getChild("members");
+                if (membersRes != null) {
+                    members = new LinkedHashMap<String, Map<String, Object>>();
+                    final Iterator<Resource> it = membersRes.getChildren().iterator();
+                    while (it.hasNext()) {
+                        final Resource aMember = it.next();
+                        members.put(aMember.getName(), readProperties(aMember));
+                    }
+                    members = Collections.unmodifiableMap(members);
+                }
+            } catch(RuntimeException re) {
+                // SLING-2945 : the members resource could have been deleted
+                //              by another party simultaneously - treat
+                //              this as if there were no members at all
+                logger.info("read: could not read members of "+viewResource.getPath()+" due to "+re);
+                members = null;
+            }
+            return new ViewState(viewResource, properties, members);
+        }
+
+        /**
+         * Returns the resource this state was read from
+         * @return the resource this state was read from
+         */
+        public Resource getResource() {
+            return resource;
+        }
+
+        /**
+         * Returns the name of the view resource
+         * @return the name of the view resource
+         */
+        public String getName() {
+            return resource.getName();
+        }
+
+        /**
+         * Returns the (unmodifiable) properties of the view resource
+         * @return the (unmodifiable) properties of the view resource
+         */
+        public Map<String, Object> getProperties() {
+            return properties;
+        }
+
+        /**
+         * Returns the (unmodifiable) member properties keyed by slingId
+         * @return the (unmodifiable) member properties keyed by slingId
+         * - or null if the view has no ./members resource
+         */
+        public Map<String, Map<String, Object>> getMembers() {
+            return members;
+        }
+    }
+
+    /** the time (in millis) when this snapshot was read **/
+    private final long readAt;
+
+    /** the properties of each instance under clusterInstances, keyed by slingId **/
+    private final Map<String, Map<String, Object>> clusterInstances;
+
+    /** the instances with a current heartbeat at the time of reading **/
+    private final Set<String> liveInstances;
+
+    /** the established views - normally exactly one **/
+    private final List<ViewState> establishedViews;
+
+    /** the ongoing votings **/
+    private final List<ViewState> ongoingVotings;
+
+    private DiscoverySnapshot(final long readAt,
+            final Map<String, Map<String, Object>> clusterInstances,
+            final Set<String> liveInstances,
+            final List<ViewState> establishedViews,
+            final List<ViewState> ongoingVotings) {
+        this.readAt = readAt;
+        this.clusterInstances = clusterInstances;
+        this.liveInstances = liveInstances;
+        this.establishedViews = establishedViews;
+        this.ongoingVotings = ongoingVotings;
+    }
+
+    /**
+     * Read a new snapshot of the discovery resource tree. The caller is
+     * responsible for refreshing the resourceResolver beforehand if required.
+     * @param resourceResolver the resourceResolver to read with
+     * @param config the config providing the paths and the heartbeat timeout
+     * @return a new snapshot - never null
+     */
+    public static DiscoverySnapshot read(final ResourceResolver resourceResolver, final Config config) {
+        return read(resourceResolver, config, null);
+    }
+
+    /**
+     * Read a new snapshot of the discovery resource tree, taking the live
+     * instances from the given tracker if that one is current. In that case
+     * clusterInstances is not read and getClusterInstances() is empty.
+     * Otherwise clusterInstances is read and the tracker is reconciled with it.
+     * @param resourceResolver the resourceResolver to read with
+     * @param config the config providing the paths and the heartbeat timeout
+     * @param liveInstanceTracker the tracker to use - or null to always read clusterInstances
+     * @return a new snapshot - never null
+     */
+    public static DiscoverySnapshot read(final ResourceResolver resourceResolver, final Config config,
+            final LiveInstanceTracker liveInstanceTracker) {
+        if (resourceResolver == null) {
+            throw new IllegalArgumentException("resourceResolver must not be null");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("config must not be null");
+        }
+        final long readAt = System.currentTimeMillis();
+
+        final Map<String, Map<String, Object>> clusterInstances = new HashMap<String, Map<String, Object>>();
+        Set<String> liveInstances = liveInstanceTracker == null ? null
+                : liveInstanceTracker.getLiveInstances(readAt);
+        if (liveInstances == null) {
+            liveInstances = new HashSet<String>();
+            final Map<String, Date> heartbeats = new HashMap<String, Date>();
+            final Resource clusterInstancesRes = resourceResolver.getResource(config.getClusterInstancesPath());
+            if (clusterInstancesRes != null) {
+                final Iterator<Resource> it = clusterInstancesRes.getChildren().iterator();
+                while (it.hasNext()) {
+                    final Resource anInstance = it.next();
+                    final Map<String, Object> properties = readProperties(anInstance);
+                    clusterInstances.put(anInstance.getName(), properties);
+                    final long heartbeatAge = ViewHelper.getHeartbeatAge(anInstance.getName(), properties, readAt,
+                            liveInstanceTracker == null ? null : liveInstanceTracker.getHeartbeatSequenceObserver());
+                    final boolean hasLeft = ViewHelper.hasLeft(properties);
+                    // an instance that has left is treated as one without heartbeat - the others
+                    // with the (local) time of their last heartbeat
+                    heartbeats.put(anInstance.getName(),
+                            hasLeft || heartbeatAge == -1 ? null : new Date(readAt - heartbeatAge));
+                    if (!hasLeft && heartbeatAge != -1 && heartbeatAge < config.getHeartbeatTimeoutMillis()
+                            && (liveInstanceTracker == null
+                                || !liveInstanceTracker.isSuspected(anInstance.getName(), readAt))) {
+                        liveInstances.add(anInstance.getName());
+                    }
+                }
+            }
+            if (liveInstanceTracker != null) {
+                liveInstanceTracker.reconcile(heartbeats, readAt);
+            }
+        }
+
+        final List<ViewState> establishedViews = readViews(resourceResolver, config.getEstablishedViewPath());
+        final List<ViewState> ongoingVotings = readViews(resourceResolver, config.getOngoingVotingsPath());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("read: read snapshot with #clusterInstances: " + clusterInstances.size()
+                    + ", #liveInstances: " + liveInstances.size()
+                    + ", #establishedViews: " + establishedViews.size()
+                    + ", #ongoingVotings: " + ongoingVotings.size());
+        }
+        return new DiscoverySnapshot(readAt,
+                Collections.unmodifiableMap(clusterInstances),
+                Collections.unmodifiableSet(liveInstances),
+                establishedViews, ongoingVotings);
+    }
+
+    private static List<ViewState> readViews(final ResourceResolver resourceResolver, final String parentPath) {
+        final Resource parent = resourceResolver.getResource(parentPath);
+        if (parent == null) {
+            // it is legal that there is no such parent yet,
+            // for example when there was never a voting yet
+            return Collections.emptyList();
+        }
+        final List<ViewState> result = new ArrayList<ViewState>();
+        final Iterator<Resource> it = parent.getChildren().iterator();
+        while (it.hasNext()) {
+            result.add(ViewState.read(it.next()));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /** Copy the properties of the given resource into an unmodifiable map **/
+    static Map<String, Object> readProperties(final Resource resource) {
+        final ValueMap valueMap = resource.adaptTo(ValueMap.class);
+        if (valueMap == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new HashMap<String, Object>(valueMap));
+    }
+
+    /**
+     * Convert a property value as read from the repository to a Date
+     * @return the Date - or null if the value is not a date
+     */
+    public static Date toDate(final Object value) {
+        if (value instanceof Calendar) {
+            return ((Calendar) value).getTime();
+        } else if (value instanceof Date) {
+            return (Date) value;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Convert a property value as read from the repository to a Boolean
+     * @return the Boolean - or null if the value is not set
+     */
+    public static Boolean toBoolean(final Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else {
+            return Boolean.valueOf(value.toString());
+        }
+    }
+
+    /**
+     * Convert a property value as read from the repository to a String
+     * @return the String - or null if the value is not set
+     */
+    public static String toString(final Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Returns the time (in millis) when this snapshot was read
+     * @return the time (in millis) when this snapshot was read
+     */
+    public long getReadAt() {
+        return readAt;
+    }
+
+    /**
+     * Returns the (unmodifiable) properties of all instances under
+     * clusterInstances, keyed by slingId
+     * @return the (unmodifiable) properties of all instances under
+     * clusterInstances, keyed by slingId - empty if the live instances
+     * were taken from a LiveInstanceTracker
+     */
+    public Map<String, Map<String, Object>> getClusterInstances() {
+        return clusterInstances;
+    }
+
+    /**
+     * Returns the (unmodifiable) set of instances that had a current
+     * heartbeat at the time this snapshot was read
+     * @return the (unmodifiable) set of live instances
+     */
+    public Set<String> getLiveInstances() {
+        return liveInstances;
+    }
+
+    /**
+     * Returns the established views - normally this is exactly one or none
+     * @return the established views - never null
+     */
+    public List<ViewState> getEstablishedViews() {
+        return establishedViews;
+    }
+
+    /**
+     * Returns the ongoing votings
+     * @return the ongoing votings - never null
+     */
+    public List<ViewState> getOngoingVotings() {
+        return ongoingVotings;
+    }
+
+}
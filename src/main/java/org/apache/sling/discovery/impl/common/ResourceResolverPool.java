@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.discovery.impl.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Small pool of long-lived service ResourceResolvers owned by one discovery
+ * component.
+ * <p>
+ * Instead of logging in a new service resolver for every heartbeat,
+ * view check or voting analysis, a component acquires a resolver from its
+ * pool and releases it back once done. A resolver is only ever handed
+ * out to one user at a time - ResourceResolvers are not thread-safe.
+ * <p>
+ * Each resolver is refreshed when it is acquired and reverted when it
+ * is released. A resolver that fails either of that, that is no longer
+ * live or that is older than the maximum age is closed and replaced
+ * by a newly logged-in one.
+ */
+public class ResourceResolverPool {
+
+    private final static Logger logger = LoggerFactory.getLogger(ResourceResolverPool.class);
+
+    private final ResourceResolverFactory resourceResolverFactory;
+
+    /** the name of this pool, used for logging only **/
+    private final String name;
+
+    private final int maxIdle;
+
+    private final long maxAgeMillis;
+
+    /** the idle resolvers, most recently released first **/
+    private final Deque<ResourceResolver> idle = new ArrayDeque<ResourceResolver>();
+
+    /** the creation time of every resolver this pool manages, idle or in use **/
+    private final Map<ResourceResolver, Long> createdAt = new IdentityHashMap<ResourceResolver, Long>();
+
+    private boolean closed = false;
+
+    /**
+     * Create a new pool sized according to the given config
+     * @param resourceResolverFactory the factory to log in new service resolvers with
+     * @param name the name of this pool, used for logging only
+     * @param config the config providing the maximum idle count and age
+     */
+    public ResourceResolverPool(final ResourceResolverFactory resourceResolverFactory,
+            final String name, final Config config) {
+        this(resourceResolverFactory, name, config.getResourceResolverMaxIdle(),
+                config.getResourceResolverMaxAgeMillis());
+    }
+
+    /**
+     * Create a new pool
+     * @param resourceResolverFactory the factory to log in new service resolvers with
+     * @param name the name of this pool, used for logging only
+     * @param maxIdle the maximum number of idle resolvers to keep - 0 disables reuse
+     * @param maxAgeMillis the maximum age after which a resolver is closed and recreated
+     */
+    public ResourceResolverPool(final ResourceResolverFactory resourceResolverFactory,
+            final String name, final int maxIdle, final long maxAgeMillis) {
+        if (resourceResolverFactory == null) {
+            throw new IllegalArgumentException("resourceResolverFactory must not be null");
+        }
+        this.resourceResolverFactory = resourceResolverFactory;
+        this.name = name;
+        this.maxIdle = maxIdle;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Acquire a refreshed resolver - either a healthy idle one or a newly
+     * logged-in one. The resolver must be passed back via release()
+     * (or discard()) once done, instead of closing it.
+     */
+    public ResourceResolver acquire() throws LoginException {
+        while (true) {
+            final ResourceResolver resourceResolver = pollIdle();
+            if (resourceResolver == null) {
+                break;
+            }
+            if (!isHealthy(resourceResolver)) {
+                discard(resourceResolver);
+                continue;
+            }
+            try{
+                resourceResolver.refresh();
+            } catch(RuntimeException re) {
+                logger.info("acquire: [" + name + "] could not refresh idle resolver, recreating: " + re);
+                discard(resourceResolver);
+                continue;
+            }
+            return resourceResolver;
+        }
+        final ResourceResolver resourceResolver = resourceResolverFactory.getServiceResourceResolver(null);
+        synchronized(idle) {
+            createdAt.put(resourceResolver, System.currentTimeMillis());
+        }
+        logger.debug("acquire: [{}] logged in a new resolver", name);
+        return resourceResolver;
+    }
+
+    /**
+     * Release a resolver acquired earlier. Any pending changes are reverted.
+     * The resolver is either kept for reuse or closed if it is unhealthy
+     * or if there are enough idle resolvers already.
+     */
+    public void release(final ResourceResolver resourceResolver) {
+        if (resourceResolver == null) {
+            return;
+        }
+        try{
+            // make sure a failed commit does not leak into the next use
+            resourceResolver.revert();
+        } catch(RuntimeException re) {
+            logger.info("release: [" + name + "] could not revert resolver, closing it: " + re);
+            discard(resourceResolver);
+            return;
+        }
+        if (!isHealthy(resourceResolver)) {
+            discard(resourceResolver);
+            return;
+        }
+        synchronized(idle) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.push(resourceResolver);
+                return;
+            }
+        }
+        discard(resourceResolver);
+    }
+
+    /**
+     * Close a resolver acquired earlier without reusing it - eg after it
+     * failed in a way that leaves its state in question
+     */
+    public void discard(final ResourceResolver resourceResolver) {
+        if (resourceResolver == null) {
+            return;
+        }
+        synchronized(idle) {
+            createdAt.remove(resourceResolver);
+            idle.remove(resourceResolver);
+        }
+        try{
+            resourceResolver.close();
+        } catch(RuntimeException re) {
+            logger.info("discard: [" + name + "] could not close resolver: " + re);
+        }
+    }
+
+    /**
+     * Close all idle resolvers and stop pooling - resolvers
+     * released thereafter are closed right away
+     */
+    public void close() {
+        final ResourceResolver[] toClose;
+        synchronized(idle) {
+            closed = true;
+            toClose = idle.toArray(new ResourceResolver[idle.size()]);
+        }
+        for (ResourceResolver resourceResolver : toClose) {
+            discard(resourceResolver);
+        }
+    }
+
+    /**
+     * Returns the number of idle resolvers
+     * @return the number of idle resolvers
+     */
+    public int getIdleCount() {
+        synchronized(idle) {
+            return idle.size();
+        }
+    }
+
+    private ResourceResolver pollIdle() {
+        synchronized(idle) {
+            return idle.poll();
+        }
+    }
+
+    /** Health check of a resolver: it must be live and not exceed the maximum age **/
+    private boolean isHealthy(final ResourceResolver resourceResolver) {
+        final Long created;
+        synchronized(idle) {
+            created = createdAt.get(resourceResolver);
+        }
+        if (created == null || System.currentTimeMillis() - created > maxAgeMillis) {
+            logger.debug("isHealthy: [{}] resolver exceeded maximum age", name);
+            return false;
+        }
+        try{
+            return resourceResolver.isLive();
+        } catch(RuntimeException re) {
+            logger.debug("isHealthy: [{}] could not determine whether resolver is live: {}", name, re);
+            return false;
+        }
+    }
+
+}
@@ -20,6 +20,8 @@ package org.apache.sling.discovery.impl.common;
 
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.sling.api.resource.PersistenceException;
@@ -38,6 +40,8 @@ public class View {
     protected static final String VIEW_PROPERTY_CLUSTER_ID = "clusterId";
     protected static final String VIEW_PROPERTY_CLUSTER_ID_DEFINED_AT = "clusterIdDefinedAt";
     protected static final String VIEW_PROPERTY_CLUSTER_ID_DEFINED_BY = "clusterIdDefinedBy";
+    /** the digest of the members, see ViewHelper.membershipDigest - not set on views created before it was introduced **/
+    protected static final String VIEW_PROPERTY_MEMBERSHIP_DIGEST = "membershipDigest";
     
     /**
      * use static logger to avoid frequent initialization as is potentially the
@@ -48,11 +52,27 @@ public class View {
     /** the underlying resource which represents this view **/
     private final Resource resource;
 
+    /** the pre-read state of this view - or null if the resource is to be read directly **/
+    private final DiscoverySnapshot.ViewState state;
+
     public View(final Resource resource) {
         if (resource == null) {
             throw new IllegalArgumentException("resource must not be null");
         }
         this.resource = resource;
+        this.state = null;
+    }
+
+    /**
+     * Construct a view based on the state read as part of a DiscoverySnapshot -
+     * any subsequent read access is served from that state rather than the repository
+     */
+    public View(final DiscoverySnapshot.ViewState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("state must not be null");
+        }
+        this.resource = state.getResource();
+        this.state = state;
     }
 
     /**
@@ -84,6 +104,15 @@ public class View {
      * @return the id of this view
      */
     public String getViewId() {
+        if (state != null) {
+            final String clusterId = DiscoverySnapshot.toString(
+                    state.getProperties().get(VIEW_PROPERTY_CLUSTER_ID));
+            if (clusterId != null && clusterId.length() > 0) {
+                return clusterId;
+            } else {
+                return state.getName();
+            }
+        }
     	final ValueMap props = getResource().adaptTo(ValueMap.class);
     	if (props==null) {
     	    // avoid a NPE below
@@ -113,34 +142,122 @@ public class View {
     }
 
     /**
-     * Compare this view with the given set of slingIds
+     * Returns the properties of the members of this view keyed by slingId,
+     * either from the pre-read state or freshly read from the repository.
+     * @return the member properties keyed by slingId - or null if
+     * there is no ./members resource
+     * @throws RuntimeException if the members cannot be read, eg because
+     * they have been deleted concurrently
+     */
+    protected Map<String, Map<String, Object>> readMembers() {
+        if (state != null) {
+            return state.getMembers();
+        }
+        final Map<String, Map<String, Object>> compactMembers = CompactMembers.readMembers(readProperties());
+        if (compactMembers != null) {
+            return compactMembers;
+        }
+        final Resource members = getResource().getChild("members");
+        if (members == null) {
+            return null;
+        }
+        final Map<String, Map<String, Object>> result = new LinkedHashMap<String, Map<String, Object>>();
+        final Iterator<Resource> it = members.getChildren().iterator();
+        while (it.hasNext()) {
+            final Resource aMemberRes = it.next();
+            result.put(aMemberRes.getName(), DiscoverySnapshot.readProperties(aMemberRes));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the slingIds of the members of this view
+     * @return the slingIds of the members - or null if
+     * there is no ./members resource
+     * @throws RuntimeException if the members cannot be read, eg because
+     * they have been deleted concurrently
+     */
+    protected Set<String> readMemberIds() {
+        final Map<String, Map<String, Object>> members = readMembers();
+        return members == null ? null : members.keySet();
+    }
+
+    /**
+     * Returns the slingIds of the members of this view - in either storage format
+     * @return the slingIds of the members - or null if there are none stored
+     * @throws RuntimeException if the members cannot be read
+     */
+    public Set<String> getMemberIds() {
+        return readMemberIds();
+    }
+
+    /**
+     * Returns the properties of this view, either from the pre-read
+     * state or freshly read from the repository.
+     * @return the properties of this view - or null if they cannot be read
+     */
+    protected Map<String, Object> readProperties() {
+        if (state != null) {
+            return state.getProperties();
+        }
+        return getResource().adaptTo(ValueMap.class);
+    }
+
+    /**
+     * Compare this view with the given set of slingIds - see
+     * matches(Set, String), the digest of the set is computed here.
+     */
+    public String matches(final Set<String> view) throws Exception {
+        return matches(view, ViewHelper.membershipDigest(view));
+    }
+
+    /**
+     * Compare this view with the given set of slingIds.
+     * <p>
+     * If the view carries a membershipDigest, a matching digest of the given
+     * set is a match right away. Otherwise - or on a mismatch - the members
+     * are compared one by one to provide the details.
      * @param view a set of slingIds against which to compare this view
+     * @param viewDigest the membershipDigest of the given set - as computed
+     * by ViewHelper.membershipDigest, once per set rather than per comparison
      * @return true if this view matches the given set of slingIds
      * @throws Exception thrown the view cannot be properly matched
      * - eg when the ./members resource doesn't exist at all or
      * a RuntimeException occurs
      */
-    public String matches(final Set<String> view) throws Exception {
-        final Set<String> viewCopy = new HashSet<String>(view);
-        final Resource members = getResource().getChild("members");
-        if (members == null) {
-            throw new Exception("no members resource found");
+    public String matches(final Set<String> view, final String viewDigest) throws Exception {
+        try{
+            final Map<String, Object> properties = readProperties();
+            final String membershipDigest = properties == null ? null
+                    : DiscoverySnapshot.toString(properties.get(VIEW_PROPERTY_MEMBERSHIP_DIGEST));
+            if (membershipDigest != null && membershipDigest.equals(viewDigest)) {
+                // the steady state: no need to read and compare the members one by one
+                return null;
+            }
+        } catch(RuntimeException re) {
+            // SLING-2945 : see below - fall back to the detailed comparison
+            logger.debug("matches: cannot compare digest due to "+re);
         }
+        final Set<String> viewCopy = new HashSet<String>(view);
         try{
-	        final Iterator<Resource> it = members.getChildren().iterator();
+            final Set<String> members = readMemberIds();
+            if (members == null) {
+                throw new Exception("no members resource found");
+            }
+	        final Iterator<String> it = members.iterator();
 	        StringBuffer sb = new StringBuffer();
 	        boolean success = true;
 	        while (it.hasNext()) {
-	            Resource aMemberRes = it.next();
+	            String aMemberId = it.next();
 	
 	            if (sb.length() != 0) {
 	                sb.append(", ");
 	            }
-	            if (!viewCopy.remove(aMemberRes.getName())) {
+	            if (!viewCopy.remove(aMemberId)) {
 	                success = false;
-	                sb.append("old: " + aMemberRes.getName());
+	                sb.append("old: " + aMemberId);
 	            } else {
-	                sb.append("fine: " + aMemberRes.getName());
+	                sb.append("fine: " + aMemberId);
 	            }
 	        }
 	        // now the ViewCopy set must be empty to represent a match
@@ -18,15 +18,22 @@
  */
 package org.apache.sling.discovery.impl.common;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatSequenceObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,6 +64,18 @@ public class ViewHelper {
         return myView;
     }
 
+    /**
+     * Return the list of cluster instances that are 'live' as per the
+     * given snapshot of the discovery resource tree
+     * @param snapshot the snapshot read earlier in this cycle
+     * @param config
+     * @return
+     */
+    public static Set<String> determineLiveInstances(
+            final DiscoverySnapshot snapshot, final Config config) {
+        return new HashSet<String>(snapshot.getLiveInstances());
+    }
+
     /**
      * Chck if the given resource has a heartbeat sent within the
      * configured heartbeat timeout
@@ -67,14 +86,95 @@ public class ViewHelper {
     private static boolean isHeartBeatCurrent(
             Resource aClusterInstanceResource, final Config config) {
         final ValueMap properties = aClusterInstanceResource.adaptTo(ValueMap.class);
-        final Date lastHeartbeat = properties.get("lastHeartbeat", Date.class);
-        final long now = System.currentTimeMillis();
+        if (hasLeft(properties)) {
+            return false;
+        }
+        final long heartbeatAge = getHeartbeatAge(aClusterInstanceResource.getName(),
+                properties, System.currentTimeMillis(), null);
+        return heartbeatAge != -1 && heartbeatAge < config.getHeartbeatTimeoutMillis();
+    }
+
+    /**
+     * Returns the age (in millis) of the last heartbeat of the given instance.
+     * <p>
+     * If the instance writes a 'heartbeatSequence' and an observer is given,
+     * the age is the time since the sequence was last seen advancing - measured
+     * with the local System.nanoTime, hence not subject to clock differences
+     * between the instances (SLING-3432). Otherwise the age is derived from the
+     * 'lastHeartbeat' written with the clock of the instance.
+     * @param slingId the slingId of the instance
+     * @param properties the properties of the instance under clusterInstances
+     * @param now the local time (in millis) the properties were read
+     * @param observer the observer of the heartbeat sequences - or null to use
+     * the lastHeartbeat only
+     * @return the age (in millis) of the last heartbeat - or -1 if there is none
+     */
+    public static long getHeartbeatAge(final String slingId, final Map<String, Object> properties,
+            final long now, final HeartbeatSequenceObserver observer) {
+        final Date lastHeartbeat = DiscoverySnapshot.toDate(properties.get("lastHeartbeat"));
         if (lastHeartbeat == null) {
+            return -1;
+        }
+        final long wallClockAge = now - lastHeartbeat.getTime();
+        final Object sequence = properties.get("heartbeatSequence");
+        if (observer == null || !(sequence instanceof Number)) {
+            // not observed or an instance not writing a sequence
+            return wallClockAge;
+        }
+        return observer.observe(slingId, ((Number) sequence).longValue(), wallClockAge);
+    }
+
+    /**
+     * Check if the given instance has left the cluster orderly, ie has
+     * marked itself as left ('leftAt') after its last heartbeat.
+     * <p>
+     * Such an instance is not live anymore - without waiting for its
+     * heartbeat to time out. A heartbeat written thereafter (ie on restart)
+     * makes it live again. Both values are written by the instance itself,
+     * hence are not subject to clock differences between instances.
+     * @param properties the properties of the instance under clusterInstances
+     * @return true if the instance has left the cluster
+     */
+    public static boolean hasLeft(final Map<String, Object> properties) {
+        final Date leftAt = DiscoverySnapshot.toDate(properties.get("leftAt"));
+        if (leftAt == null) {
             return false;
         }
-        final long then = lastHeartbeat.getTime();
-        final long diff = now - then;
-        return (diff < config.getHeartbeatTimeoutMillis());
+        final Date lastHeartbeat = DiscoverySnapshot.toDate(properties.get("lastHeartbeat"));
+        return lastHeartbeat != null && !leftAt.before(lastHeartbeat);
+    }
+
+    /**
+     * Compute the canonical digest of the given membership: the SHA-256 of the
+     * sorted slingIds - independent of the order in which they are given.
+     * <p>
+     * Stored on each voting (and hence established view) upon creation, this
+     * allows a view to be matched against the live instances with a single
+     * property read - see View.matches.
+     * @param slingIds the slingIds of the members
+     * @return the hex encoded digest of the membership
+     */
+    public static String membershipDigest(final Collection<String> slingIds) {
+        final String[] sorted = slingIds.toArray(new String[slingIds.size()]);
+        Arrays.sort(sorted);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String slingId : sorted) {
+                digest.update(slingId.getBytes("UTF-8"));
+                // separator which can't be part of a slingId
+                digest.update((byte) 0);
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported: " + e, e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported: " + e, e);
+        }
     }
 
     /**
@@ -117,4 +217,34 @@ public class ViewHelper {
         }
     }
 
+    /**
+     * Return the currently established cluster view as per the given
+     * snapshot - or null if there is no cluster view established at the
+     * moment.
+     * <p>
+     * Same as getEstablishedView(ResourceResolver, Config) incl the
+     * emergency cleanup - but without reading the repository again.
+     */
+    public static View getEstablishedView(final DiscoverySnapshot snapshot, final Config config) {
+        final Iterator<DiscoverySnapshot.ViewState> it = snapshot.getEstablishedViews().iterator();
+        if (!it.hasNext()) {
+            logger.debug("getEstablishedView: no established view found in snapshot: {}", config.getEstablishedViewPath());
+            return null;
+        }
+        DiscoverySnapshot.ViewState establishedView = it.next();
+        if (!it.hasNext()) {
+            return new View(establishedView);
+        }
+        // emergency cleanup in case there is more than one established view:
+        while (true) {
+            logger.error("getEstablishedView: more than one established view encountered! Removing: "
+                    + establishedView.getResource());
+            new View(establishedView).remove(false);
+            if (!it.hasNext()) {
+                return null;
+            }
+            establishedView = it.next();
+        }
+    }
+
 }
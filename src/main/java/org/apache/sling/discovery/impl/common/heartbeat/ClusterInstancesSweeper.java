@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the entries of long-dead instances from clusterInstances -
+ * together with their syncTokens and idMap entries.
+ * <p>
+ * An instance is considered long-dead when its lastHeartbeat is older
+ * than the configured retention (clusterInstancesRetentionFactor times the
+ * heartbeatTimeout). Instances that are part of the established view or
+ * of an ongoing voting are never removed. The removals are committed in
+ * batches of BATCH_SIZE - and at most MAX_BATCHES per sweep, the rest is
+ * left for the next sweep.
+ * <p>
+ * The sweeper is to be invoked by the leader only - to avoid all instances
+ * doing the same removals concurrently. A failed sweep is retried after
+ * one heartbeatTimeout at the earliest - not on every view check.
+ */
+class ClusterInstancesSweeper {
+
+    private final static Logger logger = LoggerFactory.getLogger(ClusterInstancesSweeper.class);
+
+    /** the number of instances removed per commit **/
+    static final int BATCH_SIZE = 50;
+
+    /** the maximum number of commits per sweep **/
+    static final int MAX_BATCHES = 10;
+
+    /** a sweep is done at most every SWEEP_INTERVAL_FACTOR times the heartbeatTimeout **/
+    private static final int SWEEP_INTERVAL_FACTOR = 10;
+
+    /** the time (in millis) of the last completed sweep **/
+    private long lastSweepAt = -1;
+
+    /** the time (in millis) of the last failed sweep - -1 if the last sweep did not fail **/
+    private long lastFailedAt = -1;
+
+    /**
+     * Returns whether sweeping is enabled and the last completed
+     * sweep is old enough to do another one
+     */
+    boolean isSweepDue(final Config config, final long now) {
+        if (config.getClusterInstancesRetentionMillis() <= 0) {
+            return false;
+        }
+        if (lastFailedAt != -1 && now - lastFailedAt < config.getHeartbeatTimeoutMillis()) {
+            // back off after a failure
+            return false;
+        }
+        return lastSweepAt == -1
+                || now - lastSweepAt >= SWEEP_INTERVAL_FACTOR * config.getHeartbeatTimeoutMillis();
+    }
+
+    /**
+     * Remove the long-dead instances
+     * @param resourceResolver the resourceResolver to use - it is committed
+     * @param config the config providing the paths and the retention
+     * @param localSlingId the local instance, which is never removed
+     * @return the number of instances removed
+     */
+    int sweep(final ResourceResolver resourceResolver, final Config config,
+            final String localSlingId) throws PersistenceException {
+        final long now = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            final int removed = doSweep(resourceResolver, config, localSlingId, now);
+            failed = false;
+            return removed;
+        } finally {
+            lastFailedAt = failed ? now : -1;
+        }
+    }
+
+    private int doSweep(final ResourceResolver resourceResolver, final Config config,
+            final String localSlingId, final long now) throws PersistenceException {
+        final long retentionMillis = config.getClusterInstancesRetentionMillis();
+        final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config);
+
+        // paranoia: never remove anyone still mentioned in a view or voting
+        final Set<String> protectedIds = new HashSet<String>();
+        protectedIds.add(localSlingId);
+        protectedIds.addAll(snapshot.getLiveInstances());
+        for (DiscoverySnapshot.ViewState aView : snapshot.getEstablishedViews()) {
+            addMembers(aView, protectedIds);
+        }
+        for (DiscoverySnapshot.ViewState aVoting : snapshot.getOngoingVotings()) {
+            addMembers(aVoting, protectedIds);
+        }
+
+        final List<String> stale = new LinkedList<String>();
+        for (Entry<String, Map<String, Object>> anInstance : snapshot.getClusterInstances().entrySet()) {
+            if (protectedIds.contains(anInstance.getKey())) {
+                continue;
+            }
+            final Date lastHeartbeat = DiscoverySnapshot.toDate(anInstance.getValue().get("lastHeartbeat"));
+            if (lastHeartbeat == null) {
+                // could be an instance writing its very first heartbeat right now
+                continue;
+            }
+            if (now - lastHeartbeat.getTime() > retentionMillis) {
+                stale.add(anInstance.getKey());
+            }
+        }
+        if (stale.isEmpty()) {
+            logger.debug("sweep: no stale instances found");
+            lastSweepAt = now;
+            return 0;
+        }
+
+        final ModifiableValueMap syncTokens = getModifiableValueMap(resourceResolver, config.getSyncTokenPath());
+        final ModifiableValueMap idMap = getModifiableValueMap(resourceResolver, config.getIdMapPath());
+        int removed = 0;
+        int inBatch = 0;
+        int batches = 0;
+        for (String slingId : stale) {
+            final Resource instanceRes = resourceResolver.getResource(
+                    config.getClusterInstancesPath() + "/" + slingId);
+            if (instanceRes != null) {
+                // includes ./properties and ./announcements
+                resourceResolver.delete(instanceRes);
+            }
+            if (syncTokens != null) {
+                syncTokens.remove(slingId);
+            }
+            if (idMap != null) {
+                idMap.remove(slingId);
+            }
+            removed++;
+            if (++inBatch >= BATCH_SIZE) {
+                resourceResolver.commit();
+                inBatch = 0;
+                if (++batches >= MAX_BATCHES) {
+                    break;
+                }
+            }
+        }
+        if (inBatch > 0) {
+            resourceResolver.commit();
+        }
+        logger.info("sweep: removed " + removed + " of " + stale.size() + " stale instances older than "
+                + retentionMillis + "ms from " + config.getClusterInstancesPath());
+        if (removed == stale.size()) {
+            lastSweepAt = now;
+        } // else continue with the next check
+        return removed;
+    }
+
+    private static void addMembers(final DiscoverySnapshot.ViewState view, final Set<String> result) {
+        final Map<String, Map<String, Object>> members = view.getMembers();
+        if (members != null) {
+            result.addAll(members.keySet());
+        }
+    }
+
+    private static ModifiableValueMap getModifiableValueMap(final ResourceResolver resourceResolver,
+            final String path) {
+        final Resource resource = resourceResolver.getResource(path);
+        return resource == null ? null : resource.adaptTo(ModifiableValueMap.class);
+    }
+
+}
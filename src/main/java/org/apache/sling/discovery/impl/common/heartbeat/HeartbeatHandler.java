@@ -18,12 +18,20 @@
  */
 package org.apache.sling.discovery.impl.common.heartbeat;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Session;
 
@@ -34,8 +42,10 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.discovery.InstanceDescription;
 import org.apache.sling.discovery.base.commons.BaseViewChecker;
 import org.apache.sling.discovery.base.commons.PeriodicBackgroundJob;
+import org.apache.sling.discovery.base.commons.UndefinedClusterViewException;
 import org.apache.sling.discovery.base.connectors.BaseConfig;
 import org.apache.sling.discovery.base.connectors.announcement.AnnouncementRegistry;
 import org.apache.sling.discovery.base.connectors.ping.ConnectorRegistry;
@@ -44,9 +54,14 @@ import org.apache.sling.discovery.impl.Config;
 import org.apache.sling.discovery.impl.DiscoveryServiceImpl;
 import org.apache.sling.discovery.impl.cluster.voting.VotingHandler;
 import org.apache.sling.discovery.impl.cluster.voting.VotingHelper;
+import org.apache.sling.discovery.impl.cluster.voting.VotingTimelines;
 import org.apache.sling.discovery.impl.cluster.voting.VotingView;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+import org.apache.sling.discovery.impl.common.ResourceResolverPool;
 import org.apache.sling.discovery.impl.common.View;
 import org.apache.sling.discovery.impl.common.ViewHelper;
+import org.apache.sling.discovery.impl.common.jfr.DiscoveryEvents;
+import org.apache.sling.discovery.impl.common.metrics.DiscoveryMetrics;
 import org.apache.sling.settings.SlingSettingsService;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.ServiceReference;
@@ -78,6 +93,12 @@ public class HeartbeatHandler extends BaseViewChecker {
 
     private static final String PROPERTY_ID_LAST_HEARTBEAT = "lastHeartbeat";
 
+    /** incremented with every heartbeat - see ViewHelper.getHeartbeatAge **/
+    private static final String PROPERTY_ID_HEARTBEAT_SEQUENCE = "heartbeatSequence";
+
+    /** the time an instance left the cluster orderly - see ViewHelper.hasLeft **/
+    private static final String PROPERTY_ID_LEFT_AT = "leftAt";
+
     @Reference
     protected SlingSettingsService slingSettingsService;
 
@@ -99,6 +120,15 @@ public class HeartbeatHandler extends BaseViewChecker {
     @Reference
     private VotingHandler votingHandler;
 
+    @Reference
+    private LiveInstanceTracker liveInstanceTracker;
+
+    @Reference
+    private DiscoveryMetrics metrics;
+
+    @Reference
+    private VotingTimelines votingTimelines;
+
     /** the id which is to be used for the next voting **/
     private String nextVotingId = UUID.randomUUID().toString();
 
@@ -120,12 +150,51 @@ public class HeartbeatHandler extends BaseViewChecker {
 
     private DiscoveryServiceImpl discoveryServiceImpl;
 
-    private String lastEstablishedViewId;
+    private volatile String lastEstablishedViewId;
+
+    /** the live instances as of the last view check - for monitoring **/
+    private volatile Set<String> lastLiveInstances = Collections.emptySet();
+
+    /** the membershipDigest of lastLiveInstances - only recomputed when they change, guarded by the view check **/
+    private String lastLiveInstancesDigest;
+
+    /** the number of ongoing votings as of the last view check - for monitoring **/
+    private volatile int lastOngoingVotings = 0;
 
     protected String failedEstablishedViewId;
 
     protected PeriodicBackgroundJob periodicCheckJob;
 
+    /** removes the entries of long-dead instances - used on the leader only **/
+    private final ClusterInstancesSweeper clusterInstancesSweeper = new ClusterInstancesSweeper();
+
+    /** the long-lived ResourceResolvers used for heartbeats and view checks **/
+    private ResourceResolverPool resourceResolverPool;
+
+    /** set on deactivate - no resolvers are pooled thereafter **/
+    private boolean resolversClosed = false;
+
+    /** the cluster-local heartbeat - run by the periodic heartbeat job itself - null unless heartbeatLanes **/
+    private volatile HeartbeatLane clusterLocalHeartbeatLane;
+
+    /** the properties update on its own thread - null unless heartbeatLanes **/
+    private volatile HeartbeatLane propertiesLane;
+
+    /** the connector pings on their own thread - null unless heartbeatLanes **/
+    private volatile HeartbeatLane connectorPingLane;
+
+    /** the time (in millis) the view check first found the view not settled - -1 while settled **/
+    private volatile long unsettledSince = -1;
+
+    /** checks the view in the fastCheckViewInterval while it is not settled - created on first use **/
+    private ScheduledExecutorService fastCheckViewExecutor;
+
+    /** whether a fast view check is scheduled already - guarded by this **/
+    private boolean fastCheckViewScheduled;
+
+    /** the time (in millis) the need for a new voting was first noticed - -1 if there's none **/
+    private long votingRequiredSince = -1;
+
     /** for testing only **/
     public static HeartbeatHandler testConstructor(
             SlingSettingsService slingSettingsService,
@@ -207,6 +276,66 @@ public class HeartbeatHandler extends BaseViewChecker {
             periodicCheckJob.stop();
             periodicCheckJob = null;
         }
+        stopLanes();
+        issueDepartureMarker();
+        synchronized(this) {
+            resolversClosed = true;
+            if (resourceResolverPool != null) {
+                // kept, so that no new pool is created: the closed pool closes
+                // the resolvers still acquired thereafter on release
+                resourceResolverPool.close();
+            }
+            if (fastCheckViewExecutor != null) {
+                fastCheckViewExecutor.shutdownNow();
+                fastCheckViewExecutor = null;
+                fastCheckViewScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Mark the local instance as having left the cluster - so that the other
+     * instances don't have to wait for the heartbeat timeout but can
+     * start a new voting right away.
+     * <p>
+     * Only done when this instance has written a heartbeat earlier and the
+     * clusterInstances resource is still its own (SLING-2901).
+     */
+    protected void issueDepartureMarker() {
+        synchronized(lock) {
+            if (firstHeartbeatWritten == -1 || resourceResolverFactory == null) {
+                return;
+            }
+            ResourceResolver resourceResolver = null;
+            final String myClusterNodePath = getLocalClusterNodePath();
+            try {
+                resourceResolver = getResourceResolver();
+                final Resource resource = resourceResolver.getResource(myClusterNodePath);
+                if (resource == null) {
+                    logger.info("issueDepartureMarker: no cluster instance resource found: " + myClusterNodePath);
+                    return;
+                }
+                final ModifiableValueMap resourceMap = resource.adaptTo(ModifiableValueMap.class);
+                if (!runtimeId.equals(resourceMap.get(PROPERTY_ID_RUNTIME, String.class))) {
+                    logger.info("issueDepartureMarker: runtimeId changed, not marking " + myClusterNodePath + " as left");
+                    return;
+                }
+                resourceMap.put(PROPERTY_ID_LEFT_AT, Calendar.getInstance());
+                resourceResolver.commit();
+                logger.info("issueDepartureMarker: marked local instance as left: {}", slingId);
+                firstHeartbeatWritten = -1;
+                lastHeartbeatWritten = null;
+            } catch (LoginException e) {
+                logger.error("issueDepartureMarker: could not log in administratively: " + e, e);
+            } catch (PersistenceException e) {
+                logger.warn("issueDepartureMarker: could not mark local instance as left: "
+                        + myClusterNodePath + " " + e, e);
+                discardResourceResolver(resourceResolver);
+                resourceResolver = null;
+            } finally {
+                releaseResourceResolver(resourceResolver);
+            }
+        }
     }
 
     /**
@@ -230,6 +359,9 @@ public class HeartbeatHandler extends BaseViewChecker {
         	this.nextVotingId = initialVotingId;
         	logger.info("initialize: nextVotingId="+nextVotingId);
             issueHeartbeat();
+            if (config.isSingleInstanceFastPathEnabled()) {
+                establishSingleInstanceView();
+            }
         }
 
         try {
@@ -239,6 +371,9 @@ public class HeartbeatHandler extends BaseViewChecker {
                 logger.warn("initialize: Repeat interval cannot be zero. Defaulting to 10sec");
                 interval = 10;
             }
+            if (config.isHeartbeatLanesEnabled()) {
+                startLanes(interval * 1000);
+            }
             periodicPingJob = new PeriodicBackgroundJob(interval, NAME, this);
         } catch (Exception e) {
             logger.error("activate: Could not start heartbeat runner: " + e, e);
@@ -298,13 +433,177 @@ public class HeartbeatHandler extends BaseViewChecker {
         }
     }
 
-    /** Get or create a ResourceResolver **/
+    /**
+     * Split the heartbeat into independent lanes: the cluster-local heartbeat
+     * remains with the periodic heartbeat job, while the properties update
+     * and the connector pings get a thread of their own. That way neither
+     * is ever queued behind the other - and the cluster-local heartbeat
+     * in particular is not delayed by slow properties or connectors.
+     */
+    private void startLanes(final long intervalMillis) {
+        logger.info("startLanes: running heartbeat, properties and connector pings independently, interval={}ms", intervalMillis);
+        clusterLocalHeartbeatLane = new HeartbeatLane(NAME + ".clusterLocalHeartbeat", intervalMillis, new Runnable() {
+
+            @Override
+            public void run() {
+                if (!issueMergedHeartbeat()) {
+                    issueClusterLocalHeartbeat();
+                }
+            }
+        });
+        if (!config.isMergePropertiesIntoHeartbeatEnabled()) {
+            final HeartbeatLane lane = new HeartbeatLane(NAME + ".properties", intervalMillis, new Runnable() {
+
+                @Override
+                public void run() {
+                    updateProperties();
+                }
+            });
+            lane.start(intervalMillis);
+            propertiesLane = lane;
+        }
+        final HeartbeatLane lane = new HeartbeatLane(NAME + ".connectorPings", intervalMillis, new Runnable() {
+
+            @Override
+            public void run() {
+                issueConnectorPings();
+            }
+        });
+        lane.start(intervalMillis);
+        connectorPingLane = lane;
+    }
+
+    /**
+     * Trigger the properties update and the connector pings asap - eg to
+     * propagate a topology change through the connectors. The base
+     * implementation forces the pings (ignoring any connector backoff) and
+     * fires the heartbeat job, which issues a heartbeat and checks the view.
+     * With heartbeatLanes that job leaves the pings to their lane, hence
+     * additionally the properties lane (or the cluster-local heartbeat lane,
+     * if the properties are merged into the heartbeat) and then the connector
+     * ping lane are run, on the thread of the latter.
+     */
+    @Override
+    public void triggerAsyncConnectorPing() {
+        super.triggerAsyncConnectorPing();
+        final HeartbeatLane connectorPings = connectorPingLane;
+        if (connectorPings == null) {
+            return;
+        }
+        final HeartbeatLane properties = propertiesLane;
+        connectorPings.trigger(properties != null ? properties : clusterLocalHeartbeatLane);
+    }
+
+    /** Stop the threads of the properties and connector ping lanes **/
+    private void stopLanes() {
+        final HeartbeatLane properties = propertiesLane;
+        propertiesLane = null;
+        if (properties != null) {
+            properties.close();
+        }
+        final HeartbeatLane connectorPings = connectorPingLane;
+        connectorPingLane = null;
+        if (connectorPings != null) {
+            connectorPings.close();
+        }
+        clusterLocalHeartbeatLane = null;
+    }
+
+    /**
+     * Returns the statistics of the heartbeat lanes, one line per lane -
+     * empty unless heartbeatLanes is enabled
+     */
+    public List<String> getHeartbeatLaneStatistics() {
+        final List<String> result = new ArrayList<String>();
+        for (HeartbeatLane lane : new HeartbeatLane[] {
+                clusterLocalHeartbeatLane, propertiesLane, connectorPingLane }) {
+            if (lane != null) {
+                result.add(lane.getStatistics());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Single-instance fast path: when the local instance is the only live
+     * instance, it wins any voting by definition - hence vote for and promote
+     * its view right away, instead of waiting for the first view check.
+     * <p>
+     * The voting uses the nextVotingId, ie the initialVotingId, so that the
+     * clusterId handed out before the first voting remains valid.
+     */
+    private void establishSingleInstanceView() {
+        if (votingHandler == null || discoveryServiceImpl == null) {
+            return;
+        }
+        ResourceResolver resourceResolver = null;
+        try {
+            resourceResolver = getResourceResolver();
+            if (resourceResolver == null) {
+                return;
+            }
+            resourceResolver.refresh();
+            final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, liveInstanceTracker);
+            final Set<String> liveInstances = ViewHelper.determineLiveInstances(snapshot, config);
+            if (liveInstances.size() != 1 || !liveInstances.contains(slingId)) {
+                logger.debug("establishSingleInstanceView: not the only live instance: {}", liveInstances);
+                return;
+            }
+            if (!snapshot.getOngoingVotings().isEmpty()) {
+                logger.debug("establishSingleInstanceView: there are ongoing votings already");
+                return;
+            }
+            final View establishedView = ViewHelper.getEstablishedView(snapshot, config);
+            if (establishedView != null && establishedView.matches(liveInstances) == null) {
+                logger.debug("establishSingleInstanceView: the established view matches already");
+                return;
+            }
+            logger.info("establishSingleInstanceView: only live instance, establishing the view right away: {}", nextVotingId);
+            doStartNewVoting(resourceResolver, liveInstances);
+            votingHandler.analyzeVotings(resourceResolver);
+            discoveryServiceImpl.getClusterViewServiceImpl().invalidateCachedView();
+        } catch (Exception e) {
+            // the regular view check takes over
+            logger.warn("establishSingleInstanceView: could not establish the view: " + e, e);
+            discardResourceResolver(resourceResolver);
+            resourceResolver = null;
+        } finally {
+            releaseResourceResolver(resourceResolver);
+        }
+    }
+
+    /** Get or create the pool of ResourceResolvers - which is closed, ie not pooling, once deactivated **/
+    private synchronized ResourceResolverPool getResourceResolverPool() {
+        if (resourceResolverPool == null) {
+            resourceResolverPool = new ResourceResolverPool(resourceResolverFactory, NAME, config);
+            if (resolversClosed) {
+                resourceResolverPool.close();
+            }
+        }
+        return resourceResolverPool;
+    }
+
+    /** Get or create a ResourceResolver - to be passed back via releaseResourceResolver **/
     private ResourceResolver getResourceResolver() throws LoginException {
         if (resourceResolverFactory == null) {
             logger.error("getResourceResolver: resourceResolverFactory is null!");
             return null;
         }
-        return resourceResolverFactory.getServiceResourceResolver(null);
+        return getResourceResolverPool().acquire();
+    }
+
+    /** Pass a ResourceResolver back for reuse **/
+    private void releaseResourceResolver(final ResourceResolver resourceResolver) {
+        if (resourceResolver != null) {
+            getResourceResolverPool().release(resourceResolver);
+        }
+    }
+
+    /** Close a ResourceResolver that failed, so that a new one is used next time **/
+    private void discardResourceResolver(final ResourceResolver resourceResolver) {
+        if (resourceResolver != null) {
+            getResourceResolverPool().discard(resourceResolver);
+        }
     }
 
     /** Calcualte the local cluster instance path **/
@@ -343,9 +642,7 @@ public class HeartbeatHandler extends BaseViewChecker {
         } catch (LoginException e) {
             logger.error("resetLeaderElectionid: could not login: "+e, e);
         } finally {
-            if (resourceResolver!=null) {
-                resourceResolver.close();
-            }
+            releaseResourceResolver(resourceResolver);
         }
         return true;
     }
@@ -356,15 +653,45 @@ public class HeartbeatHandler extends BaseViewChecker {
      * This action consists of first updating the local properties,
      * then issuing a cluster-local heartbeat (within the repository)
      * and then a remote heartbeat (to all the topology connectors
-     * which announce this part of the topology to others)
+     * which announce this part of the topology to others).
+     * <p>
+     * With mergePropertiesIntoHeartbeat the local properties are
+     * written as part of the cluster-local heartbeat, in one commit.
+     * <p>
+     * With heartbeatLanes only the cluster-local heartbeat is issued
+     * here, the properties and the connector pings follow in their lanes.
      */
     @Override
     protected void issueHeartbeat() {
-        updateProperties();
-        issueClusterLocalHeartbeat();
+        final HeartbeatLane lane = clusterLocalHeartbeatLane;
+        if (lane != null) {
+            lane.run();
+            return;
+        }
+        if (!issueMergedHeartbeat()) {
+            updateProperties();
+            issueClusterLocalHeartbeat();
+        }
         issueConnectorPings();
     }
 
+    /**
+     * Issue a cluster local heartbeat incl the local properties, in one commit
+     * @return false if mergePropertiesIntoHeartbeat is not applicable and
+     * nothing was issued
+     */
+    private boolean issueMergedHeartbeat() {
+        final DiscoveryServiceImpl discoveryService = discoveryServiceImpl;
+        if (!config.isMergePropertiesIntoHeartbeatEnabled() || discoveryService == null) {
+            return false;
+        }
+        final Boolean propertiesChanged = issueClusterLocalHeartbeat(true);
+        if (propertiesChanged != null) {
+            discoveryService.handlePropertiesWritten(propertiesChanged);
+        }
+        return true;
+    }
+
     @Override
     protected void updateProperties() {
         if (discoveryServiceImpl == null) {
@@ -376,6 +703,27 @@ public class HeartbeatHandler extends BaseViewChecker {
 
     /** Issue a cluster local heartbeat (into the repository) **/
     protected void issueClusterLocalHeartbeat() {
+        issueClusterLocalHeartbeat(false);
+    }
+
+    /**
+     * Issue a cluster local heartbeat (into the repository) - optionally
+     * incl the local properties, in the same commit
+     * @param withProperties whether to write the local properties too
+     * @return whether the properties changed - null if they were not
+     * written or the heartbeat failed
+     */
+    private Boolean issueClusterLocalHeartbeat(final boolean withProperties) {
+        final DiscoveryEvents.Span span = DiscoveryEvents.begin(DiscoveryEvents.Kind.CLUSTER_LOCAL_HEARTBEAT);
+        final Calendar before = lastHeartbeatWritten;
+        try {
+            return doIssueClusterLocalHeartbeat(withProperties);
+        } finally {
+            span.end(0, lastHeartbeatWritten != before ? "written" : "failed");
+        }
+    }
+
+    private Boolean doIssueClusterLocalHeartbeat(final boolean withProperties) {
         if (logger.isDebugEnabled()) {
             logger.debug("issueClusterLocalHeartbeat: storing cluster-local heartbeat to repository for "+slingId);
         }
@@ -386,9 +734,13 @@ public class HeartbeatHandler extends BaseViewChecker {
             resourceResolver = getResourceResolver();
             if (resourceResolver == null) {
                 logger.error("issueClusterLocalHeartbeat: no resourceresolver available!");
-                return;
+                return null;
             }
 
+            // the properties go first, as writing them includes a refresh (SLING-2879)
+            final Boolean propertiesChanged = withProperties
+                    ? discoveryServiceImpl.writeProperties(resourceResolver) : null;
+
             final Resource resource = ResourceHelper.getOrCreateResource(
                     resourceResolver, myClusterNodePath);
             final ModifiableValueMap resourceMap = resource.adaptTo(ModifiableValueMap.class);
@@ -458,12 +810,18 @@ public class HeartbeatHandler extends BaseViewChecker {
 							context.disableComponent(null);
 						}
             		}
-            		return;
+            		return null;
             	}
             }
             resourceMap.put(PROPERTY_ID_LAST_HEARTBEAT, currentTime);
+            // the sequence lets the others measure the heartbeat age with their own clock
+            final Object lastSequence = resourceMap.get(PROPERTY_ID_HEARTBEAT_SEQUENCE);
+            resourceMap.put(PROPERTY_ID_HEARTBEAT_SEQUENCE,
+                    lastSequence instanceof Number ? ((Number) lastSequence).longValue() + 1 : 1L);
             if (firstHeartbeatWritten==-1) {
             	resourceMap.put(PROPERTY_ID_RUNTIME, runtimeId);
+            	// back in the cluster - the newer heartbeat would suffice, but be explicit
+            	resourceMap.remove(PROPERTY_ID_LEFT_AT);
             	// SLING-4765 : store more infos to be able to be more verbose on duplicate slingId/ghost detection
             	final String slingHomePath = slingSettingsService==null ? "n/a" : slingSettingsService.getSlingHomePath();
                 resourceMap.put(PROPERTY_ID_SLING_HOME_PATH, slingHomePath);
@@ -486,8 +844,15 @@ public class HeartbeatHandler extends BaseViewChecker {
                 resetLeaderElectionId = false;
             }
             logger.debug("issueClusterLocalHeartbeat: committing cluster-local heartbeat to repository for {}", slingId);
+            final long commitStart = System.currentTimeMillis();
             resourceResolver.commit();
+            if (metrics != null) {
+                metrics.heartbeatCommitted(System.currentTimeMillis() - commitStart);
+            }
             logger.debug("issueClusterLocalHeartbeat: committed cluster-local heartbeat to repository for {}", slingId);
+            if (liveInstanceTracker!=null) {
+                liveInstanceTracker.localHeartbeatWritten();
+            }
 
             // SLING-2892: only in success case: remember the last heartbeat value written
             lastHeartbeatWritten = currentTime;
@@ -495,6 +860,7 @@ public class HeartbeatHandler extends BaseViewChecker {
             if (firstHeartbeatWritten==-1) {
             	firstHeartbeatWritten = System.currentTimeMillis();
             }
+            return propertiesChanged;
 
         } catch (LoginException e) {
             logger.error("issueHeartbeat: could not log in administratively: "
@@ -502,11 +868,12 @@ public class HeartbeatHandler extends BaseViewChecker {
         } catch (PersistenceException e) {
             logger.error("issueHeartbeat: Got a PersistenceException: "
                     + myClusterNodePath + " " + e, e);
+            discardResourceResolver(resourceResolver);
+            resourceResolver = null;
         } finally {
-            if (resourceResolver != null) {
-                resourceResolver.close();
-            }
+            releaseResourceResolver(resourceResolver);
         }
+        return null;
     }
 
     /**
@@ -553,9 +920,15 @@ public class HeartbeatHandler extends BaseViewChecker {
         super.doCheckView();
 
         ResourceResolver resourceResolver = null;
+        boolean settled = true;
+        final long start = System.currentTimeMillis();
+        final DiscoveryEvents.Span span = DiscoveryEvents.begin(DiscoveryEvents.Kind.CHECK_VIEW);
+        String outcome = "failed";
         try {
             resourceResolver = getResourceResolver();
-            doCheckViewWith(resourceResolver);
+            settled = doCheckViewWith(resourceResolver);
+            outcome = settled ? "settled" : "unsettled";
+            sweepClusterInstances(resourceResolver);
         } catch (LoginException e) {
             logger.error("checkView: could not log in administratively: " + e,
                     e);
@@ -563,41 +936,160 @@ public class HeartbeatHandler extends BaseViewChecker {
             logger.error(
                     "checkView: encountered a persistence exception during view check: "
                             + e, e);
+            discardResourceResolver(resourceResolver);
+            resourceResolver = null;
         } catch (RuntimeException e) {
             logger.error(
                     "checkView: encountered a runtime exception during view check: "
                             + e, e);
+            discardResourceResolver(resourceResolver);
+            resourceResolver = null;
         } finally {
-            if (resourceResolver != null) {
-                resourceResolver.close();
+            releaseResourceResolver(resourceResolver);
+            final Set<String> liveInstances = lastLiveInstances;
+            span.end(liveInstances == null ? 0 : liveInstances.size(), outcome);
+        }
+        if (metrics != null) {
+            metrics.viewChecked(System.currentTimeMillis() - start);
+            // the view check ends the heartbeat cycle - see DiscoveryMetrics
+            metrics.cycleCompleted();
+        }
+        viewChecked(settled);
+    }
+
+    /**
+     * Take note of the outcome of a view check - and check again in the
+     * fastCheckViewInterval while the view is not settled, ie while votings
+     * are ongoing or a promotion is pending. Falls back to the heartbeat
+     * interval once the view is settled, or after the heartbeat timeout.
+     */
+    private void viewChecked(final boolean settled) {
+        if (settled) {
+            unsettledSince = -1;
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (unsettledSince == -1) {
+            unsettledSince = now;
+        }
+        final long interval = config.getFastCheckViewIntervalMillis();
+        if (interval <= 0 || now - unsettledSince > config.getHeartbeatTimeoutMillis()) {
+            return;
+        }
+        synchronized(this) {
+            if (fastCheckViewScheduled || !activated) {
+                return;
+            }
+            if (fastCheckViewExecutor == null) {
+                fastCheckViewExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, NAME + ".fastCheckView");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            fastCheckViewScheduled = true;
+            fastCheckViewExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    synchronized(HeartbeatHandler.this) {
+                        fastCheckViewScheduled = false;
+                    }
+                    fastCheckView();
+                }
+            }, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Check the view out of band - and tell the listeners right away once it settled **/
+    private void fastCheckView() {
+        final DiscoveryServiceImpl discoveryService = discoveryServiceImpl;
+        if (!activated || discoveryService == null) {
+            return;
+        }
+        logger.debug("fastCheckView: view not settled since {}, checking again", unsettledSince);
+        synchronized(lock) {
+            doCheckView();
+        }
+        if (unsettledSince == -1) {
+            // don't wait for the next periodic check to send the new view
+            discoveryService.checkForTopologyChange();
+        }
+    }
+
+    /** Remove long-dead instances from clusterInstances if due and if we're the leader **/
+    private void sweepClusterInstances(final ResourceResolver resourceResolver) {
+        if (!clusterInstancesSweeper.isSweepDue(config, System.currentTimeMillis())) {
+            return;
+        }
+        if (discoveryServiceImpl == null) {
+            return;
+        }
+        try {
+            final InstanceDescription leader = discoveryServiceImpl.getClusterViewServiceImpl()
+                    .getLocalClusterView().getLeader();
+            if (leader == null || !leader.isLocal()) {
+                return;
             }
+        } catch (UndefinedClusterViewException e) {
+            // no established view, no leader
+            return;
+        }
+        try {
+            clusterInstancesSweeper.sweep(resourceResolver, config, slingId);
+        } catch (PersistenceException e) {
+            logger.warn("sweepClusterInstances: could not remove stale instances: " + e, e);
+            resourceResolver.revert();
         }
     }
 
     /** do the established-against-heartbeat view check using the given resourceResolver.
+     * @return true if the view is settled, ie if the established view matches
+     * and no votings are ongoing
      */
-    private void doCheckViewWith(final ResourceResolver resourceResolver) throws PersistenceException {
+    private boolean doCheckViewWith(final ResourceResolver resourceResolver) throws PersistenceException {
 
         if (votingHandler==null) {
             logger.info("doCheckViewWith: votingHandler is null! slingId="+slingId);
         } else {
             votingHandler.analyzeVotings(resourceResolver);
+        }
+
+        // analyzeVotings might have voted or promoted, hence the discovery tree
+        // is read (once) only after that - all checks below are evaluated against it
+        final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, liveInstanceTracker);
+        if (metrics != null) {
+            metrics.repositoryRead();
+        }
+        final Set<String> liveInstances = ViewHelper.determineLiveInstances(
+                snapshot, config);
+        if (lastLiveInstancesDigest == null || !lastLiveInstances.equals(liveInstances)) {
+            lastLiveInstances = Collections.unmodifiableSet(new TreeSet<String>(liveInstances));
+            lastLiveInstancesDigest = ViewHelper.membershipDigest(liveInstances);
+        }
+        lastOngoingVotings = snapshot.getOngoingVotings().size();
+        if (votingHandler!=null) {
             try{
-                votingHandler.cleanupTimedoutVotings(resourceResolver);
+                votingHandler.cleanupTimedoutVotings(snapshot);
             } catch(Exception e) {
                 logger.warn("doCheckViewWith: Exception occurred while cleaning up votings: "+e, e);
             }
         }
 
         final VotingView winningVoting = VotingHelper.getWinningVoting(
-                resourceResolver, config);
+                snapshot, config);
         int numOpenNonWinningVotes = VotingHelper.listOpenNonWinningVotings(
-                resourceResolver, config).size();
+                snapshot, config).size();
         if (winningVoting != null || (numOpenNonWinningVotes > 0)) {
             // then there are votings pending and I shall wait for them to
             // settle
 
             // but first: make sure we sent the TOPOLOGY_CHANGING
+            votingRequiredSince = -1;
             logger.info("doCheckViewWith: there are pending votings, marking topology as changing...");
             invalidateCurrentEstablishedView();
             discoveryServiceImpl.handleTopologyChanging();
@@ -607,16 +1099,14 @@ public class HeartbeatHandler extends BaseViewChecker {
 	                    + numOpenNonWinningVotes
 	                    + " ongoing votings, no one winning yet - I shall wait for them to settle.");
         	}
-            return;
+            return false;
         }
 
-        final Resource clusterNodesRes = ResourceHelper.getOrCreateResource(
-                resourceResolver, config.getClusterInstancesPath());
-        final Set<String> liveInstances = ViewHelper.determineLiveInstances(
-                clusterNodesRes, config);
-
-        final View establishedView = ViewHelper.getEstablishedView(resourceResolver, config);
+        final View establishedView = ViewHelper.getEstablishedView(snapshot, config);
         lastEstablishedViewId = establishedView == null ? null : establishedView.getResource().getName();
+        if (lastEstablishedViewId != null && votingTimelines != null) {
+            votingTimelines.established(lastEstablishedViewId);
+        }
         boolean establishedViewMatches;
         if (lastEstablishedViewId != null && failedEstablishedViewId != null
                 && lastEstablishedViewId.equals(failedEstablishedViewId)) {
@@ -630,12 +1120,12 @@ public class HeartbeatHandler extends BaseViewChecker {
             } else {
                 String mismatchDetails;
                 try{
-                    mismatchDetails = establishedView.matches(liveInstances);
+                    mismatchDetails = establishedView.matches(liveInstances, lastLiveInstancesDigest);
                 } catch(Exception e) {
                     logger.error("doCheckViewWith: could not compare established view with live ones: "+e, e);
                     invalidateCurrentEstablishedView();
                     discoveryServiceImpl.handleTopologyChanging();
-                    return;
+                    return false;
                 }
                 if (mismatchDetails != null) {
                     logger.info("doCheckView: established view does not match. (details: " + mismatchDetails + ")");
@@ -651,7 +1141,8 @@ public class HeartbeatHandler extends BaseViewChecker {
             // seeing.
             // all happy and fine
             logger.debug("doCheckViewWith: no pending nor winning votes. view is fine. we're all happy.");
-            return;
+            votingRequiredSince = -1;
+            return true;
         }
 
         // immediately send a TOPOLOGY_CHANGING - could already be sent, but just to be sure
@@ -659,10 +1150,11 @@ public class HeartbeatHandler extends BaseViewChecker {
         invalidateCurrentEstablishedView();
         discoveryServiceImpl.handleTopologyChanging();
 
-        List<VotingView> myYesVotes = VotingHelper.getYesVotingsOf(resourceResolver, config, slingId);
+        List<VotingView> myYesVotes = VotingHelper.getYesVotingsOf(snapshot, config, slingId);
         if (myYesVotes != null && myYesVotes.size() > 0) {
             logger.info("doCheckViewWith: I have voted yes (" + myYesVotes.size() + "x)- the vote was not yet promoted but expecting it to be soon. Not voting again in the meantime. My yes vote was for: "+myYesVotes);
-            return;
+            votingRequiredSince = -1;
+            return false;
         }
 
     	if (logger.isDebugEnabled()) {
@@ -678,8 +1170,44 @@ public class HeartbeatHandler extends BaseViewChecker {
         // view doesnt match
         // the currently live instances.
 
-        // initiate a new voting
+        // initiate a new voting - unless another instance is first in line
+        if (!isVotingInitiationDue(resourceResolver, snapshot, liveInstances)) {
+            return false;
+        }
+        votingRequiredSince = -1;
         doStartNewVoting(resourceResolver, liveInstances);
+        return false;
+    }
+
+    /**
+     * Check whether this instance is to initiate the new voting now: with a
+     * votingInitiationDelay the live instances take turns in the order of their
+     * leaderElectionId, so that normally only the first one creates a voting -
+     * instead of all of them at once, all but one of which get voted down.
+     */
+    private boolean isVotingInitiationDue(final ResourceResolver resourceResolver,
+            final DiscoverySnapshot snapshot, final Set<String> liveInstances) {
+        final long delay = config.getVotingInitiationDelayMillis();
+        if (delay <= 0) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (votingRequiredSince == -1) {
+            votingRequiredSince = now;
+        }
+        final int rank = VotingHelper.getInitiationRank(resourceResolver, config, snapshot, liveInstances, slingId);
+        if (rank <= 0) {
+            return true;
+        }
+        final long waited = now - votingRequiredSince;
+        if (waited < rank * delay) {
+            logger.info("doCheckViewWith: leaving the initiation of a new voting to the instances ranked before me (rank="
+                    + rank + ", waited " + waited + "ms of " + (rank * delay) + "ms)");
+            return false;
+        }
+        logger.info("doCheckViewWith: no voting initiated by the instances ranked before me (rank="
+                + rank + ") within " + waited + "ms - initiating it myself");
+        return true;
     }
 
     private void doStartNewVoting(final ResourceResolver resourceResolver,
@@ -687,7 +1215,49 @@ public class HeartbeatHandler extends BaseViewChecker {
         String votingId = nextVotingId;
         nextVotingId = UUID.randomUUID().toString();
 
-        VotingView.newVoting(resourceResolver, config, votingId, slingId, liveInstances);
+        final VotingView voting = VotingView.newVoting(resourceResolver, config, votingId, slingId, liveInstances);
+        if (voting != null && metrics != null) {
+            metrics.votingStarted();
+        }
+        if (voting != null && votingTimelines != null) {
+            votingTimelines.created(voting);
+        }
+    }
+
+    /**
+     * Returns the time (in millis) the local instance last successfully wrote
+     * its cluster-local heartbeat
+     * @return the time of the last heartbeat written - -1 if none was written yet
+     */
+    public long getLastHeartbeatWrittenAt() {
+        final Calendar lastHb = lastHeartbeatWritten;
+        return lastHb == null ? -1 : lastHb.getTimeInMillis();
+    }
+
+    /**
+     * Returns the live instances as of the last view check
+     * @return the (unmodifiable, sorted) slingIds of the live instances -
+     * empty if no view check happened yet
+     */
+    public Set<String> getLastLiveInstances() {
+        return lastLiveInstances;
+    }
+
+    /**
+     * Returns the id of the established view as of the last view check
+     * @return the id of the established view - null if there was none
+     * or no view check happened yet
+     */
+    public String getLastEstablishedViewId() {
+        return lastEstablishedViewId;
+    }
+
+    /**
+     * Returns the number of ongoing votings as of the last view check
+     * @return the number of ongoing votings
+     */
+    public int getLastOngoingVotings() {
+        return lastOngoingVotings;
     }
 
     /**
@@ -706,6 +1276,18 @@ public class HeartbeatHandler extends BaseViewChecker {
         discoveryServiceImpl.getClusterViewServiceImpl().invalidateEstablishedViewId(lastEstablishedViewId);
     }
 
+    /**
+     * Returns the statistics of the heartbeats observed per slingId - incl
+     * the current suspicion level used in the 'phiAccrual' liveness mode
+     * @return the (unmodifiable) statistics of the heartbeats observed per slingId
+     */
+    public Map<String, PhiAccrualFailureDetector.HeartbeatStatistics> getHeartbeatStatistics() {
+        if (liveInstanceTracker == null) {
+            return Collections.emptyMap();
+        }
+        return liveInstanceTracker.getHeartbeatStatistics(System.currentTimeMillis());
+    }
+
     /**
      * Management function to trigger the otherwise algorithm-dependent
      * start of a new voting.
@@ -717,10 +1299,10 @@ public class HeartbeatHandler extends BaseViewChecker {
         ResourceResolver resourceResolver = null;
         try {
             resourceResolver = getResourceResolver();
-            final Resource clusterNodesRes = ResourceHelper.getOrCreateResource(
+            ResourceHelper.getOrCreateResource(
                     resourceResolver, config.getClusterInstancesPath());
             final Set<String> liveInstances = ViewHelper.determineLiveInstances(
-                    clusterNodesRes, config);
+                    DiscoverySnapshot.read(resourceResolver, config, liveInstanceTracker), config);
             doStartNewVoting(resourceResolver, liveInstances);
             logger.info("startNewVoting: explicit new voting was started.");
         } catch (LoginException e) {
@@ -730,10 +1312,10 @@ public class HeartbeatHandler extends BaseViewChecker {
             logger.error(
                     "startNewVoting: encountered a persistence exception during view check: "
                             + e, e);
+            discardResourceResolver(resourceResolver);
+            resourceResolver = null;
         } finally {
-            if (resourceResolver != null) {
-                resourceResolver.close();
-            }
+            releaseResourceResolver(resourceResolver);
         }
     }
 
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One part of the heartbeat - eg the cluster-local heartbeat, the properties
+ * update or the connector pings - that is run independently of the others.
+ * <p>
+ * A lane either runs in the thread of the caller (see run) or on its own
+ * thread, scheduled with a fixed delay (see start). It never runs twice
+ * concurrently: a run requested while the previous one is still busy is
+ * skipped. Runs taking longer than the warn threshold are logged and counted
+ * as overruns - they are not interrupted, as the work of a lane (eg a
+ * repository commit) can't be aborted safely.
+ */
+public class HeartbeatLane {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String name;
+
+    private final long warnThresholdMillis;
+
+    private final Runnable task;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /** the thread of the lane - null while it runs in the thread of the caller only **/
+    private ScheduledExecutorService executor;
+
+    private long runs;
+
+    private long skipped;
+
+    private long failed;
+
+    private long overruns;
+
+    private long lastDurationMillis;
+
+    private long maxDurationMillis;
+
+    private long lastRunAt = -1;
+
+    /**
+     * Create a new lane
+     * @param name the name of the lane - also used for its thread
+     * @param warnThresholdMillis the time (in millis) after which a run is
+     * logged and counted as overrun - 0 for none
+     * @param task the work of the lane
+     */
+    public HeartbeatLane(final String name, final long warnThresholdMillis, final Runnable task) {
+        this.name = name;
+        this.warnThresholdMillis = warnThresholdMillis;
+        this.task = task;
+    }
+
+    /** Start running the lane on its own thread, with the given delay (in millis) between runs **/
+    public synchronized void start(final long intervalMillis) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                HeartbeatLane.this.run();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Request an additional run on the thread of the lane asap **/
+    public void trigger() {
+        trigger(null);
+    }
+
+    /**
+     * Request an additional run on the thread of the lane asap - preceded
+     * by a run of the given lane, in the same thread
+     * @param before the lane to run first - null for none
+     */
+    public synchronized void trigger(final HeartbeatLane before) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (before != null) {
+                        before.run();
+                    }
+                    HeartbeatLane.this.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed in the meantime
+        }
+    }
+
+    /** Stop the thread of the lane **/
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Run the lane in the thread of the caller - unless it is busy already
+     * @return false if the run was skipped as the lane was busy
+     */
+    public boolean run() {
+        if (!running.compareAndSet(false, true)) {
+            synchronized (this) {
+                skipped++;
+            }
+            logger.info("run: {} is still busy with the previous run, skipping this one", name);
+            return false;
+        }
+        final long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            task.run();
+            success = true;
+        } catch (RuntimeException e) {
+            logger.error("run: " + name + " failed: " + e, e);
+        } finally {
+            running.set(false);
+            final long duration = System.currentTimeMillis() - start;
+            synchronized (this) {
+                runs++;
+                if (!success) {
+                    failed++;
+                }
+                lastDurationMillis = duration;
+                maxDurationMillis = Math.max(maxDurationMillis, duration);
+                lastRunAt = start;
+                if (warnThresholdMillis > 0 && duration > warnThresholdMillis) {
+                    overruns++;
+                }
+            }
+            if (warnThresholdMillis > 0 && duration > warnThresholdMillis) {
+                logger.warn("run: {} took {}ms, longer than its warn threshold of {}ms",
+                        new Object[] {name, duration, warnThresholdMillis});
+            }
+        }
+        return true;
+    }
+
+    /** Returns the name of the lane **/
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the statistics of the lane as one line **/
+    public synchronized String getStatistics() {
+        return name + ": runs=" + runs
+                + ", skipped=" + skipped
+                + ", failed=" + failed
+                + ", overruns=" + overruns
+                + ", warnThreshold=" + warnThresholdMillis + "ms"
+                + ", last=" + lastDurationMillis + "ms"
+                + ", max=" + maxDurationMillis + "ms"
+                + ", lastRunAt=" + lastRunAt;
+    }
+
+}
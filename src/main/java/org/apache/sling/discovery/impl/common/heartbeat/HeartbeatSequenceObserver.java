@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the heartbeat sequence numbers read per instance (slingId)
+ * and of the local time when each of them was last seen advancing.
+ * <p>
+ * Every heartbeat increments the 'heartbeatSequence' of the instance. The
+ * age of an instance's last heartbeat can hence be measured with the local
+ * System.nanoTime - instead of comparing the lastHeartbeat written with the
+ * clock of that instance against the local clock (SLING-3432). Only when an
+ * instance is observed for the first time (or its sequence was reset), the
+ * age is taken from its lastHeartbeat.
+ */
+public class HeartbeatSequenceObserver {
+
+    /** the last observed sequence of an instance and the nanoTime it last advanced **/
+    private static class Observation {
+
+        private final long sequence;
+
+        private final long advancedAtNanos;
+
+        Observation(final long sequence, final long advancedAtNanos) {
+            this.sequence = sequence;
+            this.advancedAtNanos = advancedAtNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Observation> observations = new ConcurrentHashMap<String, Observation>();
+
+    /**
+     * Take note of the sequence read of the given instance and return the
+     * time since the sequence last advanced
+     * @param slingId the instance the sequence was read of
+     * @param sequence the heartbeatSequence read
+     * @param wallClockAgeMillis the age of the lastHeartbeat of the instance as
+     * per the local clock - only used when the instance is observed for the
+     * first time or its sequence was reset
+     * @return the time (in millis) since the sequence last advanced
+     */
+    public long observe(final String slingId, final long sequence, final long wallClockAgeMillis) {
+        final long nowNanos = System.nanoTime();
+        Observation observation = observations.get(slingId);
+        if (observation == null || sequence < observation.sequence) {
+            observation = new Observation(sequence,
+                    nowNanos - TimeUnit.MILLISECONDS.toNanos(Math.max(0, wallClockAgeMillis)));
+            observations.put(slingId, observation);
+        } else if (sequence > observation.sequence) {
+            observation = new Observation(sequence, nowNanos);
+            observations.put(slingId, observation);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nowNanos - observation.advancedAtNanos);
+    }
+
+    /** Forget the observations of the given instance **/
+    public void remove(final String slingId) {
+        observations.remove(slingId);
+    }
+
+}
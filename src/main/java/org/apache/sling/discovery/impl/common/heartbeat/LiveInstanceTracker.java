@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sling.discovery.impl.Config;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of the last heartbeat observed per instance (slingId).
+ * <p>
+ * The index is fed by the ClusterViewChangeListener with the resource
+ * events of the clusterInstances nodes - including the lastHeartbeat-only
+ * ones - and is reconciled with a full read of clusterInstances every
+ * liveInstancesReconcileInterval. In between, the live instances can be
+ * determined without reading clusterInstances from the repository.
+ * <p>
+ * The index is only used ('current') while events are being delivered:
+ * it must be enabled by the listener, must have been reconciled within
+ * the reconcile interval and must have seen the event of the local
+ * instance's own heartbeat written last. Otherwise getLiveInstances()
+ * returns null and the caller falls back to reading clusterInstances.
+ * <p>
+ * In the 'phiAccrual' liveness mode the tracker additionally keeps the
+ * inter-arrival times of the observed heartbeats and suspects an instance
+ * once its suspicion level reaches the configured threshold - even if its
+ * last heartbeat is still within the heartbeat timeout.
+ */
+@Component(service = {LiveInstanceTracker.class})
+public class LiveInstanceTracker {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Reference
+    private SlingSettingsService slingSettingsService;
+
+    @Reference
+    private Config config;
+
+    /** the slingId of the local instance **/
+    private String slingId;
+
+    /** the last heartbeat (in millis) observed per slingId **/
+    private final Map<String, Long> lastHeartbeats = new ConcurrentHashMap<String, Long>();
+
+    /** set while the ClusterViewChangeListener is receiving events **/
+    private volatile boolean enabled = false;
+
+    /** the time (in millis) of the last reconcile - -1 if a reconcile is required **/
+    private volatile long lastReconciledAt = -1;
+
+    /** the time (in millis) the local instance last wrote a heartbeat **/
+    private volatile long localHeartbeatWrittenAt = -1;
+
+    /** the time (in millis) the event of the local instance's heartbeat was last observed **/
+    private volatile long localHeartbeatObservedAt = -1;
+
+    /** the heartbeat sequences read from clusterInstances - to measure heartbeat ages locally **/
+    private final HeartbeatSequenceObserver heartbeatSequenceObserver = new HeartbeatSequenceObserver();
+
+    /** the inter-arrival times of the observed heartbeats - used in the 'phiAccrual' liveness mode **/
+    private PhiAccrualFailureDetector failureDetector;
+
+    /** for testing only **/
+    public static LiveInstanceTracker testConstructor(SlingSettingsService slingSettingsService,
+            Config config) {
+        LiveInstanceTracker tracker = new LiveInstanceTracker();
+        tracker.slingSettingsService = slingSettingsService;
+        tracker.config = config;
+        tracker.activate();
+        return tracker;
+    }
+
+    @Activate
+    protected void activate() {
+        slingId = slingSettingsService.getSlingId();
+        // a heartbeat is considered regular within a quarter of the heartbeat interval
+        failureDetector = new PhiAccrualFailureDetector(config.getPhiAccrualWindowSize(),
+                config.getHeartbeatInterval() * 1000 / 4);
+    }
+
+    /**
+     * Enable or disable the tracker - it must only be enabled
+     * while the clusterInstances events are delivered to it
+     */
+    public void setEnabled(final boolean enabled) {
+        logger.info("setEnabled: enabled=" + enabled);
+        this.enabled = enabled;
+        lastReconciledAt = -1;
+        if (!enabled) {
+            lastHeartbeats.clear();
+            failureDetector.clear();
+        }
+    }
+
+    /** Take note that an event reported a heartbeat of the given instance **/
+    public void heartbeatObserved(final String slingId) {
+        final long now = System.currentTimeMillis();
+        lastHeartbeats.put(slingId, now);
+        failureDetector.heartbeat(slingId, now);
+        if (slingId.equals(this.slingId)) {
+            localHeartbeatObservedAt = now;
+        }
+    }
+
+    /** Take note that an event reported the removal of the given instance **/
+    public void instanceRemoved(final String slingId) {
+        lastHeartbeats.remove(slingId);
+        failureDetector.remove(slingId);
+        heartbeatSequenceObserver.remove(slingId);
+    }
+
+    /**
+     * Take note that an event reported that the given instance has left
+     * the cluster orderly - it is not live anymore until its next heartbeat
+     */
+    public void instanceLeft(final String slingId) {
+        logger.info("instanceLeft: instance has left the cluster: " + slingId);
+        lastHeartbeats.remove(slingId);
+        failureDetector.remove(slingId);
+        heartbeatSequenceObserver.remove(slingId);
+    }
+
+    /** Require a reconcile before the tracker is used again - eg after clusterInstances was removed **/
+    public void invalidate() {
+        lastReconciledAt = -1;
+    }
+
+    /** Take note that the local instance has just written a heartbeat **/
+    public void localHeartbeatWritten() {
+        localHeartbeatWrittenAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Reconcile the index with the heartbeats read from clusterInstances
+     * @param heartbeats the (local) time of the last heartbeat of every instance
+     * under clusterInstances (null values for instances without a heartbeat or
+     * that have left) - see ViewHelper.getHeartbeatAge
+     * @param readAt the time (in millis) the heartbeats were read
+     */
+    public void reconcile(final Map<String, Date> heartbeats, final long readAt) {
+        for (Iterator<String> it = lastHeartbeats.keySet().iterator(); it.hasNext();) {
+            final String aSlingId = it.next();
+            if (!heartbeats.containsKey(aSlingId)) {
+                it.remove();
+                failureDetector.remove(aSlingId);
+                heartbeatSequenceObserver.remove(aSlingId);
+            }
+        }
+        for (Entry<String, Date> entry : heartbeats.entrySet()) {
+            if (entry.getValue() == null) {
+                // no heartbeat (anymore) - eg the instance has left
+                lastHeartbeats.remove(entry.getKey());
+                continue;
+            }
+            final long readHeartbeat = entry.getValue().getTime();
+            final Long observedHeartbeat = lastHeartbeats.get(entry.getKey());
+            if (observedHeartbeat == null || observedHeartbeat < readHeartbeat) {
+                lastHeartbeats.put(entry.getKey(), readHeartbeat);
+            }
+        }
+        lastReconciledAt = readAt;
+        if (logger.isDebugEnabled()) {
+            logger.debug("reconcile: reconciled with #instances: " + heartbeats.size());
+        }
+    }
+
+    /**
+     * Returns whether the tracker can be used as of the given time
+     * instead of reading clusterInstances from the repository
+     */
+    public boolean isCurrent(final long now) {
+        if (!enabled) {
+            return false;
+        }
+        if (lastReconciledAt == -1
+                || now - lastReconciledAt >= config.getLiveInstancesReconcileIntervalMillis()) {
+            return false;
+        }
+        final long written = localHeartbeatWrittenAt;
+        if (written != -1 && written - localHeartbeatObservedAt > config.getHeartbeatInterval() * 1000) {
+            // the events of our own heartbeats don't come through - don't trust the index
+            logger.debug("isCurrent: events of the local heartbeats are not observed, not using the index");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the instances with a heartbeat within the heartbeat timeout
+     * as of the given time - or null if the tracker is not current
+     * @see #isCurrent(long)
+     */
+    public Set<String> getLiveInstances(final long now) {
+        if (!isCurrent(now)) {
+            return null;
+        }
+        final Set<String> result = new HashSet<String>();
+        final long heartbeatTimeoutMillis = config.getHeartbeatTimeoutMillis();
+        for (Entry<String, Long> entry : lastHeartbeats.entrySet()) {
+            if (now - entry.getValue() < heartbeatTimeoutMillis
+                    && !isSuspected(entry.getKey(), now)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the given instance is suspected to have failed as of the
+     * given time - based on the inter-arrival times of its heartbeats. Always
+     * false unless the 'phiAccrual' liveness mode is configured. The local
+     * instance is never suspected.
+     * <p>
+     * Note that this is in addition to the heartbeat timeout, which remains
+     * the upper bound: an instance whose heartbeat timed out is never live.
+     * <p>
+     * The inter-arrival times are learnt from the events only. Hence while the
+     * events stall - ie while the event of the local instance's latest heartbeat
+     * is overdue - no instance is suspected, as its heartbeats might just not
+     * have been observed. The heartbeat timeout applies as usual.
+     */
+    public boolean isSuspected(final String slingId, final long now) {
+        if (!config.isPhiAccrualLivenessEnabled() || slingId.equals(this.slingId)) {
+            return false;
+        }
+        if (isEventStalled(now)) {
+            logger.debug("isSuspected: events of the local heartbeats are overdue, not suspecting {}", slingId);
+            return false;
+        }
+        final double phi = failureDetector.phi(slingId, now);
+        if (phi < config.getPhiAccrualThreshold()) {
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("isSuspected: suspecting " + slingId + " with phi=" + phi);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the event of the local instance's latest heartbeat is
+     * overdue as of the given time - allowing it the same quarter of the
+     * heartbeat interval that a heartbeat is considered regular within
+     */
+    private boolean isEventStalled(final long now) {
+        final long written = localHeartbeatWrittenAt;
+        return written != -1 && localHeartbeatObservedAt < written
+                && now - written > config.getHeartbeatInterval() * 1000 / 4;
+    }
+
+    /**
+     * Returns the statistics of the heartbeats observed per slingId as of
+     * the given time
+     * @return the (unmodifiable) statistics of the heartbeats observed per slingId
+     */
+    public Map<String, PhiAccrualFailureDetector.HeartbeatStatistics> getHeartbeatStatistics(final long now) {
+        return failureDetector.getStatistics(now);
+    }
+
+    /**
+     * Returns the observer of the heartbeat sequences read from clusterInstances
+     * @return the observer of the heartbeat sequences read from clusterInstances
+     */
+    public HeartbeatSequenceObserver getHeartbeatSequenceObserver() {
+        return heartbeatSequenceObserver;
+    }
+
+    /**
+     * Returns a copy of the last heartbeat (in millis) observed per slingId
+     * @return a copy of the last heartbeat (in millis) observed per slingId
+     */
+    public Map<String, Long> getLastHeartbeats() {
+        return Collections.unmodifiableMap(new HashMap<String, Long>(lastHeartbeats));
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al) on the heartbeats
+ * observed per instance (slingId).
+ * <p>
+ * Keeps a window of the inter-arrival times of the heartbeats of each
+ * instance and derives from it the suspicion level phi that an instance
+ * has failed, given the time since its last heartbeat arrived. A phi of 1
+ * corresponds to a likelihood of 10% that the instance is still alive but
+ * its heartbeat merely late, a phi of 2 to 1%, a phi of 3 to 0.1% etc.
+ * <p>
+ * All times are measured locally (arrival times), hence the detector is
+ * not affected by clock differences between instances. As long as fewer
+ * than MIN_SAMPLES intervals have been observed for an instance its phi
+ * is 0, ie it is never suspected.
+ */
+public class PhiAccrualFailureDetector {
+
+    /** the minimum number of intervals required before an instance can be suspected **/
+    static final int MIN_SAMPLES = 3;
+
+    /**
+     * Immutable statistics of the heartbeats observed of one instance
+     */
+    public static class HeartbeatStatistics {
+
+        private final int samples;
+
+        private final double meanMillis;
+
+        private final double stdDeviationMillis;
+
+        private final long lastArrival;
+
+        private final double phi;
+
+        HeartbeatStatistics(final int samples, final double meanMillis,
+                final double stdDeviationMillis, final long lastArrival, final double phi) {
+            this.samples = samples;
+            this.meanMillis = meanMillis;
+            this.stdDeviationMillis = stdDeviationMillis;
+            this.lastArrival = lastArrival;
+            this.phi = phi;
+        }
+
+        /** Returns the number of inter-arrival times in the window **/
+        public int getSamples() {
+            return samples;
+        }
+
+        /** Returns the mean inter-arrival time (in millis) **/
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        /** Returns the standard deviation of the inter-arrival times (in millis) **/
+        public double getStdDeviationMillis() {
+            return stdDeviationMillis;
+        }
+
+        /** Returns the time (in millis) the last heartbeat arrived **/
+        public long getLastArrival() {
+            return lastArrival;
+        }
+
+        /** Returns the suspicion level as of the time these statistics were taken **/
+        public double getPhi() {
+            return phi;
+        }
+
+        @Override
+        public String toString() {
+            return "samples=" + samples
+                    + ", mean=" + Math.round(meanMillis) + "ms"
+                    + ", stdDeviation=" + Math.round(stdDeviationMillis) + "ms"
+                    + ", lastArrival=" + lastArrival
+                    + ", phi=" + String.format("%.2f", phi);
+        }
+    }
+
+    /** the inter-arrival times of one instance - a ring buffer incl running sums **/
+    private static class HeartbeatHistory {
+
+        private final long[] intervals;
+
+        private int size = 0;
+
+        private int next = 0;
+
+        private double sum = 0;
+
+        private double squaredSum = 0;
+
+        private long lastArrival = -1;
+
+        HeartbeatHistory(final int windowSize) {
+            intervals = new long[windowSize];
+        }
+
+        synchronized void arrived(final long now) {
+            if (lastArrival != -1 && now > lastArrival) {
+                final long interval = now - lastArrival;
+                if (size == intervals.length) {
+                    final long dropped = intervals[next];
+                    sum -= dropped;
+                    squaredSum -= (double) dropped * dropped;
+                } else {
+                    size++;
+                }
+                intervals[next] = interval;
+                next = (next + 1) % intervals.length;
+                sum += interval;
+                squaredSum += (double) interval * interval;
+            }
+            lastArrival = now;
+        }
+
+        synchronized HeartbeatStatistics getStatistics(final long now, final long minStdDeviationMillis) {
+            if (size == 0) {
+                return new HeartbeatStatistics(0, 0, 0, lastArrival, 0);
+            }
+            final double mean = sum / size;
+            final double variance = Math.max(0, squaredSum / size - mean * mean);
+            final double stdDeviation = Math.sqrt(variance);
+            final double phi = size < MIN_SAMPLES ? 0
+                    : phi(now - lastArrival, mean, Math.max(stdDeviation, minStdDeviationMillis));
+            return new HeartbeatStatistics(size, mean, stdDeviation, lastArrival, phi);
+        }
+    }
+
+    /** the size of the window of inter-arrival times kept per instance **/
+    private final int windowSize;
+
+    /** the lower bound of the standard deviation used to calculate phi **/
+    private final long minStdDeviationMillis;
+
+    private final ConcurrentHashMap<String, HeartbeatHistory> histories = new ConcurrentHashMap<String, HeartbeatHistory>();
+
+    /**
+     * Create a new detector
+     * @param windowSize the number of inter-arrival times kept per instance
+     * @param minStdDeviationMillis the lower bound of the standard deviation used
+     * to calculate phi - avoids suspecting instances with very regular heartbeats too early
+     */
+    public PhiAccrualFailureDetector(final int windowSize, final long minStdDeviationMillis) {
+        this.windowSize = Math.max(MIN_SAMPLES, windowSize);
+        this.minStdDeviationMillis = Math.max(1, minStdDeviationMillis);
+    }
+
+    /** Take note that a heartbeat of the given instance arrived at the given time **/
+    public void heartbeat(final String slingId, final long now) {
+        HeartbeatHistory history = histories.get(slingId);
+        if (history == null) {
+            final HeartbeatHistory newHistory = new HeartbeatHistory(windowSize);
+            history = histories.putIfAbsent(slingId, newHistory);
+            if (history == null) {
+                history = newHistory;
+            }
+        }
+        history.arrived(now);
+    }
+
+    /** Forget the history of the given instance **/
+    public void remove(final String slingId) {
+        histories.remove(slingId);
+    }
+
+    /** Forget the history of all instances **/
+    public void clear() {
+        histories.clear();
+    }
+
+    /**
+     * Returns the suspicion level of the given instance as of the given time
+     * @return the suspicion level - 0 if not enough heartbeats have been observed
+     */
+    public double phi(final String slingId, final long now) {
+        final HeartbeatHistory history = histories.get(slingId);
+        if (history == null) {
+            return 0;
+        }
+        return history.getStatistics(now, minStdDeviationMillis).getPhi();
+    }
+
+    /**
+     * Returns the statistics of all instances as of the given time, keyed by slingId
+     * @return the (unmodifiable) statistics of all instances, keyed by slingId
+     */
+    public Map<String, HeartbeatStatistics> getStatistics(final long now) {
+        final Map<String, HeartbeatStatistics> result = new HashMap<String, HeartbeatStatistics>();
+        for (Entry<String, HeartbeatHistory> entry : histories.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStatistics(now, minStdDeviationMillis));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Calculate phi for the given time since the last heartbeat, based on
+     * the normal distribution of the inter-arrival times (using the logistic
+     * approximation of its cumulative distribution function)
+     */
+    static double phi(final long timeSinceLastHeartbeat, final double mean, final double stdDeviation) {
+        final double y = (timeSinceLastHeartbeat - mean) / stdDeviation;
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (timeSinceLastHeartbeat > mean) {
+            return -Math.log10(e / (1.0 + e));
+        } else {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.jfr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder events of the discovery hot paths - so that discovery
+ * stalls can be correlated with GC and I/O pauses in the same recording.
+ * <p>
+ * Usage: <code>Span span = DiscoveryEvents.begin(Kind.X); try {...} finally
+ * {span.end(members, outcome);}</code>. Each event carries its duration, a
+ * member count (where applicable, 0 otherwise) and the outcome.
+ * <p>
+ * jdk.jfr is an optional import: where it is not available - or not visible
+ * to the bundle - all spans are a no-op. Where it is available but the event
+ * is not enabled in the running recording, begin returns the no-op span as
+ * well - hence the cost is one check per call.
+ */
+public final class DiscoveryEvents {
+
+    /** the hot paths an event is emitted for **/
+    public static enum Kind {
+        CLUSTER_LOCAL_HEARTBEAT,
+        CHECK_VIEW,
+        ANALYZE_VOTINGS,
+        PROMOTE,
+        GET_LOCAL_CLUSTER_VIEW,
+        UPDATE_PROPERTIES,
+        TOPOLOGY_EVENT
+    }
+
+    /** a started event **/
+    public static interface Span {
+
+        /**
+         * End the event and commit it, if the recording asks for it
+         * @param members the number of members involved - 0 if not applicable
+         * @param outcome the outcome
+         */
+        void end(int members, String outcome);
+    }
+
+    /** creates the spans - the only part referring to jdk.jfr **/
+    static interface SpanFactory {
+
+        /** @return a started span - or NOOP if the event is not enabled **/
+        Span begin(Kind kind);
+    }
+
+    /** the span used when no event is recorded **/
+    public static final Span NOOP = new Span() {
+
+        @Override
+        public void end(final int members, final String outcome) {
+            // nothing recorded
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(DiscoveryEvents.class);
+
+    /** null if jdk.jfr is not available **/
+    private static final SpanFactory FACTORY = newSpanFactory();
+
+    private DiscoveryEvents() {
+        // no instances
+    }
+
+    private static SpanFactory newSpanFactory() {
+        try {
+            Class.forName("jdk.jfr.Event", false, DiscoveryEvents.class.getClassLoader());
+            return (SpanFactory) Class.forName(DiscoveryEvents.class.getPackage().getName() + ".JfrSpanFactory")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            logger.info("newSpanFactory: Java Flight Recorder not available, no events are emitted: " + e);
+            return null;
+        } catch (LinkageError e) {
+            logger.info("newSpanFactory: Java Flight Recorder not available, no events are emitted: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Begin an event of the given kind
+     * @return the started span - NOOP if no event is recorded
+     */
+    public static Span begin(final Kind kind) {
+        final SpanFactory factory = FACTORY;
+        return factory == null ? NOOP : factory.begin(kind);
+    }
+
+}
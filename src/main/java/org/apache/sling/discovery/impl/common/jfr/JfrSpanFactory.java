@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.jfr;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.discovery.impl.common.jfr.DiscoveryEvents.Kind;
+import org.apache.sling.discovery.impl.common.jfr.DiscoveryEvents.Span;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The SpanFactory based on jdk.jfr - only loaded by DiscoveryEvents if
+ * jdk.jfr is available.
+ * <p>
+ * The bundle is compiled for Java 8, which doesn't contain jdk.jfr. The
+ * event types are hence not declared as subclasses of jdk.jfr.Event but
+ * defined at runtime with a jdk.jfr.EventFactory each - and the events are
+ * created, begun, ended and committed by reflection.
+ */
+class JfrSpanFactory implements DiscoveryEvents.SpanFactory {
+
+    private static final String PREFIX = "org.apache.sling.discovery.";
+
+    /** the index of the 'members' field of the events **/
+    private static final int MEMBERS = 0;
+
+    /** the index of the 'outcome' field of the events **/
+    private static final int OUTCOME = 1;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /** the jdk.jfr.EventFactory per kind **/
+    private final Map<Kind, Object> eventFactories = new EnumMap<Kind, Object>(Kind.class);
+
+    /** the jdk.jfr.EventType per kind - to check it is enabled before creating an event **/
+    private final Map<Kind, Object> eventTypes = new EnumMap<Kind, Object>(Kind.class);
+
+    private final Method newEvent;
+
+    private final Method isEnabled;
+
+    private final Method begin;
+
+    private final Method end;
+
+    private final Method shouldCommit;
+
+    private final Method set;
+
+    private final Method commit;
+
+    /** an event created by one of the eventFactories **/
+    private final class JfrSpan implements Span {
+
+        private final Object event;
+
+        JfrSpan(final Object event) {
+            this.event = event;
+        }
+
+        @Override
+        public void end(final int members, final String outcome) {
+            try {
+                end.invoke(event);
+                if ((Boolean) shouldCommit.invoke(event)) {
+                    set.invoke(event, MEMBERS, members);
+                    set.invoke(event, OUTCOME, outcome);
+                    commit.invoke(event);
+                }
+            } catch (Exception e) {
+                logger.debug("end: could not commit event: " + e, e);
+            }
+        }
+    }
+
+    JfrSpanFactory() throws Exception {
+        final Class<?> eventFactoryClass = jfrClass("EventFactory");
+        final Class<?> eventClass = jfrClass("Event");
+        final Class<?> annotationElementClass = jfrClass("AnnotationElement");
+        final Class<?> valueDescriptorClass = jfrClass("ValueDescriptor");
+        final Class<?> eventTypeClass = jfrClass("EventType");
+        final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+        final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+        final Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+        final Method getEventType = eventFactoryClass.getMethod("getEventType");
+        newEvent = eventFactoryClass.getMethod("newEvent");
+        isEnabled = eventTypeClass.getMethod("isEnabled");
+        begin = eventClass.getMethod("begin");
+        end = eventClass.getMethod("end");
+        shouldCommit = eventClass.getMethod("shouldCommit");
+        set = eventClass.getMethod("set", int.class, Object.class);
+        commit = eventClass.getMethod("commit");
+
+        final Class<? extends Annotation> name = jfrClass("Name").asSubclass(Annotation.class);
+        final Class<? extends Annotation> label = jfrClass("Label").asSubclass(Annotation.class);
+        final Class<? extends Annotation> description = jfrClass("Description").asSubclass(Annotation.class);
+        final Class<? extends Annotation> category = jfrClass("Category").asSubclass(Annotation.class);
+
+        // the fields in the order of MEMBERS and OUTCOME
+        final List<Object> fields = new ArrayList<Object>();
+        fields.add(valueDescriptor.newInstance(int.class, "members", Arrays.asList(
+                annotationElement.newInstance(label, "Members"),
+                annotationElement.newInstance(description, "The number of members involved - 0 if not applicable"))));
+        fields.add(valueDescriptor.newInstance(String.class, "outcome", Collections.singletonList(
+                annotationElement.newInstance(label, "Outcome"))));
+
+        for (Kind kind : Kind.values()) {
+            final String[] nameAndLabel = nameAndLabelOf(kind);
+            final List<Object> annotations = Arrays.asList(
+                    annotationElement.newInstance(name, PREFIX + nameAndLabel[0]),
+                    annotationElement.newInstance(label, nameAndLabel[1]),
+                    annotationElement.newInstance(category, new String[] {"Apache Sling", "Discovery"}));
+            final Object eventFactory = create.invoke(null, annotations, fields);
+            eventFactories.put(kind, eventFactory);
+            eventTypes.put(kind, getEventType.invoke(eventFactory));
+        }
+    }
+
+    private static Class<?> jfrClass(final String simpleName) throws ClassNotFoundException {
+        return Class.forName("jdk.jfr." + simpleName, false, JfrSpanFactory.class.getClassLoader());
+    }
+
+    /** @return the name (without PREFIX) and the label of the event type of the given kind **/
+    private static String[] nameAndLabelOf(final Kind kind) {
+        switch (kind) {
+        case CLUSTER_LOCAL_HEARTBEAT:
+            return new String[] {"ClusterLocalHeartbeat", "Cluster-Local Heartbeat"};
+        case CHECK_VIEW:
+            return new String[] {"CheckView", "Check View"};
+        case ANALYZE_VOTINGS:
+            return new String[] {"AnalyzeVotings", "Analyze Votings"};
+        case PROMOTE:
+            return new String[] {"Promote", "Promote Voting"};
+        case GET_LOCAL_CLUSTER_VIEW:
+            return new String[] {"GetLocalClusterView", "Get Local Cluster View"};
+        case UPDATE_PROPERTIES:
+            return new String[] {"UpdateProperties", "Update Properties"};
+        default:
+            return new String[] {"TopologyEvent", "Topology Event Dispatch"};
+        }
+    }
+
+    @Override
+    public Span begin(final Kind kind) {
+        try {
+            // no event is created unless a recording is enabled for its type
+            if (!(Boolean) isEnabled.invoke(eventTypes.get(kind))) {
+                return DiscoveryEvents.NOOP;
+            }
+            final Object event = newEvent.invoke(eventFactories.get(kind));
+            begin.invoke(event);
+            return new JfrSpan(event);
+        } catch (Exception e) {
+            logger.debug("begin: could not begin event: " + e, e);
+            return DiscoveryEvents.NOOP;
+        }
+    }
+
+}
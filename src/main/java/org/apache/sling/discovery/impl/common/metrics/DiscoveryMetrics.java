@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.metrics;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The runtime metrics of the discovery: the heartbeat, the view check, the
+ * votings and the topology changes - fed by the HeartbeatHandler, the
+ * VotingHandler and the DiscoveryServiceImpl.
+ * <p>
+ * The metrics are kept in memory only and are exposed as a service and
+ * via JMX (org.apache.sling:type=discovery,name=DiscoveryMetrics).
+ * <p>
+ * A heartbeat cycle ends with each view check: it covers the heartbeats
+ * issued since the previous check - the periodic one as well as triggered
+ * ones - and the check itself. The fast view checks while the view is not
+ * settled are cycles of their own.
+ */
+@Component(service = {DiscoveryMetrics.class})
+public class DiscoveryMetrics implements DiscoveryMetricsMBean {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Histogram heartbeatCommit = new Histogram("heartbeatCommit", "ms");
+
+    private final Histogram viewCheck = new Histogram("viewCheck", "ms");
+
+    private final Histogram promotion = new Histogram("promotion", "ms");
+
+    private final Histogram topologyChange = new Histogram("topologyChange", "ms");
+
+    private final Histogram readsPerCycle = new Histogram("repositoryReadsPerCycle", "");
+
+    private final Histogram commitsPerCycle = new Histogram("repositoryCommitsPerCycle", "");
+
+    private final AtomicLong votingsStarted = new AtomicLong();
+
+    private final AtomicLong votingsWon = new AtomicLong();
+
+    private final AtomicLong votingsTimedOut = new AtomicLong();
+
+    private final AtomicLong votingsVotedDown = new AtomicLong();
+
+    /** the repository reads since the current heartbeat cycle started **/
+    private final AtomicLong cycleReads = new AtomicLong();
+
+    /** the repository commits since the current heartbeat cycle started **/
+    private final AtomicLong cycleCommits = new AtomicLong();
+
+    /** the time (in millis) of the TOPOLOGY_CHANGING not yet followed by a TOPOLOGY_CHANGED - -1 if none **/
+    private volatile long changingSince = -1;
+
+    private ServiceRegistration mbeanRegistration;
+
+    public static DiscoveryMetrics testConstructor() {
+        return new DiscoveryMetrics();
+    }
+
+    @Activate
+    protected void activate(final BundleContext bundleContext) {
+        try {
+            final Dictionary<String, String> mbeanProps = new Hashtable<String, String>();
+            mbeanProps.put("jmx.objectname", "org.apache.sling:type=discovery,name=DiscoveryMetrics");
+            final StandardMBean mbean = new StandardMBean(this, DiscoveryMetricsMBean.class);
+            mbeanRegistration = bundleContext.registerService(DiscoveryMetricsMBean.class.getName(), mbean, mbeanProps);
+        } catch (Throwable t) {
+            logger.warn("activate: Unable to register DiscoveryMetrics MBean", t);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        try {
+            if (mbeanRegistration != null) {
+                mbeanRegistration.unregister();
+                mbeanRegistration = null;
+            }
+        } catch (Exception e) {
+            logger.error("deactivate: Error on unregister: " + e, e);
+        }
+    }
+
+    /** Take note of a cluster-local heartbeat committed, which took the given millis to commit **/
+    public void heartbeatCommitted(final long millis) {
+        heartbeatCommit.update(millis);
+        cycleCommits.incrementAndGet();
+    }
+
+    /** Take note of a view check, which took the given millis **/
+    public void viewChecked(final long millis) {
+        viewCheck.update(millis);
+    }
+
+    /** Take note of a read of the discovery tree from the repository **/
+    public void repositoryRead() {
+        cycleReads.incrementAndGet();
+    }
+
+    /** Take note of a commit to the repository - other than the heartbeat one **/
+    public void repositoryCommit() {
+        cycleCommits.incrementAndGet();
+    }
+
+    /** Take note of the end of a heartbeat cycle, ie of a view check: records the reads and commits since the previous one **/
+    public void cycleCompleted() {
+        readsPerCycle.update(cycleReads.getAndSet(0));
+        commitsPerCycle.update(cycleCommits.getAndSet(0));
+    }
+
+    /** Take note of a new voting started by the local instance **/
+    public void votingStarted() {
+        votingsStarted.incrementAndGet();
+    }
+
+    /** Take note of a voting won and promoted by the local instance, which took the given millis to promote **/
+    public void votingPromoted(final long millis) {
+        votingsWon.incrementAndGet();
+        promotion.update(millis);
+    }
+
+    /** Take note of a timed out voting removed by the local instance **/
+    public void votingTimedOut() {
+        votingsTimedOut.incrementAndGet();
+    }
+
+    /** Take note of a no vote by the local instance **/
+    public void votingVotedDown() {
+        votingsVotedDown.incrementAndGet();
+    }
+
+    /** Take note of a TOPOLOGY_CHANGING sent to the listeners **/
+    public void topologyChanging() {
+        if (changingSince == -1) {
+            changingSince = System.currentTimeMillis();
+        }
+    }
+
+    /** Take note of a TOPOLOGY_CHANGED sent to the listeners **/
+    public void topologyChanged() {
+        final long since = changingSince;
+        if (since != -1) {
+            changingSince = -1;
+            topologyChange.update(System.currentTimeMillis() - since);
+        }
+    }
+
+    /** Returns the histograms of these metrics **/
+    public List<Histogram> getHistogramList() {
+        final List<Histogram> result = new ArrayList<Histogram>();
+        result.add(heartbeatCommit);
+        result.add(viewCheck);
+        result.add(promotion);
+        result.add(topologyChange);
+        result.add(readsPerCycle);
+        result.add(commitsPerCycle);
+        return result;
+    }
+
+    @Override
+    public String[] getHistograms() {
+        final List<String> result = new ArrayList<String>();
+        for (Histogram histogram : getHistogramList()) {
+            result.add(histogram.toString());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public long getVotingsStarted() {
+        return votingsStarted.get();
+    }
+
+    @Override
+    public long getVotingsWon() {
+        return votingsWon.get();
+    }
+
+    @Override
+    public long getVotingsTimedOut() {
+        return votingsTimedOut.get();
+    }
+
+    @Override
+    public long getVotingsVotedDown() {
+        return votingsVotedDown.get();
+    }
+
+    @Override
+    public long getTopologyChangeMillisMedian() {
+        return topologyChange.getPercentile(0.5);
+    }
+
+    @Override
+    public long getHeartbeatCommitMillisMedian() {
+        return heartbeatCommit.getPercentile(0.5);
+    }
+
+    @Override
+    public CompositeData getHeartbeatCommitMillis() {
+        return heartbeatCommit.toCompositeData();
+    }
+
+    @Override
+    public CompositeData getViewCheckMillis() {
+        return viewCheck.toCompositeData();
+    }
+
+    @Override
+    public CompositeData getPromotionMillis() {
+        return promotion.toCompositeData();
+    }
+
+    @Override
+    public CompositeData getTopologyChangeMillis() {
+        return topologyChange.toCompositeData();
+    }
+
+    @Override
+    public CompositeData getRepositoryReadsPerCycle() {
+        return readsPerCycle.toCompositeData();
+    }
+
+    @Override
+    public CompositeData getRepositoryCommitsPerCycle() {
+        return commitsPerCycle.toCompositeData();
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.metrics;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * MBean of the DiscoveryMetrics
+ * <p>
+ * The histograms are exposed as CompositeData with the (numeric) items
+ * count, min, mean, p50, p95, p99, max and last - see Histogram.
+ */
+public interface DiscoveryMetricsMBean {
+
+    /**
+     * Returns the histograms - heartbeat commit latency, view check, promotion
+     * and topology change durations, repository reads and commits per
+     * heartbeat cycle - one line per histogram.
+     */
+    public String[] getHistograms();
+
+    /** Returns the number of votings started by the local instance **/
+    public long getVotingsStarted();
+
+    /** Returns the number of votings won, ie promoted by the local instance **/
+    public long getVotingsWon();
+
+    /** Returns the number of timed out votings removed by the local instance **/
+    public long getVotingsTimedOut();
+
+    /** Returns the number of votings the local instance voted no for **/
+    public long getVotingsVotedDown();
+
+    /** Returns the median time (in millis) from TOPOLOGY_CHANGING to TOPOLOGY_CHANGED **/
+    public long getTopologyChangeMillisMedian();
+
+    /** Returns the median latency (in millis) of the cluster-local heartbeat commit **/
+    public long getHeartbeatCommitMillisMedian();
+
+    /** Returns the histogram of the cluster-local heartbeat commit latency (in millis) **/
+    public CompositeData getHeartbeatCommitMillis();
+
+    /** Returns the histogram of the view check duration (in millis) **/
+    public CompositeData getViewCheckMillis();
+
+    /** Returns the histogram of the promotion duration (in millis) **/
+    public CompositeData getPromotionMillis();
+
+    /** Returns the histogram of the time (in millis) from TOPOLOGY_CHANGING to TOPOLOGY_CHANGED **/
+    public CompositeData getTopologyChangeMillis();
+
+    /** Returns the histogram of the repository reads per heartbeat cycle **/
+    public CompositeData getRepositoryReadsPerCycle();
+
+    /** Returns the histogram of the repository commits per heartbeat cycle **/
+    public CompositeData getRepositoryCommitsPerCycle();
+
+}
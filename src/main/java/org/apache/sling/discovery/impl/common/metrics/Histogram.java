@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.metrics;
+
+import java.util.Arrays;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+/**
+ * A histogram of long values, eg durations in millis.
+ * <p>
+ * Count, min, max and mean cover all values recorded, the percentiles
+ * cover the most recent values only (see SAMPLE_SIZE) - so that they
+ * follow changes of the behavior rather than being dominated by the past.
+ */
+public class Histogram {
+
+    /** the number of most recent values the percentiles are calculated of **/
+    static final int SAMPLE_SIZE = 1024;
+
+    /** the items of toCompositeData - all of them longs **/
+    static final String[] ITEM_NAMES = {"count", "min", "mean", "p50", "p95", "p99", "max", "last"};
+
+    private static final CompositeType COMPOSITE_TYPE = newCompositeType();
+
+    private final String name;
+
+    private final String unit;
+
+    private final long[] samples = new long[SAMPLE_SIZE];
+
+    private long count;
+
+    private long sum;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = Long.MIN_VALUE;
+
+    private long last;
+
+    /**
+     * Create a new histogram
+     * @param name the name of the histogram
+     * @param unit the unit of the values - eg 'ms'
+     */
+    public Histogram(final String name, final String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /** Record the given value **/
+    public synchronized void update(final long value) {
+        samples[(int) (count % SAMPLE_SIZE)] = value;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        last = value;
+    }
+
+    /** Returns the name of the histogram **/
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the number of values recorded **/
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** Returns the smallest value recorded - 0 if none was recorded yet **/
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /** Returns the largest value recorded - 0 if none was recorded yet **/
+    public synchronized long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /** Returns the mean of the values recorded - 0 if none was recorded yet **/
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /** Returns the value recorded last - 0 if none was recorded yet **/
+    public synchronized long getLast() {
+        return last;
+    }
+
+    /**
+     * Returns the given percentile of the most recent values
+     * @param percentile the percentile, between 0 and 1 - eg 0.95
+     * @return the percentile - 0 if no value was recorded yet
+     */
+    public synchronized long getPercentile(final double percentile) {
+        final int size = (int) Math.min(count, SAMPLE_SIZE);
+        if (size == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    /**
+     * Returns the histogram as CompositeData with the (long) ITEM_NAMES - so
+     * that it can be charted via JMX
+     */
+    public synchronized CompositeData toCompositeData() {
+        final Object[] values = {count, getMin(), Math.round(getMean()), getPercentile(0.5),
+                getPercentile(0.95), getPercentile(0.99), getMax(), last};
+        try {
+            return new CompositeDataSupport(COMPOSITE_TYPE, ITEM_NAMES, values);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("toCompositeData: cannot create CompositeData: " + e, e);
+        }
+    }
+
+    private static CompositeType newCompositeType() {
+        final OpenType<?>[] types = new OpenType<?>[ITEM_NAMES.length];
+        Arrays.fill(types, SimpleType.LONG);
+        try {
+            return new CompositeType(Histogram.class.getName(), "A histogram of long values",
+                    ITEM_NAMES, ITEM_NAMES, types);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("newCompositeType: cannot create CompositeType: " + e, e);
+        }
+    }
+
+    /** Returns the histogram as one line **/
+    @Override
+    public synchronized String toString() {
+        return name + ": count=" + count
+                + ", min=" + getMin() + unit
+                + ", mean=" + Math.round(getMean()) + unit
+                + ", p50=" + getPercentile(0.5) + unit
+                + ", p95=" + getPercentile(0.95) + unit
+                + ", p99=" + getPercentile(0.99) + unit
+                + ", max=" + getMax() + unit
+                + ", last=" + last + unit;
+    }
+
+}
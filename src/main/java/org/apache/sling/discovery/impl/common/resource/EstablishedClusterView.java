@@ -19,10 +19,10 @@
 package org.apache.sling.discovery.impl.common.resource;
 
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
@@ -61,46 +61,25 @@ public class EstablishedClusterView extends LocalClusterView {
             throw new IllegalStateException("valueMap must not be null");
         }
         String leaderId = valueMap.get("leaderId", String.class);
-        final Resource members = viewRes.getChild("members");
+        final Set<String> members = view.getMemberIds();
         if (members == null) {
             throw new IllegalStateException("members must not be null");
         }
-        final Iterator<Resource> it1 = members
-                .getChildren().iterator();
-        final List<Resource> instanceRess = new LinkedList<Resource>();
-        while (it1.hasNext()) {
-            instanceRess.add(it1.next());
-        }
-
-        Collections.sort(instanceRess, new Comparator<Resource>() {
-            public int compare(Resource o1, Resource o2) {
-                if (o1 == o2) {
-                    return 0;
-                }
-                if (o1 == null) {
-                    return 1;
-                }
-                if (o2 == null) {
-                    return -1;
-                }
-                return o1.getName().compareTo(o2.getName());
-            }
-        });
+        final List<String> instanceIds = new LinkedList<String>(members);
+        Collections.sort(instanceIds);
 
         if (leaderId==null || leaderId.length()==0) {
         	// fallback to pre-SLING-3253: choose leader based on slingId alone.
-	        final Resource leader = instanceRess.get(0);
-	        leaderId = leader.getName();
+	        leaderId = instanceIds.get(0);
         }
         InstanceDescription leaderInstance = null;
 
-        for (Iterator<Resource> it2 = instanceRess.iterator(); it2.hasNext();) {
-            Resource resource = it2.next();
-            Resource instanceResource = resource.getResourceResolver()
+        for (Iterator<String> it2 = instanceIds.iterator(); it2.hasNext();) {
+            String slingId = it2.next();
+            Resource instanceResource = viewRes.getResourceResolver()
                     .getResource(
                             config.getClusterInstancesPath() + "/"
-                                    + resource.getName());
-            String slingId = resource.getName();
+                                    + slingId);
             EstablishedInstanceDescription instance = new EstablishedInstanceDescription(
                     this, instanceResource, slingId, slingId.equals(leaderId),
                     slingId.equals(localId));
@@ -19,19 +19,37 @@
 package org.apache.sling.discovery.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.discovery.PropertyProvider;
+import org.apache.sling.discovery.TopologyView;
 import org.apache.sling.discovery.base.its.AbstractDiscoveryServiceTest;
 import org.apache.sling.discovery.base.its.setup.VirtualInstance;
 import org.apache.sling.discovery.base.its.setup.VirtualInstanceBuilder;
 import org.apache.sling.discovery.commons.providers.base.DummyListener;
 import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHandler;
+import org.apache.sling.discovery.impl.common.metrics.DiscoveryMetrics;
+import org.apache.sling.discovery.impl.setup.FullJR2VirtualInstance;
 import org.apache.sling.discovery.impl.setup.FullJR2VirtualInstanceBuilder;
 import org.junit.Test;
+import org.osgi.framework.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import junitx.util.PrivateAccessor;
+
 public class DiscoveryServiceImplTest extends AbstractDiscoveryServiceTest {
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -113,4 +131,308 @@ public class DiscoveryServiceImplTest extends AbstractDiscoveryServiceTest {
         assertEquals(0, discoveryService.getViewStateManager().waitForAsyncEvents(2000));
         assertEquals(3, listener.countEvents());
     }
+
+    @Test
+    public void testMergePropertiesIntoHeartbeat() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testMergePropertiesIntoHeartbeat/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        builder.setMergePropertiesIntoHeartbeat(true);
+        VirtualInstance instance = builder.build();
+        DiscoveryServiceImpl discoveryService = (DiscoveryServiceImpl) instance.getDiscoveryService();
+
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "bar");
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(PropertyProvider.PROPERTY_PROPERTIES, "foo");
+        props.put(Constants.SERVICE_ID, 1L);
+        discoveryService.bindPropertyProvider(new PropertyProvider() {
+
+            @Override
+            public String getProperty(String name) {
+                return values.get(name);
+            }
+        }, props);
+
+        // a changed value goes to the repository with the heartbeat
+        values.put("foo", "baz");
+        instance.heartbeatsAndCheckView();
+        ResourceResolver resolver = instance.getResourceResolverFactory().getServiceResourceResolver(null);
+        try {
+            Resource properties = resolver.getResource("/var/testMergePropertiesIntoHeartbeat/clusterInstances/"
+                    + instance.getSlingId() + "/properties");
+            assertEquals("baz", properties.adaptTo(ValueMap.class).get("foo", String.class));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedPropertiesNotRewritten() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testUnchangedPropertiesNotRewritten/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        VirtualInstance instance = builder.build();
+        DiscoveryServiceImpl discoveryService = (DiscoveryServiceImpl) instance.getDiscoveryService();
+
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(PropertyProvider.PROPERTY_PROPERTIES, "foo");
+        props.put(Constants.SERVICE_ID, 1L);
+        discoveryService.bindPropertyProvider(new PropertyProvider() {
+
+            @Override
+            public String getProperty(String name) {
+                return "foo".equals(name) ? "bar" : null;
+            }
+        }, props);
+
+        final String propertiesPath = "/var/testUnchangedPropertiesNotRewritten/clusterInstances/"
+                + instance.getSlingId() + "/properties";
+        ResourceResolver resolver = instance.getResourceResolverFactory().getServiceResourceResolver(null);
+        try {
+            Resource properties = resolver.getResource(propertiesPath);
+            assertEquals("bar", properties.adaptTo(ValueMap.class).get("foo", String.class));
+            properties.adaptTo(ModifiableValueMap.class).put("foo", "modified");
+            resolver.commit();
+
+            // the polled values are unchanged, hence the repository is not accessed
+            discoveryService.updateProperties();
+            resolver.refresh();
+            properties = resolver.getResource(propertiesPath);
+            assertEquals("modified", properties.adaptTo(ValueMap.class).get("foo", String.class));
+
+            // until they are reconciled with the repository
+            discoveryService.invalidatePublishedProperties();
+            discoveryService.updateProperties();
+            resolver.refresh();
+            properties = resolver.getResource(propertiesPath);
+            assertEquals("bar", properties.adaptTo(ValueMap.class).get("foo", String.class));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void testSlowPropertyProvider() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testSlowPropertyProvider/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        builder.setPropertyProviderTimeout(100);
+        VirtualInstance instance = builder.build();
+        DiscoveryServiceImpl discoveryService = (DiscoveryServiceImpl) instance.getDiscoveryService();
+
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("foo", "bar");
+        final CountDownLatch released = new CountDownLatch(1);
+        final boolean[] slow = new boolean[1];
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(PropertyProvider.PROPERTY_PROPERTIES, "foo");
+        props.put(Constants.SERVICE_ID, 1L);
+        discoveryService.bindPropertyProvider(new PropertyProvider() {
+
+            @Override
+            public String getProperty(String name) {
+                if (slow[0]) {
+                    try {
+                        released.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return values.get(name);
+            }
+        }, props);
+
+        // a late provider contributes its last known value - without delaying the update
+        slow[0] = true;
+        values.put("foo", "baz");
+        final long start = System.currentTimeMillis();
+        discoveryService.updateProperties();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals("bar", readProperty(instance, "/var/testSlowPropertyProvider/", "foo"));
+
+        // once it answered its value is used
+        released.countDown();
+        discoveryService.updateProperties();
+        assertEquals("baz", readProperty(instance, "/var/testSlowPropertyProvider/", "foo"));
+        assertTrue(discoveryService.getPropertyProviderStatistics().get(0).contains("late=1"));
+    }
+
+    @Test
+    public void testSlowPropertyProviderDoesNotBlock() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testSlowPropertyProviderDoesNotBlock/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        builder.setPropertyProviderTimeout(5000);
+        VirtualInstance instance = builder.build();
+        final DiscoveryServiceImpl discoveryService = (DiscoveryServiceImpl) instance.getDiscoveryService();
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final boolean[] slow = new boolean[1];
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(PropertyProvider.PROPERTY_PROPERTIES, "foo");
+        props.put(Constants.SERVICE_ID, 1L);
+        discoveryService.bindPropertyProvider(new PropertyProvider() {
+
+            @Override
+            public String getProperty(String name) {
+                if (slow[0]) {
+                    entered.countDown();
+                    try {
+                        released.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return "bar";
+            }
+        }, props);
+
+        slow[0] = true;
+        final Thread updater = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                discoveryService.updateProperties();
+            }
+        });
+        updater.start();
+        try {
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            // while the update waits for the provider the lock is not held
+            final long start = System.currentTimeMillis();
+            discoveryService.invalidatePublishedProperties();
+            assertEquals(1, discoveryService.getPropertyProviderStatistics().size());
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        } finally {
+            released.countDown();
+            updater.join(10000);
+        }
+        assertFalse(updater.isAlive());
+    }
+
+    @Test
+    public void testSingleInstanceFastPath() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testSingleInstanceFastPath/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        builder.setSingleInstanceFastPath(true);
+        FullJR2VirtualInstance instance = builder.fullBuild();
+        // in OSGi the VotingHandler is active before the HeartbeatHandler referencing
+        // it - not so in this setup, hence analyze the startup voting explicitly
+        instance.analyzeVotings();
+
+        // the view is established during startup - without any view check
+        TopologyView topology = instance.getDiscoveryService().getTopology();
+        assertTrue(topology.isCurrent());
+        assertEquals(1, topology.getLocalInstance().getClusterView().getInstances().size());
+        assertEquals(instance.getSlingId(), topology.getLocalInstance().getClusterView().getLeader().getSlingId());
+    }
+
+    @Test
+    public void testMBeanStatistics() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testMBeanStatistics/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        VirtualInstance instance = builder.build();
+        DiscoveryServiceImpl discoveryService = (DiscoveryServiceImpl) instance.getDiscoveryService();
+        HeartbeatHandler heartbeatHandler = (HeartbeatHandler) instance.getViewChecker();
+        DiscoveryServiceMBean mbean = new DiscoveryServiceMBeanImpl(heartbeatHandler, discoveryService);
+
+        instance.heartbeatsAndCheckView();
+        Thread.sleep(1000);
+        instance.heartbeatsAndCheckView();
+        assertEquals(0, discoveryService.getViewStateManager().waitForAsyncEvents(2000));
+
+        assertTrue(mbean.isLocalViewCurrent());
+        assertTrue(mbean.getLastHeartbeatWrittenAt() > 0);
+        assertEquals(1, mbean.getLiveInstances().length);
+        assertEquals(instance.getSlingId(), mbean.getLiveInstances()[0]);
+        assertNotNull(mbean.getEstablishedViewId());
+        assertEquals(instance.getSlingId(), mbean.getLeaderId());
+        assertEquals(0, mbean.getOngoingVotings());
+        assertTrue(mbean.getMillisSinceLastTopologyChange() >= 0);
+        // the ClusterViewChangeListener is not registered in this setup
+        assertEquals(0, mbean.getTopologyEventsReceived());
+        assertEquals(0, mbean.getTopologyChecksExecuted());
+    }
+
+    @Test
+    public void testHeartbeatLanesTriggered() throws Exception {
+        FullJR2VirtualInstanceBuilder builder =
+                (FullJR2VirtualInstanceBuilder) new FullJR2VirtualInstanceBuilder()
+                .setDebugName("instance1")
+                .newRepository("/var/testHeartbeatLanesTriggered/", true)
+                .setConnectorPingInterval(999)
+                .setConnectorPingTimeout(999)
+                .setMinEventDelay(0);
+        builder.setHeartbeatLanes(true);
+        VirtualInstance instance = builder.build();
+        HeartbeatHandler heartbeatHandler = (HeartbeatHandler) instance.getViewChecker();
+        assertEquals(3, heartbeatHandler.getHeartbeatLaneStatistics().size());
+        final DiscoveryMetrics metrics = DiscoveryMetrics.testConstructor();
+        PrivateAccessor.setField(heartbeatHandler, "metrics", metrics);
+        final long propertiesRuns = getLaneRuns(heartbeatHandler, ".properties:");
+        final long connectorPingRuns = getLaneRuns(heartbeatHandler, ".connectorPings:");
+
+        // the periodic runs are 999s apart, hence these are the triggered ones
+        heartbeatHandler.triggerAsyncConnectorPing();
+        final long timeout = System.currentTimeMillis() + 5000;
+        while ((getLaneRuns(heartbeatHandler, ".connectorPings:") == connectorPingRuns
+                || metrics.getViewCheckMillis().get("count").equals(0L))
+                && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertTrue(getLaneRuns(heartbeatHandler, ".connectorPings:") > connectorPingRuns);
+        // the properties are updated first, so that the pings announce them
+        assertTrue(getLaneRuns(heartbeatHandler, ".properties:") > propertiesRuns);
+        // and the view is checked, as without heartbeatLanes
+        assertTrue((Long) metrics.getViewCheckMillis().get("count") > 0);
+    }
+
+    private long getLaneRuns(HeartbeatHandler heartbeatHandler, String lane) {
+        for (String statistics : heartbeatHandler.getHeartbeatLaneStatistics()) {
+            if (statistics.contains(lane)) {
+                final String runs = statistics.substring(statistics.indexOf("runs=") + "runs=".length());
+                return Long.parseLong(runs.substring(0, runs.indexOf(",")));
+            }
+        }
+        throw new IllegalStateException("no such lane: " + lane);
+    }
+
+    private String readProperty(VirtualInstance instance, String path, String name) throws Exception {
+        ResourceResolver resolver = instance.getResourceResolverFactory().getServiceResourceResolver(null);
+        try {
+            Resource properties = resolver.getResource(path + "clusterInstances/"
+                    + instance.getSlingId() + "/properties");
+            return properties.adaptTo(ValueMap.class).get(name, String.class);
+        } finally {
+            resolver.close();
+        }
+    }
 }
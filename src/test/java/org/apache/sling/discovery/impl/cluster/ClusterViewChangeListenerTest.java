@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.testing.jcr.RepositoryProvider;
+import org.apache.sling.discovery.base.its.setup.OSGiMock;
+import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
+import org.apache.sling.discovery.commons.providers.spi.base.DummySlingSettingsService;
+import org.apache.sling.discovery.impl.DiscoveryServiceImpl;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHandler;
+import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHelper;
+import org.apache.sling.discovery.impl.common.heartbeat.LiveInstanceTracker;
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import junitx.util.PrivateAccessor;
+
+public class ClusterViewChangeListenerTest {
+
+    private ResourceResolverFactory factory;
+    private ResourceResolver resourceResolver;
+    private TestConfig config;
+    private String slingId1;
+    private String slingId2;
+    private LiveInstanceTracker tracker;
+    private ClusterViewChangeListener listener;
+
+    private void resetRepo() throws Exception {
+        Session l = RepositoryProvider.instance().getRepository()
+                .loginAdministrative(null);
+        try{
+            l.getNode("/var");
+            l.removeItem("/var");
+        } catch(PathNotFoundException pnfe) {
+            // well then we probably dont have to do any cleanup
+        }
+        l.save();
+        l.logout();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slingId1 = UUID.randomUUID().toString();
+        slingId2 = UUID.randomUUID().toString();
+        factory = new DummyResourceResolverFactory();
+        resetRepo();
+        config = new TestConfig("/var/discovery/impltesting/");
+        config.setHeartbeatInterval(999);
+        config.setHeartbeatTimeout(60);
+        resourceResolver = factory.getServiceResourceResolver(null);
+        tracker = LiveInstanceTracker.testConstructor(new DummySlingSettingsService(slingId1), config);
+        tracker.setEnabled(true);
+
+        // not activated: the DiscoveryServiceImpl ignores the checks and departures
+        listener = new ClusterViewChangeListener();
+        PrivateAccessor.setField(listener, "slingId", slingId1);
+        PrivateAccessor.setField(listener, "config", config);
+        PrivateAccessor.setField(listener, "liveInstanceTracker", tracker);
+        PrivateAccessor.setField(listener, "discoveryService", new DiscoveryServiceImpl());
+        PrivateAccessor.setField(listener, "clusterViewService",
+                ClusterViewServiceImpl.testConstructor(new DummySlingSettingsService(slingId1), factory, config));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (resourceResolver != null) {
+            resourceResolver.close();
+        }
+    }
+
+    private HeartbeatHandler newHeartbeatHandler(String slingId) throws Exception {
+        HeartbeatHandler hh = HeartbeatHandler.testConstructor(new DummySlingSettingsService(slingId), factory, null, null, config, null, null);
+        OSGiMock.activate(hh);
+        return hh;
+    }
+
+    /** Post the event the repository sends for a change of the instance resource of the given slingId **/
+    private void postChanged(String slingId, String attributesKey, String... attributes) {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("path", config.getClusterInstancesPath() + "/" + slingId);
+        properties.put(attributesKey, attributes);
+        listener.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+    }
+
+    @Test
+    public void testDepartureIsNoHeartbeat() throws Exception {
+        final HeartbeatHandler hh1 = newHeartbeatHandler(slingId1);
+        final HeartbeatHandler hh2 = newHeartbeatHandler(slingId2);
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh1);
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh2);
+        resourceResolver.refresh();
+        // reconcile - the tracker is current thereafter
+        DiscoverySnapshot.read(resourceResolver, config, tracker);
+        postChanged(slingId1, "resourceChangedAttributes", "lastHeartbeat", "heartbeatSequence");
+        postChanged(slingId2, "resourceChangedAttributes", "lastHeartbeat", "heartbeatSequence");
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)),
+                tracker.getLiveInstances(System.currentTimeMillis()));
+
+        // the first heartbeat removed leftAt - the departure hence adds it anew
+        HeartbeatHelper.issueDepartureMarker(hh2);
+        postChanged(slingId2, "resourceAddedAttributes", "leftAt");
+        assertEquals(Collections.singleton(slingId1), tracker.getLiveInstances(System.currentTimeMillis()));
+
+        resourceResolver.refresh();
+        final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertTrue(snapshot.getClusterInstances().isEmpty());
+        assertEquals(Collections.singleton(slingId1), snapshot.getLiveInstances());
+    }
+
+    @Test
+    public void testChangedDeparture() throws Exception {
+        tracker.reconcile(Collections.<String, Date>emptyMap(), System.currentTimeMillis());
+        postChanged(slingId2, "resourceChangedAttributes", "lastHeartbeat", "heartbeatSequence");
+        assertEquals(Collections.singleton(slingId2), tracker.getLiveInstances(System.currentTimeMillis()));
+        postChanged(slingId2, "resourceChangedAttributes", "leftAt");
+        assertEquals(Collections.emptySet(), tracker.getLiveInstances(System.currentTimeMillis()));
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.testing.jcr.RepositoryProvider;
+import org.apache.sling.discovery.base.commons.UndefinedClusterViewException;
+import org.apache.sling.discovery.base.its.setup.OSGiMock;
+import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
+import org.apache.sling.discovery.commons.providers.spi.LocalClusterView;
+import org.apache.sling.discovery.commons.providers.spi.base.DummySlingSettingsService;
+import org.apache.sling.discovery.impl.cluster.voting.VotingHandler;
+import org.apache.sling.discovery.impl.cluster.voting.VotingView;
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterViewServiceImplTest {
+
+    private ResourceResolverFactory factory;
+    private ResourceResolver resourceResolver;
+    private TestConfig config;
+    private String slingId;
+    private VotingHandler votingHandler;
+    private ClusterViewServiceImpl clusterViewService;
+
+    private void resetRepo() throws Exception {
+        Session l = RepositoryProvider.instance().getRepository()
+                .loginAdministrative(null);
+        try{
+            l.getNode("/var");
+            l.removeItem("/var");
+        } catch(PathNotFoundException pnfe) {
+            // well then we probably dont have to do any cleanup
+        }
+        l.save();
+        l.logout();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slingId = UUID.randomUUID().toString();
+        factory = new DummyResourceResolverFactory();
+        resetRepo();
+        config = new TestConfig("/var/discovery/impltesting/");
+        config.setHeartbeatInterval(999);
+        config.setHeartbeatTimeout(60);
+        resourceResolver = factory.getServiceResourceResolver(null);
+        votingHandler = VotingHandler.testConstructor(new DummySlingSettingsService(slingId), factory, config);
+        OSGiMock.activate(votingHandler);
+        clusterViewService = (ClusterViewServiceImpl) ClusterViewServiceImpl.testConstructor(
+                new DummySlingSettingsService(slingId), factory, config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OSGiMock.deactivate(votingHandler);
+        clusterViewService.deactivate();
+        if (resourceResolver != null) {
+            resourceResolver.close();
+        }
+    }
+
+    private String promoteNewView() throws Exception {
+        final String viewId = UUID.randomUUID().toString();
+        VotingView.newVoting(resourceResolver, config, viewId, slingId, Collections.singleton(slingId));
+        votingHandler.analyzeVotings(resourceResolver);
+        return viewId;
+    }
+
+    @Test
+    public void testUncached() throws Exception {
+        final String viewId = promoteNewView();
+        LocalClusterView view1 = clusterViewService.getLocalClusterView();
+        assertEquals(viewId, view1.getLocalClusterSyncTokenId());
+        LocalClusterView view2 = clusterViewService.getLocalClusterView();
+        assertNotSame(view1, view2);
+        assertEquals(view1.getId(), view2.getId());
+    }
+
+    @Test
+    public void testCachedUntilInvalidated() throws Exception {
+        clusterViewService.setViewCacheEnabled(true);
+        final String viewId1 = promoteNewView();
+        LocalClusterView view1 = clusterViewService.getLocalClusterView();
+        assertEquals(viewId1, view1.getLocalClusterSyncTokenId());
+        assertSame(view1, clusterViewService.getLocalClusterView());
+
+        // a new view is only seen once the change was reported
+        final String viewId2 = promoteNewView();
+        assertNotEquals(viewId1, viewId2);
+        assertSame(view1, clusterViewService.getLocalClusterView());
+        clusterViewService.invalidateCachedView();
+        LocalClusterView view2 = clusterViewService.getLocalClusterView();
+        assertEquals(viewId2, view2.getLocalClusterSyncTokenId());
+        assertSame(view2, clusterViewService.getLocalClusterView());
+
+        // invalidating the established view must not be hidden by the cache
+        clusterViewService.invalidateEstablishedViewId(viewId2);
+        try{
+            clusterViewService.getLocalClusterView();
+            fail("should complain about the invalidated view");
+        } catch(UndefinedClusterViewException e) {
+            // ok
+        }
+    }
+
+}
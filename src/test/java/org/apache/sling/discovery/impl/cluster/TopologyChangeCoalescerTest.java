@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopologyChangeCoalescerTest {
+
+    private TestConfig config;
+    private AtomicInteger checks;
+    private TopologyChangeCoalescer coalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new TestConfig("/var/discovery/impltesting/");
+        checks = new AtomicInteger();
+        coalescer = new TopologyChangeCoalescer("testCoalescer", config, new Runnable() {
+
+            @Override
+            public void run() {
+                checks.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        coalescer.close();
+    }
+
+    private void waitForChecks(int expected) throws Exception {
+        final long timeout = System.currentTimeMillis() + 5000;
+        while (checks.get() < expected && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testBurstCoalesced() throws Exception {
+        config.setTopologyChangeQuietPeriod(300);
+        config.setTopologyChangeMaxDelay(10000);
+        for (int i = 0; i < 50; i++) {
+            coalescer.eventReceived();
+        }
+        assertEquals(0, checks.get());
+        waitForChecks(1);
+        Thread.sleep(500);
+        assertEquals(1, checks.get());
+        assertEquals(50, coalescer.getEventsReceived());
+        assertEquals(1, coalescer.getChecksExecuted());
+
+        // a later event leads to another check
+        coalescer.eventReceived();
+        waitForChecks(2);
+        assertEquals(2, checks.get());
+        assertEquals(51, coalescer.getEventsReceived());
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        config.setTopologyChangeQuietPeriod(200);
+        config.setTopologyChangeMaxDelay(500);
+        final long start = System.currentTimeMillis();
+        // events keep arriving within the quiet period
+        while (System.currentTimeMillis() - start < 1500) {
+            coalescer.eventReceived();
+            Thread.sleep(20);
+        }
+        // the max delay forces checks in between
+        assertTrue("checks: " + checks.get(), checks.get() >= 2);
+        assertTrue(coalescer.getEventsReceived() > coalescer.getChecksExecuted());
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        config.setTopologyChangeQuietPeriod(100);
+        coalescer.eventReceived();
+        coalescer.close();
+        coalescer.eventReceived();
+        Thread.sleep(300);
+        assertEquals(0, checks.get());
+    }
+
+}
@@ -21,6 +21,7 @@ package org.apache.sling.discovery.impl.cluster.voting;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -34,12 +35,16 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jcr.PathNotFoundException;
 import javax.jcr.Session;
 
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.testing.jcr.RepositoryProvider;
 import org.apache.sling.commons.testing.junit.categories.Slow;
 import org.apache.sling.commons.threads.ModifiableThreadPoolConfig;
@@ -49,14 +54,19 @@ import org.apache.sling.discovery.base.its.setup.VirtualInstanceHelper;
 import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
 import org.apache.sling.discovery.commons.providers.spi.base.DummySlingSettingsService;
 import org.apache.sling.discovery.impl.cluster.voting.VotingHandler.VotingDetail;
+import org.apache.sling.discovery.impl.common.View;
+import org.apache.sling.discovery.impl.common.ViewHelper;
 import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHandler;
 import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHelper;
+import org.apache.sling.discovery.impl.setup.FullJR2VirtualInstance;
+import org.apache.sling.discovery.impl.setup.FullJR2VirtualInstanceBuilder;
 import org.apache.sling.discovery.impl.setup.TestConfig;
 import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.osgi.service.event.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -174,6 +184,202 @@ public class VotingHandlerTest {
         assertEquals(0, result.size());
     }
 
+    private Set<String> previousViews() throws Exception {
+        final Set<String> result = new HashSet<String>();
+        resourceResolver.refresh();
+        final Resource previousViews = resourceResolver.getResource(config.getPreviousViewPath());
+        if (previousViews != null) {
+            for (Resource previousView : previousViews.getChildren()) {
+                result.add(previousView.getName());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testFastPromotion() throws Exception {
+        config.setFastPromotion(true);
+        votingHandler1.activate(null);
+        try {
+            final String viewId1 = UUID.randomUUID().toString();
+            final String viewId2 = UUID.randomUUID().toString();
+            final String viewId3 = UUID.randomUUID().toString();
+            newVoting2(viewId1, slingId1, slingId1);
+            assertEquals(VotingDetail.PROMOTED, votingHandler1.analyzeVotings(resourceResolver).values().iterator().next());
+            newVoting2(viewId2, slingId1, slingId1);
+            assertEquals(VotingDetail.PROMOTED, votingHandler1.analyzeVotings(resourceResolver).values().iterator().next());
+            newVoting2(viewId3, slingId1, slingId1);
+            assertEquals(VotingDetail.PROMOTED, votingHandler1.analyzeVotings(resourceResolver).values().iterator().next());
+
+            // the established view is switched right away
+            resourceResolver.refresh();
+            assertNotNull(resourceResolver.getResource(config.getEstablishedViewPath() + "/" + viewId3));
+
+            // the older previous views are removed after the promotion, only the last retired one remains
+            final Set<String> expected = new HashSet<String>(Arrays.asList(viewId2));
+            final long timeout = System.currentTimeMillis() + 10000;
+            while (!expected.equals(previousViews()) && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+            }
+            assertEquals(expected, previousViews());
+        } finally {
+            votingHandler1.deactivate();
+        }
+    }
+
+    @Test
+    public void testCompactPromotion() throws Exception {
+        // a cluster amid a rolling upgrade: the first instance writes compact, the second doesn't
+        FullJR2VirtualInstanceBuilder compactBuilder = new FullJR2VirtualInstanceBuilder();
+        compactBuilder.setDebugName("compact")
+                .newRepository("/var/testCompactPromotion/", true)
+                .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                .setConnectorPingTimeout(60)
+                .setMinEventDelay(0);
+        compactBuilder.setCompactViewStorage(true);
+        FullJR2VirtualInstance compactInstance = compactBuilder.fullBuild();
+        FullJR2VirtualInstance plainInstance = null;
+        ResourceResolver resolver = null;
+        try {
+            FullJR2VirtualInstanceBuilder plainBuilder = new FullJR2VirtualInstanceBuilder();
+            plainBuilder.setDebugName("plain")
+                    .useRepositoryOf(compactInstance)
+                    .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                    .setConnectorPingTimeout(60)
+                    .setMinEventDelay(0);
+            plainInstance = plainBuilder.fullBuild();
+            // the votings are analyzed explicitly below
+            compactInstance.stopVoting();
+            plainInstance.stopVoting();
+            HeartbeatHelper.issueClusterLocalHeartbeat(compactInstance.getHeartbeatHandler());
+            HeartbeatHelper.issueClusterLocalHeartbeat(plainInstance.getHeartbeatHandler());
+
+            final String compactId = compactInstance.getSlingId();
+            final String plainId = plainInstance.getSlingId();
+            final Set<String> members = new HashSet<String>(Arrays.asList(compactId, plainId));
+            final String viewId = UUID.randomUUID().toString();
+            resolver = compactInstance.getResourceResolverFactory().getServiceResourceResolver(null);
+            VotingView voting = VotingView.newVoting(resolver, compactInstance.getFullConfig(), viewId, compactId, members);
+            assertNotNull(voting);
+            assertNull(voting.getResource().getChild("members"));
+            assertEquals(members, voting.getVotingState().getMembers());
+            assertEquals(Boolean.TRUE, voting.getVotingState().getVote(compactId));
+            assertNull(voting.getVotingState().getVote(plainId));
+            assertFalse(voting.isWinning());
+
+            // the instance not writing compact reads the voting - and votes in its format
+            plainInstance.analyzeVotings();
+            resolver.refresh();
+            voting = new VotingView(resolver.getResource(voting.getResource().getPath()));
+            assertNull(voting.getResource().getChild("members"));
+            assertEquals(Boolean.TRUE, voting.getVotingState().getVote(plainId));
+            assertTrue(voting.isWinning());
+
+            compactInstance.analyzeVotings();
+            resolver.refresh();
+            final View established = ViewHelper.getEstablishedView(resolver, plainInstance.getFullConfig());
+            assertNotNull(established);
+            assertEquals(viewId, established.getResource().getName());
+            assertEquals(members, established.getMemberIds());
+            // both instances read the compact established view
+            assertEquals(2, compactInstance.getClusterViewService().getLocalClusterView().getInstances().size());
+            assertEquals(2, plainInstance.getClusterViewService().getLocalClusterView().getInstances().size());
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+            if (plainInstance != null) {
+                plainInstance.stop();
+            }
+            compactInstance.stop();
+        }
+    }
+
+    @Test
+    public void testMembershipDigest() throws Exception {
+        assertEquals(ViewHelper.membershipDigest(Arrays.asList(slingId1, slingId2)),
+                ViewHelper.membershipDigest(Arrays.asList(slingId2, slingId1)));
+        assertFalse(ViewHelper.membershipDigest(Arrays.asList(slingId1, slingId2)).equals(
+                ViewHelper.membershipDigest(Arrays.asList(slingId1))));
+
+        VotingView voting = newVoting(slingId1, slingId1, slingId2);
+        assertEquals(ViewHelper.membershipDigest(Arrays.asList(slingId1, slingId2)),
+                voting.getResource().adaptTo(ValueMap.class).get("membershipDigest", String.class));
+        assertNull(voting.matches(new HashSet<String>(Arrays.asList(slingId2, slingId1))));
+        // a digest not matching (eg computed for another set) falls back to the detailed comparison
+        assertNull(voting.matches(new HashSet<String>(Arrays.asList(slingId2, slingId1)),
+                ViewHelper.membershipDigest(Arrays.asList(slingId3))));
+        // on a mismatch the members are still compared one by one
+        final String mismatch = voting.matches(new HashSet<String>(Arrays.asList(slingId1, slingId3)));
+        assertNotNull(mismatch);
+        assertTrue(mismatch.contains("old: " + slingId2));
+        assertTrue(mismatch.contains("new: " + slingId3));
+    }
+
+    @Test
+    public void testVotingTimelines() throws Exception {
+        final VotingTimelines timelines = new VotingTimelines();
+        PrivateAccessor.setField(votingHandler1, "votingTimelines", timelines);
+        final String viewId = UUID.randomUUID().toString();
+        VotingView voting = newVoting2(viewId, slingId1, slingId1, slingId2);
+        // a voting is only promoted while all its members are alive
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        votingHandler1.activate(null);
+
+        // the voting is observed, but it's not winning yet
+        votingHandler1.analyzeVotings(resourceResolver);
+        VotingTimelines.Timeline timeline = timelines.getTimeline(viewId);
+        assertNotNull(timeline);
+        assertTrue(timeline.getVoteLatency(slingId1) >= 0);
+        assertEquals(-1, timeline.getVoteLatency(slingId2));
+        assertEquals(-1, timeline.getWinningAt());
+
+        Thread.sleep(50);
+        voting.vote(slingId2, true, null);
+        assertEquals(VotingDetail.PROMOTED, votingHandler1.analyzeVotings(resourceResolver).values().iterator().next());
+        assertTrue(timeline.getVoteLatency(slingId2) >= 50);
+        assertTrue(timeline.getWinningAt() != -1);
+        assertTrue(timeline.getPromotedAt() != -1);
+        assertEquals(-1, timeline.getEventAt());
+
+        timelines.eventSent(viewId);
+        assertTrue(timeline.getEventAt() != -1);
+        assertEquals(1, timelines.getTimelines().size());
+        assertTrue(timelines.getTimelines().get(0).startsWith(viewId));
+    }
+
+    @Test
+    public void testEventsCoalesced() throws Exception {
+        config.setVotingEventDebounce(1000);
+        final String viewId = UUID.randomUUID().toString();
+        newVoting2(viewId, slingId1, slingId1);
+        votingHandler1.activate(null);
+        final String establishedPath = config.getEstablishedViewPath() + "/" + viewId;
+        try {
+            for (int i = 0; i < 20; i++) {
+                Map<String, Object> props = new HashMap<String, Object>();
+                props.put("path", config.getOngoingVotingsPath() + "/" + viewId + "/members/" + slingId1);
+                votingHandler1.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props));
+            }
+            // the burst is handled by one later analysis - not on the event thread
+            assertTrue(((AtomicBoolean)PrivateAccessor.getField(votingHandler1, "analysisScheduled")).get());
+            resourceResolver.refresh();
+            assertNull(resourceResolver.getResource(establishedPath));
+
+            final long timeout = System.currentTimeMillis() + 10000;
+            while (resourceResolver.getResource(establishedPath) == null
+                    && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+                resourceResolver.refresh();
+            }
+            assertNotNull(resourceResolver.getResource(establishedPath));
+            assertFalse(((AtomicBoolean)PrivateAccessor.getField(votingHandler1, "analysisScheduled")).get());
+        } finally {
+            votingHandler1.deactivate();
+        }
+    }
+
     @Test
     public void testVotingYesTwoNodes() throws Exception {
         VotingView voting = newVoting(slingId2, slingId1, slingId2);
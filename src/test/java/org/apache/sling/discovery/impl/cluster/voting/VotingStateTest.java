@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.cluster.voting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.testing.jcr.RepositoryProvider;
+import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.Test;
+
+public class VotingStateTest {
+
+    private Map<String, Object> member(Boolean vote, boolean initiator, String leaderElectionId) {
+        final Map<String, Object> result = new HashMap<String, Object>();
+        if (vote != null) {
+            result.put("vote", vote);
+        }
+        if (initiator) {
+            result.put("initiator", true);
+        }
+        result.put("leaderElectionId", leaderElectionId);
+        return result;
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        final Calendar votingStart = Calendar.getInstance();
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("votingStart", votingStart);
+        final Map<String, Map<String, Object>> members = new LinkedHashMap<String, Map<String, Object>>();
+        members.put("a", member(true, true, "1"));
+        members.put("b", member(null, false, "2"));
+
+        VotingState state = VotingState.parse(properties, members);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), state.getMembers());
+        assertEquals(votingStart.getTimeInMillis(), state.getVotingStart());
+        assertTrue(state.isInitiatedBy("a"));
+        assertFalse(state.isInitiatedBy("b"));
+        assertEquals("a", state.getInitiatorId());
+        assertEquals("2", state.getLeaderElectionIds().get("b"));
+        assertEquals(Boolean.TRUE, state.getVote("a"));
+        assertNull(state.getVote("b"));
+        assertFalse(state.isWinning());
+        assertFalse(state.hasNoVotes());
+
+        members.put("b", member(true, false, "2"));
+        state = VotingState.parse(properties, members);
+        assertTrue(state.isWinning());
+
+        members.put("b", member(false, false, "2"));
+        state = VotingState.parse(properties, members);
+        assertFalse(state.isWinning());
+        assertTrue(state.hasNoVotes());
+    }
+
+    @Test
+    public void testInCreation() throws Exception {
+        VotingState state = VotingState.parse(null, null);
+        assertNull(state.getMembers());
+        assertEquals(-1, state.getVotingStart());
+        assertFalse(state.isWinning());
+        assertFalse(state.hasNoVotes());
+        assertFalse(state.isInitiatedBy("a"));
+        assertNull(state.getVote("a"));
+    }
+
+    @Test
+    public void testVotingViewRefresh() throws Exception {
+        final ResourceResolverFactory factory = new DummyResourceResolverFactory();
+        final Session l = RepositoryProvider.instance().getRepository().loginAdministrative(null);
+        try{
+            l.getNode("/var");
+            l.removeItem("/var");
+        } catch(PathNotFoundException pnfe) {
+            // well then we probably dont have to do any cleanup
+        }
+        l.save();
+        l.logout();
+        final TestConfig config = new TestConfig("/var/discovery/impltesting/");
+        final ResourceResolver resourceResolver = factory.getServiceResourceResolver(null);
+        try {
+            final String slingId1 = UUID.randomUUID().toString();
+            final String slingId2 = UUID.randomUUID().toString();
+            final VotingView voting = VotingView.newVoting(resourceResolver, config, UUID.randomUUID().toString(),
+                    slingId1, new HashSet<String>(Arrays.asList(slingId1, slingId2)));
+            final VotingState state = voting.getVotingState();
+            assertSame(state, voting.getVotingState());
+            assertTrue(voting.isInitiatedBy(slingId1));
+            assertFalse(voting.isWinning());
+
+            voting.vote(slingId2, true, null);
+            assertNotSame(state, voting.getVotingState());
+            assertTrue(voting.isWinning());
+        } finally {
+            resourceResolver.close();
+        }
+    }
+
+}
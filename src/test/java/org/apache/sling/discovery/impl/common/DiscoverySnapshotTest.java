@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.testing.jcr.RepositoryProvider;
+import org.apache.sling.discovery.base.its.setup.OSGiMock;
+import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
+import org.apache.sling.discovery.commons.providers.spi.base.DummySlingSettingsService;
+import org.apache.sling.discovery.impl.cluster.voting.VotingHelper;
+import org.apache.sling.discovery.impl.cluster.voting.VotingView;
+import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHandler;
+import org.apache.sling.discovery.impl.common.heartbeat.HeartbeatHelper;
+import org.apache.sling.discovery.impl.common.heartbeat.LiveInstanceTracker;
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiscoverySnapshotTest {
+
+    private ResourceResolverFactory factory;
+    private ResourceResolver resourceResolver;
+    private TestConfig config;
+
+    private String slingId1;
+    private String slingId2;
+
+    private void resetRepo() throws Exception {
+        Session l = RepositoryProvider.instance().getRepository()
+                .loginAdministrative(null);
+        try{
+            l.getNode("/var");
+            l.removeItem("/var");
+        } catch(PathNotFoundException pnfe) {
+            // well then we probably dont have to do any cleanup
+        }
+        l.save();
+        l.logout();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slingId1 = UUID.randomUUID().toString();
+        slingId2 = UUID.randomUUID().toString();
+        factory = new DummyResourceResolverFactory();
+        resetRepo();
+        config = new TestConfig("/var/discovery/impltesting/");
+        config.setHeartbeatInterval(999);
+        config.setHeartbeatTimeout(60);
+        resourceResolver = factory.getServiceResourceResolver(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (resourceResolver != null) {
+            resourceResolver.close();
+        }
+    }
+
+    private HeartbeatHandler heartbeat(String slingId) throws Exception {
+        HeartbeatHandler hh = HeartbeatHandler.testConstructor(new DummySlingSettingsService(slingId), factory, null, null, config, null, null);
+        OSGiMock.activate(hh);
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh);
+        return hh;
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertTrue(snapshot.getClusterInstances().isEmpty());
+        assertTrue(snapshot.getLiveInstances().isEmpty());
+        assertTrue(snapshot.getEstablishedViews().isEmpty());
+        assertTrue(snapshot.getOngoingVotings().isEmpty());
+        assertNull(ViewHelper.getEstablishedView(snapshot, config));
+        assertNull(VotingHelper.getWinningVoting(snapshot, config));
+    }
+
+    private void setLeaderElectionId(String slingId, String leaderElectionId) throws Exception {
+        resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId)
+                .adaptTo(ModifiableValueMap.class).put("leaderElectionId", leaderElectionId);
+        resourceResolver.commit();
+    }
+
+    @Test
+    public void testInitiationRank() throws Exception {
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        resourceResolver.refresh();
+        // rank by the leaderElectionId, not by the slingId
+        setLeaderElectionId(slingId1, "1_" + slingId1);
+        setLeaderElectionId(slingId2, "0_" + slingId2);
+
+        DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertEquals(1, VotingHelper.getInitiationRank(resourceResolver, config, snapshot, snapshot.getLiveInstances(), slingId1));
+        assertEquals(0, VotingHelper.getInitiationRank(resourceResolver, config, snapshot, snapshot.getLiveInstances(), slingId2));
+        assertEquals(-1, VotingHelper.getInitiationRank(resourceResolver, config, snapshot, snapshot.getLiveInstances(), "unknown"));
+    }
+
+    @Test
+    public void testInitiationRankWithCurrentTracker() throws Exception {
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        resourceResolver.refresh();
+        setLeaderElectionId(slingId1, "1_" + slingId1);
+        setLeaderElectionId(slingId2, "0_" + slingId2);
+        final LiveInstanceTracker tracker = LiveInstanceTracker.testConstructor(new DummySlingSettingsService(slingId1), config);
+        tracker.setEnabled(true);
+        DiscoverySnapshot.read(resourceResolver, config, tracker);
+
+        // the tracker is current: clusterInstances is not part of the snapshot..
+        final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertTrue(snapshot.getClusterInstances().isEmpty());
+        // ..yet the instances rank by their leaderElectionId all the same
+        assertEquals(1, VotingHelper.getInitiationRank(resourceResolver, config, snapshot, snapshot.getLiveInstances(), slingId1));
+        assertEquals(0, VotingHelper.getInitiationRank(resourceResolver, config, snapshot, snapshot.getLiveInstances(), slingId2));
+    }
+
+    @Test
+    public void testLiveInstancesAndVotings() throws Exception {
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        resourceResolver.refresh();
+        VotingView voting = VotingView.newVoting(resourceResolver, config, UUID.randomUUID().toString(),
+                slingId1, new HashSet<String>(Arrays.asList(slingId1, slingId2)));
+        assertNotNull(voting);
+
+        DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+        assertEquals(snapshot.getLiveInstances(), ViewHelper.determineLiveInstances(snapshot, config));
+        assertEquals(1, snapshot.getOngoingVotings().size());
+
+        VotingView snapshotVoting = VotingHelper.listVotings(snapshot, config).get(0);
+        assertEquals(voting, snapshotVoting);
+        assertTrue(snapshotVoting.isInitiatedBy(slingId1));
+        assertTrue(snapshotVoting.hasVotedYes(slingId1));
+        assertNull(snapshotVoting.getVote(slingId2));
+        assertFalse(snapshotVoting.isWinning());
+        assertNull(snapshotVoting.matchesLiveView(snapshot, config));
+        assertEquals(1, VotingHelper.listOpenNonWinningVotings(snapshot, config).size());
+        assertEquals(1, VotingHelper.getYesVotingsOf(snapshot, config, slingId1).size());
+        assertNull(VotingHelper.getYesVotingsOf(snapshot, config, slingId2));
+
+        // a vote goes to the repository but the snapshot stays unchanged
+        snapshotVoting.vote(slingId2, true, null);
+        assertFalse(snapshotVoting.isWinning());
+        assertNull(VotingHelper.getWinningVoting(snapshot, config));
+
+        DiscoverySnapshot newSnapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertEquals(voting, VotingHelper.getWinningVoting(newSnapshot, config));
+        assertTrue(VotingHelper.listOpenNonWinningVotings(newSnapshot, config).isEmpty());
+    }
+
+    @Test
+    public void testInstanceLeft() throws Exception {
+        heartbeat(slingId1);
+        final HeartbeatHandler hh2 = heartbeat(slingId2);
+        resourceResolver.refresh();
+        DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+
+        // an orderly stop makes the instance not-live right away
+        HeartbeatHelper.issueDepartureMarker(hh2);
+        resourceResolver.refresh();
+        snapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1)), snapshot.getLiveInstances());
+        assertTrue(snapshot.getClusterInstances().containsKey(slingId2));
+        assertEquals(snapshot.getLiveInstances(), ViewHelper.determineLiveInstances(
+                resourceResolver.getResource(config.getClusterInstancesPath()), config));
+
+        // and a restart brings it back
+        Thread.sleep(5);
+        heartbeat(slingId2);
+        resourceResolver.refresh();
+        snapshot = DiscoverySnapshot.read(resourceResolver, config);
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceResolverPoolTest {
+
+    /** a resolver stub which counts refreshes and closes and can be flagged dead **/
+    private static class StubResolver implements InvocationHandler {
+
+        boolean live = true;
+        boolean failRefresh = false;
+        int refreshed = 0;
+        int closed = 0;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if ("isLive".equals(name)) {
+                return live && closed == 0;
+            } else if ("refresh".equals(name)) {
+                if (failRefresh) {
+                    throw new IllegalStateException("refresh failed");
+                }
+                refreshed++;
+            } else if ("close".equals(name)) {
+                closed++;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return null;
+        }
+    }
+
+    private final AtomicInteger logins = new AtomicInteger();
+    private StubResolver lastStub;
+    private ResourceResolverFactory factory;
+
+    @Before
+    public void setUp() {
+        factory = (ResourceResolverFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {ResourceResolverFactory.class}, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!"getServiceResourceResolver".equals(method.getName())) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        logins.incrementAndGet();
+                        lastStub = new StubResolver();
+                        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                new Class<?>[] {ResourceResolver.class}, lastStub);
+                    }
+                });
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, "test", 2, 60000);
+        ResourceResolver rr1 = pool.acquire();
+        StubResolver stub1 = lastStub;
+        pool.release(rr1);
+        assertEquals(1, pool.getIdleCount());
+
+        ResourceResolver rr2 = pool.acquire();
+        assertSame(rr1, rr2);
+        assertEquals(1, logins.get());
+        assertEquals(1, stub1.refreshed);
+        assertEquals(0, stub1.closed);
+        pool.release(rr2);
+
+        pool.close();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, stub1.closed);
+    }
+
+    @Test
+    public void testRecreateAfterFailure() throws Exception {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, "test", 2, 60000);
+        ResourceResolver rr1 = pool.acquire();
+        StubResolver stub1 = lastStub;
+        pool.release(rr1);
+        stub1.failRefresh = true;
+
+        ResourceResolver rr2 = pool.acquire();
+        assertNotSame(rr1, rr2);
+        assertEquals(2, logins.get());
+        assertEquals(1, stub1.closed);
+
+        // a resolver that is no longer live is not kept
+        lastStub.live = false;
+        pool.release(rr2);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, lastStub.closed);
+    }
+
+    @Test
+    public void testNoReuse() throws Exception {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, "test", 0, 60000);
+        pool.release(pool.acquire());
+        assertEquals(1, lastStub.closed);
+        pool.release(pool.acquire());
+        assertEquals(2, logins.get());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, "test", 2, 0);
+        ResourceResolver rr1 = pool.acquire();
+        StubResolver stub1 = lastStub;
+        Thread.sleep(5);
+        pool.release(rr1);
+        assertEquals(1, stub1.closed);
+        assertNotSame(rr1, pool.acquire());
+    }
+
+}
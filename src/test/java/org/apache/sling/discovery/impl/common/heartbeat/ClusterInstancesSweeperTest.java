@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.UUID;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.testing.jcr.RepositoryProvider;
+import org.apache.sling.discovery.base.its.setup.OSGiMock;
+import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
+import org.apache.sling.discovery.commons.providers.spi.base.DummySlingSettingsService;
+import org.apache.sling.discovery.commons.providers.util.ResourceHelper;
+import org.apache.sling.discovery.impl.cluster.voting.VotingView;
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterInstancesSweeperTest {
+
+    private ResourceResolverFactory factory;
+    private ResourceResolver resourceResolver;
+    private TestConfig config;
+    private String slingId1;
+    private String slingId2;
+    private String slingId3;
+
+    private void resetRepo() throws Exception {
+        Session l = RepositoryProvider.instance().getRepository()
+                .loginAdministrative(null);
+        try{
+            l.getNode("/var");
+            l.removeItem("/var");
+        } catch(PathNotFoundException pnfe) {
+            // well then we probably dont have to do any cleanup
+        }
+        l.save();
+        l.logout();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slingId1 = UUID.randomUUID().toString();
+        slingId2 = UUID.randomUUID().toString();
+        slingId3 = UUID.randomUUID().toString();
+        factory = new DummyResourceResolverFactory();
+        resetRepo();
+        config = new TestConfig("/var/discovery/impltesting/");
+        config.setHeartbeatInterval(999);
+        config.setHeartbeatTimeout(60);
+        config.setClusterInstancesRetentionFactor(10);
+        resourceResolver = factory.getServiceResourceResolver(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (resourceResolver != null) {
+            resourceResolver.close();
+        }
+    }
+
+    private void heartbeat(String slingId) throws Exception {
+        HeartbeatHandler hh = HeartbeatHandler.testConstructor(new DummySlingSettingsService(slingId), factory, null, null, config, null, null);
+        OSGiMock.activate(hh);
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh);
+    }
+
+    /** make the heartbeat of the given instance older than the retention **/
+    private void expire(String slingId) throws Exception {
+        ModifiableValueMap props = resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId)
+                .adaptTo(ModifiableValueMap.class);
+        Calendar old = Calendar.getInstance();
+        old.setTimeInMillis(System.currentTimeMillis() - config.getClusterInstancesRetentionMillis() - 1000);
+        props.put("lastHeartbeat", old);
+        resourceResolver.commit();
+    }
+
+    @Test
+    public void testSweepDue() throws Exception {
+        ClusterInstancesSweeper sweeper = new ClusterInstancesSweeper();
+        assertTrue(sweeper.isSweepDue(config, System.currentTimeMillis()));
+        sweeper.sweep(resourceResolver, config, slingId1);
+        assertFalse(sweeper.isSweepDue(config, System.currentTimeMillis()));
+        config.setClusterInstancesRetentionFactor(0);
+        assertFalse(new ClusterInstancesSweeper().isSweepDue(config, System.currentTimeMillis()));
+        // the removal is disabled by default
+        assertEquals(0, new TestConfig("/var/discovery/impltesting/").getClusterInstancesRetentionMillis());
+    }
+
+    @Test
+    public void testSweepFailed() throws Exception {
+        ClusterInstancesSweeper sweeper = new ClusterInstancesSweeper();
+        ResourceResolver closedResourceResolver = factory.getServiceResourceResolver(null);
+        closedResourceResolver.close();
+        try {
+            sweeper.sweep(closedResourceResolver, config, slingId1);
+            fail("should have failed with a closed resourceResolver");
+        } catch (RuntimeException e) {
+            // ok
+        }
+        // not retried on the next check, but after the heartbeatTimeout
+        final long now = System.currentTimeMillis();
+        assertFalse(sweeper.isSweepDue(config, now));
+        assertTrue(sweeper.isSweepDue(config, now + config.getHeartbeatTimeoutMillis()));
+
+        sweeper.sweep(resourceResolver, config, slingId1);
+        assertFalse(sweeper.isSweepDue(config, System.currentTimeMillis() + config.getHeartbeatTimeoutMillis()));
+    }
+
+    @Test
+    public void testSweep() throws Exception {
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        heartbeat(slingId3);
+        resourceResolver.refresh();
+        ModifiableValueMap syncTokens = ResourceHelper.getOrCreateResource(resourceResolver, config.getSyncTokenPath())
+                .adaptTo(ModifiableValueMap.class);
+        syncTokens.put(slingId2, "token2");
+        syncTokens.put(slingId3, "token3");
+        ModifiableValueMap idMap = ResourceHelper.getOrCreateResource(resourceResolver, config.getIdMapPath())
+                .adaptTo(ModifiableValueMap.class);
+        idMap.put(slingId2, 2L);
+        idMap.put(slingId3, 3L);
+        resourceResolver.commit();
+
+        // slingId2 is long dead, but still part of a voting
+        VotingView.newVoting(resourceResolver, config, UUID.randomUUID().toString(), slingId1,
+                new HashSet<String>(Arrays.asList(slingId1, slingId2)));
+        expire(slingId2);
+        expire(slingId3);
+
+        assertEquals(1, new ClusterInstancesSweeper().sweep(resourceResolver, config, slingId1));
+        resourceResolver.refresh();
+        assertNotNull(resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId1));
+        assertNotNull(resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId2));
+        assertNull(resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId3));
+        syncTokens = resourceResolver.getResource(config.getSyncTokenPath()).adaptTo(ModifiableValueMap.class);
+        assertTrue(syncTokens.containsKey(slingId2));
+        assertFalse(syncTokens.containsKey(slingId3));
+        idMap = resourceResolver.getResource(config.getIdMapPath()).adaptTo(ModifiableValueMap.class);
+        assertTrue(idMap.containsKey(slingId2));
+        assertFalse(idMap.containsKey(slingId3));
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        final int count = ClusterInstancesSweeper.BATCH_SIZE * ClusterInstancesSweeper.MAX_BATCHES + 3;
+        Calendar old = Calendar.getInstance();
+        old.setTimeInMillis(System.currentTimeMillis() - config.getClusterInstancesRetentionMillis() - 1000);
+        for (int i = 0; i < count; i++) {
+            ResourceHelper.getOrCreateResource(resourceResolver, config.getClusterInstancesPath() + "/" + UUID.randomUUID())
+                    .adaptTo(ModifiableValueMap.class).put("lastHeartbeat", old);
+        }
+        resourceResolver.commit();
+
+        ClusterInstancesSweeper sweeper = new ClusterInstancesSweeper();
+        assertEquals(count - 3, sweeper.sweep(resourceResolver, config, slingId1));
+        // not done yet, hence still due
+        assertTrue(sweeper.isSweepDue(config, System.currentTimeMillis()));
+        assertEquals(3, sweeper.sweep(resourceResolver, config, slingId1));
+        assertFalse(sweeper.isSweepDue(config, System.currentTimeMillis()));
+    }
+
+}
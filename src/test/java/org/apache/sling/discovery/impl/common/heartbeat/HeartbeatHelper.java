@@ -28,4 +28,8 @@ public class HeartbeatHelper {
         hh.issueClusterLocalHeartbeat();
     }
 
+    public static void issueDepartureMarker(HeartbeatHandler hh) {
+        hh.issueDepartureMarker();
+    }
+
 }
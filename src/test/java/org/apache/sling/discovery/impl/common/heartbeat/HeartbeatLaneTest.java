@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HeartbeatLaneTest {
+
+    @Test
+    public void testSkipWhileBusy() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final HeartbeatLane lane = new HeartbeatLane("test", 10, new Runnable() {
+
+            @Override
+            public void run() {
+                entered.countDown();
+                try {
+                    released.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final Thread busy = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                lane.run();
+            }
+        });
+        busy.start();
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        // a second run while the first is still busy is skipped
+        assertFalse(lane.run());
+        released.countDown();
+        busy.join(10000);
+
+        final String statistics = lane.getStatistics();
+        assertTrue(statistics, statistics.contains("runs=1"));
+        assertTrue(statistics, statistics.contains("skipped=1"));
+        assertTrue(statistics, statistics.contains("overruns=1"));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final HeartbeatLane lane = new HeartbeatLane("test", 10000, new Runnable() {
+
+            @Override
+            public void run() {
+                throw new RuntimeException("expected");
+            }
+        });
+        assertTrue(lane.run());
+        final String statistics = lane.getStatistics();
+        assertTrue(statistics, statistics.contains("runs=1"));
+        assertTrue(statistics, statistics.contains("failed=1"));
+        assertTrue(statistics, statistics.contains("overruns=0"));
+    }
+
+    @Test
+    public void testStartAndTrigger() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final HeartbeatLane lane = new HeartbeatLane("test", 10000, new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        lane.start(50);
+        try {
+            Thread.sleep(500);
+            assertTrue(runs.get() >= 3);
+        } finally {
+            lane.close();
+        }
+        final int runsAfterClose = runs.get();
+        lane.trigger();
+        Thread.sleep(100);
+        assertTrue(runs.get() <= runsAfterClose + 1);
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HeartbeatSequenceObserverTest {
+
+    @Test
+    public void testObserve() throws Exception {
+        final HeartbeatSequenceObserver observer = new HeartbeatSequenceObserver();
+        // first observation: the age is taken from the lastHeartbeat
+        long age = observer.observe("a", 5, 60000);
+        assertTrue(age >= 60000 && age < 61000);
+
+        // advancing: the age is measured locally, regardless of the (skewed) lastHeartbeat
+        age = observer.observe("a", 6, 3600000);
+        assertTrue(age < 1000);
+
+        // not advancing: the age grows with the local time
+        Thread.sleep(50);
+        age = observer.observe("a", 6, 0);
+        assertTrue(age >= 50 && age < 1000);
+
+        // a reset sequence (eg the instance resource was recreated) is a first observation again
+        age = observer.observe("a", 1, 30000);
+        assertTrue(age >= 30000 && age < 31000);
+
+        observer.remove("a");
+        age = observer.observe("a", 7, 10000);
+        assertTrue(age >= 10000 && age < 11000);
+    }
+
+}
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -42,10 +43,13 @@ import org.apache.sling.commons.testing.junit.categories.Slow;
 import org.apache.sling.discovery.TopologyEvent;
 import org.apache.sling.discovery.TopologyEventListener;
 import org.apache.sling.discovery.TopologyView;
+import org.apache.sling.discovery.base.its.setup.OSGiMock;
 import org.apache.sling.discovery.base.its.setup.VirtualInstance;
 import org.apache.sling.discovery.impl.DiscoveryServiceImpl;
 import org.apache.sling.discovery.impl.cluster.voting.VotingHelper;
 import org.apache.sling.discovery.impl.cluster.voting.VotingView;
+import org.apache.sling.discovery.impl.common.ResourceResolverPool;
+import org.apache.sling.discovery.impl.common.metrics.DiscoveryMetrics;
 import org.apache.sling.discovery.impl.setup.FullJR2VirtualInstance;
 import org.apache.sling.discovery.impl.setup.FullJR2VirtualInstanceBuilder;
 import org.junit.After;
@@ -698,4 +702,157 @@ public class HeartbeatTest {
 
     }
 
+    /**
+     * Tests that a pending voting is settled and sent to the listeners by the
+     * fast view check - long before the next periodic check in heartbeatInterval
+     */
+    @Test
+    public void testFastCheckViewSettlesVoting() throws Throwable {
+        logger.info("testFastCheckViewSettlesVoting: creating fastMachine...");
+        FullJR2VirtualInstanceBuilder fastBuilder = newBuilder();
+        fastBuilder.setDebugName("fast")
+                .newRepository("/var/discovery/impl/", true)
+                .setConnectorPingTimeout(999)
+                .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                .setMinEventDelay(0);
+        fastBuilder.setFastCheckViewInterval(100);
+        // the slow machine doesn't check its view, hence never stores a sync token
+        fastBuilder.setUseSyncTokenService(false);
+        FullJR2VirtualInstance fastMachine = fastBuilder.fullBuild();
+        instances.add(fastMachine);
+        SimpleTopologyEventListener fastListener = new SimpleTopologyEventListener("fast");
+        fastMachine.bindTopologyEventListener(fastListener);
+        HeartbeatHandler hhFast = fastMachine.getHeartbeatHandler();
+
+        logger.info("testFastCheckViewSettlesVoting: creating slowMachine...");
+        FullJR2VirtualInstanceBuilder slowBuilder = newBuilder();
+        slowBuilder.setDebugName("slow")
+                .useRepositoryOf(fastMachine)
+                .setConnectorPingTimeout(999)
+                .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                .setMinEventDelay(0);
+        slowBuilder.setFastCheckViewInterval(0);
+        FullJR2VirtualInstance slowMachine = slowBuilder.fullBuild();
+        instances.add(slowMachine);
+        HeartbeatHandler hhSlow = slowMachine.getHeartbeatHandler();
+
+        assertNull(fastListener.getLastEvent());
+        synchronized(lock(hhSlow)) {
+            hhSlow.issueHeartbeat();
+        }
+        synchronized(lock(hhFast)) {
+            hhFast.issueHeartbeat();
+            // starts a voting - which can't be promoted within this very check
+            hhFast.doCheckView();
+        }
+
+        // no further checkView from here on: the fast view check
+        // alone must see the voting through and send the TOPOLOGY_INIT
+        final long start = System.currentTimeMillis();
+        while(fastListener.getLastEvent() == null && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(100);
+        }
+        assertNotNull(fastListener.getLastEvent());
+        assertEquals(TopologyEvent.Type.TOPOLOGY_INIT, fastListener.getLastEvent().getType());
+        assertEquals(2, fastListener.getLastEvent().getNewView().getInstances().size());
+        assertTrue(fastMachine.getDiscoveryService().getTopology().isCurrent());
+    }
+
+    /**
+     * Tests that the fast view check gives up after heartbeatTimeout
+     * if the view doesn't settle - here as the slow machine never votes
+     */
+    @Test
+    public void testFastCheckViewStopsAfterTimeout() throws Throwable {
+        logger.info("testFastCheckViewStopsAfterTimeout: creating fastMachine...");
+        FullJR2VirtualInstanceBuilder fastBuilder = newBuilder();
+        fastBuilder.setDebugName("fast")
+                .newRepository("/var/discovery/impl/", true)
+                .setConnectorPingTimeout(2 /* 2 sec timeout */)
+                .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                .setMinEventDelay(0);
+        fastBuilder.setFastCheckViewInterval(100);
+        FullJR2VirtualInstance fastMachine = fastBuilder.fullBuild();
+        instances.add(fastMachine);
+        HeartbeatHandler hhFast = fastMachine.getHeartbeatHandler();
+        final DiscoveryMetrics metrics = DiscoveryMetrics.testConstructor();
+        PrivateAccessor.setField(hhFast, "metrics", metrics);
+
+        logger.info("testFastCheckViewStopsAfterTimeout: creating slowMachine...");
+        FullJR2VirtualInstanceBuilder slowBuilder = newBuilder();
+        slowBuilder.setDebugName("slow")
+                .useRepositoryOf(fastMachine)
+                .setConnectorPingTimeout(2 /* 2 sec timeout */)
+                .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                .setMinEventDelay(0);
+        slowBuilder.setFastCheckViewInterval(0);
+        FullJR2VirtualInstance slowMachine = slowBuilder.fullBuild();
+        instances.add(slowMachine);
+        HeartbeatHandler hhSlow = slowMachine.getHeartbeatHandler();
+
+        // prevent the slow machine from voting - the view thus never settles
+        slowMachine.stopVoting();
+
+        synchronized(lock(hhSlow)) {
+            hhSlow.issueHeartbeat();
+        }
+        synchronized(lock(hhFast)) {
+            hhFast.issueHeartbeat();
+            hhFast.doCheckView();
+        }
+
+        // keep both alive (heartbeats only, no checkView) past the heartbeatTimeout
+        for(int i=0; i<10; i++) {
+            Thread.sleep(300);
+            synchronized(lock(hhSlow)) {
+                hhSlow.issueHeartbeat();
+            }
+            synchronized(lock(hhFast)) {
+                hhFast.issueHeartbeat();
+            }
+        }
+        final long viewChecks = (Long) metrics.getViewCheckMillis().get("count");
+        // the fast view check did check again while within the timeout..
+        assertTrue("viewChecks=" + viewChecks, viewChecks > 5);
+
+        for(int i=0; i<5; i++) {
+            Thread.sleep(300);
+            synchronized(lock(hhSlow)) {
+                hhSlow.issueHeartbeat();
+            }
+            synchronized(lock(hhFast)) {
+                hhFast.issueHeartbeat();
+            }
+        }
+        // ..but no longer thereafter
+        assertEquals(viewChecks, (long) (Long) metrics.getViewCheckMillis().get("count"));
+    }
+
+    /**
+     * Tests that the resolvers used after deactivate - eg by a late
+     * heartbeat - are closed rather than pooled in a newly created pool
+     */
+    @Test
+    public void testNoResolversPooledAfterDeactivate() throws Throwable {
+        FullJR2VirtualInstanceBuilder builder = newBuilder();
+        builder.setDebugName("instance")
+                .newRepository("/var/discovery/impl/", true)
+                .setConnectorPingTimeout(999)
+                .setConnectorPingInterval(999 /* 999 sec interval: to disable it */)
+                .setMinEventDelay(0);
+        FullJR2VirtualInstance instance = builder.fullBuild();
+        instances.add(instance);
+        HeartbeatHandler hh = instance.getHeartbeatHandler();
+        OSGiMock.deactivate(hh);
+        final ResourceResolverPool pool = (ResourceResolverPool) PrivateAccessor.getField(hh, "resourceResolverPool");
+        assertNotNull(pool);
+        assertEquals(0, pool.getIdleCount());
+
+        synchronized(lock(hh)) {
+            hh.issueHeartbeat();
+        }
+        assertSame(pool, PrivateAccessor.getField(hh, "resourceResolverPool"));
+        assertEquals(0, pool.getIdleCount());
+    }
+
 }
@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.testing.jcr.RepositoryProvider;
+import org.apache.sling.discovery.base.its.setup.OSGiMock;
+import org.apache.sling.discovery.base.its.setup.mock.DummyResourceResolverFactory;
+import org.apache.sling.discovery.commons.providers.spi.base.DummySlingSettingsService;
+import org.apache.sling.discovery.impl.common.DiscoverySnapshot;
+import org.apache.sling.discovery.impl.setup.TestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LiveInstanceTrackerTest {
+
+    private ResourceResolverFactory factory;
+    private ResourceResolver resourceResolver;
+    private TestConfig config;
+    private String slingId1;
+    private String slingId2;
+    private LiveInstanceTracker tracker;
+
+    private void resetRepo() throws Exception {
+        Session l = RepositoryProvider.instance().getRepository()
+                .loginAdministrative(null);
+        try{
+            l.getNode("/var");
+            l.removeItem("/var");
+        } catch(PathNotFoundException pnfe) {
+            // well then we probably dont have to do any cleanup
+        }
+        l.save();
+        l.logout();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        slingId1 = UUID.randomUUID().toString();
+        slingId2 = UUID.randomUUID().toString();
+        factory = new DummyResourceResolverFactory();
+        resetRepo();
+        config = new TestConfig("/var/discovery/impltesting/");
+        config.setHeartbeatInterval(999);
+        config.setHeartbeatTimeout(60);
+        resourceResolver = factory.getServiceResourceResolver(null);
+        tracker = LiveInstanceTracker.testConstructor(new DummySlingSettingsService(slingId1), config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (resourceResolver != null) {
+            resourceResolver.close();
+        }
+    }
+
+    private void heartbeat(String slingId) throws Exception {
+        HeartbeatHandler hh = HeartbeatHandler.testConstructor(new DummySlingSettingsService(slingId), factory, null, null, config, null, null);
+        OSGiMock.activate(hh);
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh);
+    }
+
+    @Test
+    public void testNotCurrentUntilEnabledAndReconciled() throws Exception {
+        final long now = System.currentTimeMillis();
+        assertNull(tracker.getLiveInstances(now));
+        tracker.heartbeatObserved(slingId1);
+        assertNull(tracker.getLiveInstances(now));
+        tracker.setEnabled(true);
+        assertNull(tracker.getLiveInstances(now));
+        tracker.reconcile(Collections.<String, Date>emptyMap(), now);
+        assertEquals(Collections.emptySet(), tracker.getLiveInstances(now));
+
+        tracker.heartbeatObserved(slingId1);
+        tracker.heartbeatObserved(slingId2);
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), tracker.getLiveInstances(now));
+        tracker.instanceRemoved(slingId2);
+        assertEquals(Collections.singleton(slingId1), tracker.getLiveInstances(now));
+        tracker.heartbeatObserved(slingId2);
+        tracker.instanceLeft(slingId2);
+        assertEquals(Collections.singleton(slingId1), tracker.getLiveInstances(now));
+
+        // heartbeats time out
+        assertEquals(Collections.emptySet(), tracker.getLiveInstances(now + config.getHeartbeatTimeoutMillis() + 1000));
+        // and the reconcile interval expires
+        assertNull(tracker.getLiveInstances(now + config.getLiveInstancesReconcileIntervalMillis()));
+        tracker.invalidate();
+        assertNull(tracker.getLiveInstances(now));
+    }
+
+    @Test
+    public void testReconcile() throws Exception {
+        tracker.setEnabled(true);
+        final long now = System.currentTimeMillis();
+        tracker.heartbeatObserved(slingId2);
+        final Map<String, Date> heartbeats = new HashMap<String, Date>();
+        heartbeats.put(slingId1, new Date(now - 1000));
+        heartbeats.put("dead", new Date(now - config.getHeartbeatTimeoutMillis() - 1000));
+        heartbeats.put("noHeartbeat", null);
+        tracker.heartbeatObserved("left");
+        heartbeats.put("left", null);
+        tracker.reconcile(heartbeats, now);
+        // slingId2 is gone from the repository, hence dropped
+        assertEquals(Collections.singleton(slingId1), tracker.getLiveInstances(now));
+        assertFalse(tracker.getLastHeartbeats().containsKey(slingId2));
+    }
+
+    @Test
+    public void testLocalEventsMissing() throws Exception {
+        tracker.setEnabled(true);
+        final long now = System.currentTimeMillis();
+        tracker.reconcile(Collections.<String, Date>emptyMap(), now);
+        assertTrue(tracker.isCurrent(now));
+        tracker.localHeartbeatWritten();
+        tracker.heartbeatObserved(slingId1);
+        assertTrue(tracker.isCurrent(now));
+        config.setHeartbeatInterval(0);
+        Thread.sleep(5);
+        tracker.localHeartbeatWritten();
+        // the event of the latest local heartbeat has not been observed
+        assertFalse(tracker.isCurrent(now));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        resourceResolver.refresh();
+        tracker.setEnabled(true);
+
+        // not current yet: clusterInstances is read and the tracker reconciled
+        DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertEquals(2, snapshot.getClusterInstances().size());
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+
+        // current now: the live instances come from memory
+        snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertTrue(snapshot.getClusterInstances().isEmpty());
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+    }
+
+    @Test
+    public void testPhiAccrual() throws Exception {
+        config.setHeartbeatInterval(1);
+        config.setLivenessMode("phiAccrual");
+        tracker = LiveInstanceTracker.testConstructor(new DummySlingSettingsService(slingId1), config);
+        tracker.setEnabled(true);
+        tracker.reconcile(Collections.<String, Date>emptyMap(), System.currentTimeMillis());
+        for (int i = 0; i < 5; i++) {
+            tracker.heartbeatObserved(slingId1);
+            tracker.heartbeatObserved(slingId2);
+            Thread.sleep(100);
+        }
+        long now = System.currentTimeMillis();
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), tracker.getLiveInstances(now));
+        assertEquals(4, tracker.getHeartbeatStatistics(now).get(slingId2).getSamples());
+
+        // way past the regular interval but within the heartbeat timeout: suspected
+        now += 5000;
+        assertTrue(tracker.isSuspected(slingId2, now));
+        // the local instance is never suspected
+        assertFalse(tracker.isSuspected(slingId1, now));
+
+        // the 'timeout' mode does not suspect
+        config.setLivenessMode("timeout");
+        assertFalse(tracker.isSuspected(slingId2, now));
+    }
+
+    @Test
+    public void testPhiAccrualEventsStalled() throws Exception {
+        config.setHeartbeatInterval(1);
+        config.setLivenessMode("phiAccrual");
+        config.setPhiAccrualThreshold(3);
+        heartbeat(slingId1);
+        heartbeat(slingId2);
+        resourceResolver.refresh();
+        tracker = LiveInstanceTracker.testConstructor(new DummySlingSettingsService(slingId1), config);
+        tracker.setEnabled(true);
+        tracker.reconcile(Collections.<String, Date>emptyMap(), System.currentTimeMillis());
+        for (int i = 0; i < 5; i++) {
+            tracker.localHeartbeatWritten();
+            tracker.heartbeatObserved(slingId1);
+            tracker.heartbeatObserved(slingId2);
+            Thread.sleep(100);
+        }
+        // the events stop - way past the regular interval slingId2 is suspected
+        Thread.sleep(1100);
+        assertTrue(tracker.isSuspected(slingId2, System.currentTimeMillis()));
+
+        // the event of the next local heartbeat doesn't come through either:
+        // the observations are stale, hence slingId2 is not suspected anymore..
+        tracker.localHeartbeatWritten();
+        Thread.sleep(300);
+        assertFalse(tracker.isSuspected(slingId2, System.currentTimeMillis()));
+
+        // ..and is live as per the read of clusterInstances the tracker falls back to
+        assertFalse(tracker.isCurrent(System.currentTimeMillis()));
+        final DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertEquals(2, snapshot.getClusterInstances().size());
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+
+        // once the events come through again, the detector applies again
+        tracker.heartbeatObserved(slingId1);
+        assertTrue(tracker.isSuspected(slingId2, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testHeartbeatSequence() throws Exception {
+        heartbeat(slingId1);
+        final HeartbeatHandler hh2 = HeartbeatHandler.testConstructor(new DummySlingSettingsService(slingId2), factory, null, null, config, null, null);
+        OSGiMock.activate(hh2);
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh2);
+        // the clock of slingId2 is way behind
+        final Calendar skewed = Calendar.getInstance();
+        skewed.add(Calendar.HOUR, -1);
+        resourceResolver.refresh();
+        resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId2)
+                .adaptTo(ModifiableValueMap.class).put("lastHeartbeat", skewed);
+        resourceResolver.commit();
+
+        // on first sight the lastHeartbeat is all there is
+        DiscoverySnapshot snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertEquals(Collections.singleton(slingId1), snapshot.getLiveInstances());
+
+        // once the sequence advances, the skewed lastHeartbeat doesn't matter anymore
+        HeartbeatHelper.issueClusterLocalHeartbeat(hh2);
+        resourceResolver.refresh();
+        resourceResolver.getResource(config.getClusterInstancesPath() + "/" + slingId2)
+                .adaptTo(ModifiableValueMap.class).put("lastHeartbeat", skewed);
+        resourceResolver.commit();
+        snapshot = DiscoverySnapshot.read(resourceResolver, config, tracker);
+        assertEquals(new HashSet<String>(Arrays.asList(slingId1, slingId2)), snapshot.getLiveInstances());
+    }
+
+}
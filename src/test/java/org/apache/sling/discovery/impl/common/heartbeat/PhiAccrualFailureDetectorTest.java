@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.heartbeat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.discovery.impl.common.heartbeat.PhiAccrualFailureDetector.HeartbeatStatistics;
+import org.junit.Test;
+
+public class PhiAccrualFailureDetectorTest {
+
+    @Test
+    public void testPhi() throws Exception {
+        final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(10, 100);
+        long now = 1000000;
+        // unknown instances are never suspected
+        assertEquals(0, detector.phi("a", now), 0);
+        for (int i = 0; i < PhiAccrualFailureDetector.MIN_SAMPLES; i++) {
+            detector.heartbeat("a", now);
+            now += 1000;
+            // not enough samples yet
+            assertEquals(0, detector.phi("a", now + 60000), 0);
+        }
+        detector.heartbeat("a", now);
+
+        // right after a heartbeat the suspicion is low - and grows with the time without one
+        final double onTime = detector.phi("a", now + 1000);
+        final double late = detector.phi("a", now + 1500);
+        final double veryLate = detector.phi("a", now + 3000);
+        assertTrue(onTime < 1);
+        assertTrue(late > onTime);
+        assertTrue(veryLate > 8);
+
+        final HeartbeatStatistics statistics = detector.getStatistics(now).get("a");
+        assertEquals(PhiAccrualFailureDetector.MIN_SAMPLES, statistics.getSamples());
+        assertEquals(1000, statistics.getMeanMillis(), 0.001);
+        assertEquals(0, statistics.getStdDeviationMillis(), 0.001);
+        assertEquals(now, statistics.getLastArrival());
+
+        detector.remove("a");
+        assertEquals(0, detector.phi("a", now + 3000), 0);
+        assertTrue(detector.getStatistics(now).isEmpty());
+    }
+
+    @Test
+    public void testIrregularHeartbeats() throws Exception {
+        final PhiAccrualFailureDetector regular = new PhiAccrualFailureDetector(10, 100);
+        final PhiAccrualFailureDetector irregular = new PhiAccrualFailureDetector(10, 100);
+        long now = 1000000;
+        for (int i = 0; i < 10; i++) {
+            regular.heartbeat("a", now + i * 1000);
+            // repository stalls: heartbeats arrive in bursts
+            irregular.heartbeat("a", now + i * 1000 + (i % 2 == 0 ? 0 : 800));
+        }
+        now += 9000;
+        // the same delay is suspicious for the regular but tolerated for the irregular instance
+        assertTrue(regular.phi("a", now + 2500) > 8);
+        assertFalse(irregular.phi("a", now + 2500) > 8);
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(3, 100);
+        long now = 1000000;
+        for (int i = 0; i < 5; i++) {
+            detector.heartbeat("a", now);
+            now += 5000;
+        }
+        for (int i = 0; i < 3; i++) {
+            detector.heartbeat("a", now);
+            now += 1000;
+        }
+        // only the last 3 intervals are kept
+        final HeartbeatStatistics statistics = detector.getStatistics(now).get("a");
+        assertEquals(3, statistics.getSamples());
+        assertEquals((5000 + 1000 + 1000) / 3.0, statistics.getMeanMillis(), 0.001);
+    }
+
+}
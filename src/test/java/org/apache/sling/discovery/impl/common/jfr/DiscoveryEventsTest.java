@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.jfr;
+
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class DiscoveryEventsTest {
+
+    @Test
+    public void testWithoutRecording() throws Exception {
+        // without a running recording no event is enabled - hence the no-op span
+        for (DiscoveryEvents.Kind kind : DiscoveryEvents.Kind.values()) {
+            final DiscoveryEvents.Span span = DiscoveryEvents.begin(kind);
+            assertSame(DiscoveryEvents.NOOP, span);
+            span.end(3, "ok");
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.discovery.impl.common.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+public class DiscoveryMetricsTest {
+
+    @Test
+    public void testHistogram() throws Exception {
+        final Histogram histogram = new Histogram("test", "ms");
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getPercentile(0.5));
+        assertEquals(95, histogram.getPercentile(0.95));
+        assertEquals(100, histogram.getPercentile(1));
+
+        // the percentiles follow the most recent values only
+        for (int i = 0; i < Histogram.SAMPLE_SIZE; i++) {
+            histogram.update(1000);
+        }
+        assertEquals(1000, histogram.getPercentile(0.5));
+        assertEquals(1, histogram.getMin());
+    }
+
+    @Test
+    public void testCompositeData() throws Exception {
+        final DiscoveryMetrics metrics = DiscoveryMetrics.testConstructor();
+        for (int i = 1; i <= 100; i++) {
+            metrics.heartbeatCommitted(i);
+        }
+        final CompositeData data = metrics.getHeartbeatCommitMillis();
+        assertEquals(100L, data.get("count"));
+        assertEquals(50L, data.get("p50"));
+        assertEquals(95L, data.get("p95"));
+        assertEquals(99L, data.get("p99"));
+        assertEquals(100L, data.get("max"));
+        assertEquals(0L, metrics.getPromotionMillis().get("count"));
+    }
+
+    @Test
+    public void testTopologyChange() throws Exception {
+        final DiscoveryMetrics metrics = DiscoveryMetrics.testConstructor();
+        // a TOPOLOGY_CHANGED without a preceding TOPOLOGY_CHANGING (eg TOPOLOGY_INIT) is not recorded
+        metrics.topologyChanged();
+        assertEquals(0, metrics.getHistogramList().get(3).getCount());
+
+        metrics.topologyChanging();
+        Thread.sleep(50);
+        // repeated TOPOLOGY_CHANGINGs count from the first one
+        metrics.topologyChanging();
+        metrics.topologyChanged();
+        assertEquals(1, metrics.getHistogramList().get(3).getCount());
+        assertTrue(metrics.getTopologyChangeMillisMedian() >= 50);
+    }
+
+    @Test
+    public void testPerCycle() throws Exception {
+        final DiscoveryMetrics metrics = DiscoveryMetrics.testConstructor();
+        metrics.repositoryRead();
+        metrics.repositoryRead();
+        metrics.heartbeatCommitted(5);
+        metrics.repositoryCommit();
+        metrics.cycleCompleted();
+        metrics.cycleCompleted();
+        final Histogram reads = metrics.getHistogramList().get(4);
+        final Histogram commits = metrics.getHistogramList().get(5);
+        assertEquals(2, reads.getCount());
+        assertEquals(2, reads.getMax());
+        assertEquals(0, reads.getLast());
+        assertEquals(2, commits.getMax());
+    }
+
+}
@@ -103,6 +103,41 @@ public class FullJR2VirtualInstanceBuilder extends VirtualInstanceBuilder {
         return config;
     }
 
+    public FullJR2VirtualInstanceBuilder setMergePropertiesIntoHeartbeat(boolean mergePropertiesIntoHeartbeat) {
+        getConfig().setMergePropertiesIntoHeartbeat(mergePropertiesIntoHeartbeat);
+        return this;
+    }
+
+    public FullJR2VirtualInstanceBuilder setPropertyProviderTimeout(long propertyProviderTimeout) {
+        getConfig().setPropertyProviderTimeout(propertyProviderTimeout);
+        return this;
+    }
+
+    public FullJR2VirtualInstanceBuilder setHeartbeatLanes(boolean heartbeatLanes) {
+        getConfig().setHeartbeatLanes(heartbeatLanes);
+        return this;
+    }
+
+    public FullJR2VirtualInstanceBuilder setUseSyncTokenService(boolean useSyncTokenService) {
+        getConfig().setUseSyncTokenService(useSyncTokenService);
+        return this;
+    }
+
+    public FullJR2VirtualInstanceBuilder setFastCheckViewInterval(long fastCheckViewInterval) {
+        getConfig().setFastCheckViewInterval(fastCheckViewInterval);
+        return this;
+    }
+
+    public FullJR2VirtualInstanceBuilder setSingleInstanceFastPath(boolean singleInstanceFastPath) {
+        getConfig().setSingleInstanceFastPath(singleInstanceFastPath);
+        return this;
+    }
+
+    public FullJR2VirtualInstanceBuilder setCompactViewStorage(boolean compactViewStorage) {
+        getConfig().setCompactViewStorage(compactViewStorage);
+        return this;
+    }
+
     private TestConfig createConfig() {
         TestConfig c = new TestConfig(path);
         return c;
@@ -106,5 +106,69 @@ public class TestConfig extends Config implements ModifiableTestBaseConfig {
     public void setPath(String path) {
         drPath = path;
     }
+
+    public void setClusterInstancesRetentionFactor(int clusterInstancesRetentionFactor) {
+        this.clusterInstancesRetentionFactor = clusterInstancesRetentionFactor;
+    }
+
+    public void setVotingEventDebounce(long votingEventDebounce) {
+        this.votingEventDebounce = votingEventDebounce;
+    }
+
+    public void setTopologyChangeQuietPeriod(long topologyChangeQuietPeriod) {
+        this.topologyChangeQuietPeriod = topologyChangeQuietPeriod;
+    }
+
+    public void setTopologyChangeMaxDelay(long topologyChangeMaxDelay) {
+        this.topologyChangeMaxDelay = topologyChangeMaxDelay;
+    }
+
+    public void setLivenessMode(String livenessMode) {
+        this.livenessMode = livenessMode;
+    }
+
+    public void setPhiAccrualThreshold(double phiAccrualThreshold) {
+        this.phiAccrualThreshold = phiAccrualThreshold;
+    }
+
+    public void setMergePropertiesIntoHeartbeat(boolean mergePropertiesIntoHeartbeat) {
+        this.mergePropertiesIntoHeartbeat = mergePropertiesIntoHeartbeat;
+    }
+
+    public void setPropertiesReconcileInterval(long propertiesReconcileInterval) {
+        this.propertiesReconcileInterval = propertiesReconcileInterval;
+    }
+
+    public void setPropertyProviderTimeout(long propertyProviderTimeout) {
+        this.propertyProviderTimeout = propertyProviderTimeout;
+    }
+
+    public void setHeartbeatLanes(boolean heartbeatLanes) {
+        this.heartbeatLanes = heartbeatLanes;
+    }
+
+    public void setUseSyncTokenService(boolean useSyncTokenService) {
+        this.useSyncTokenService = useSyncTokenService;
+    }
+
+    public void setFastCheckViewInterval(long fastCheckViewInterval) {
+        this.fastCheckViewInterval = fastCheckViewInterval;
+    }
+
+    public void setVotingInitiationDelay(long votingInitiationDelay) {
+        this.votingInitiationDelay = votingInitiationDelay;
+    }
+
+    public void setFastPromotion(boolean fastPromotion) {
+        this.fastPromotion = fastPromotion;
+    }
+
+    public void setSingleInstanceFastPath(boolean singleInstanceFastPath) {
+        this.singleInstanceFastPath = singleInstanceFastPath;
+    }
+
+    public void setCompactViewStorage(boolean compactViewStorage) {
+        this.compactViewStorage = compactViewStorage;
+    }
     
 }
\ No newline at end of file